@@ -1,22 +1,38 @@
 package client;
 
-import java.io.BufferedReader;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.Consumer;
 
 import javax.swing.SwingUtilities;
 
+import protocol.FrameReader;
+import protocol.WireFormat;
+
 public class ChatConnection {
 
+	// -Dchat.protocol=text skips negotiation and keeps the line protocol (handy with nc/telnet traces).
+	private static final boolean USE_BINARY =
+			!"text".equalsIgnoreCase(System.getProperty("chat.protocol", "binary"));
+	private static final int NEGOTIATE_TIMEOUT_MS = 5000;
+
 	private final String host;
 	private final int port;
 	private Socket socket;
-	private PrintWriter out;
-	private BufferedReader in;
+	private OutputStream out;
+	private InputStream in;
+	private final ReentrantLock writeLock = new ReentrantLock();
+	private volatile boolean binary;
 	private Thread readerThread;
 	private volatile Consumer<String> onMessage; 
 	private final AtomicBoolean connected = new AtomicBoolean(false);
@@ -38,15 +54,21 @@ public class ChatConnection {
 		
 		this.onMessage = onMessage;
 		socket = new Socket(host, port);
-		out = new PrintWriter(socket.getOutputStream(), true);
-		in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+		out = new BufferedOutputStream(socket.getOutputStream());
+		in = new BufferedInputStream(socket.getInputStream());
+		FrameReader reader = new FrameReader(in, WireFormat.MAX_SERVER_FRAME);
+		binary = false;
 		connected.set(true);
 		closed.set(false);
+		List<String> early = USE_BINARY ? negotiate(reader) : new ArrayList<>();
+		for(String line : early) {
+			SwingUtilities.invokeLater(() -> onMessage.accept(line));
+		}
 		
 		readerThread = new Thread(() -> {
 			try {
 				String line;
-				while(!closed.get() && (line = in.readLine()) != null) {
+				while(!closed.get() && (line = binary ? reader.readFrame() : reader.readLine()) != null) {
 					Consumer<String> callback = this.onMessage;
 					if(callback != null) { 
 						final String msg = line;
@@ -68,6 +90,33 @@ public class ChatConnection {
 		readerThread.start();
 	}
 	
+	// Asks for binary frames and waits for the answer, so nothing is sent in the wrong framing.
+	// Returns the lines (the login prompt) that arrived meanwhile. An older server rejects the
+	// request with an ERR line; the connection then simply stays on the text protocol.
+	private List<String> negotiate(FrameReader reader) throws IOException {
+		List<String> early = new ArrayList<>();
+		sendLine(WireFormat.NEGOTIATE);
+		socket.setSoTimeout(NEGOTIATE_TIMEOUT_MS);
+		try {
+			String line;
+			while((line = reader.readLine()) != null) {
+				if(line.equals(WireFormat.ACK)) {
+					binary = true;
+					break;
+				}
+				if(line.startsWith("ERR ")) break;
+				early.add(line);
+			}
+			if(line == null) throw new IOException("Connection closed during protocol negotiation");
+		} catch (SocketTimeoutException e) {
+			close();
+			throw new IOException("Server did not answer protocol negotiation", e);
+		} finally {
+			if(socket != null) socket.setSoTimeout(0);
+		}
+		return early;
+	}
+	
 	public void close() {
 		if(closed.getAndSet(true)) return;
 		connected.set(false);
@@ -94,8 +143,24 @@ public class ChatConnection {
 	}
 	
 	public void send(String text) {
-		PrintWriter w = out;
-		if(w != null) w.println(text);
+		try {
+			sendLine(text);
+		} catch (IOException e) {
+			close();
+		}
+	}
+	
+	private void sendLine(String text) throws IOException {
+		byte[] bytes = binary ? WireFormat.encode(text) : (text + "\n").getBytes(StandardCharsets.UTF_8);
+		writeLock.lock();
+		try {
+			OutputStream o = out;
+			if(o == null) return;
+			o.write(bytes);
+			o.flush();
+		} finally {
+			writeLock.unlock();
+		}
 	}
 	
 }
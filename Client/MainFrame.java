@@ -58,6 +58,8 @@ public class MainFrame {
     private final Map<String, RoomChatPanel> roomPanels = new ConcurrentHashMap<>();
 	private final Set<String> onlineSet = ConcurrentHashMap.newKeySet();
 	private final Map<String, String> statusMap = new ConcurrentHashMap<>();
+	// Sequence of the last applied PRESENCESNAP/PRESENCE line; -1 while waiting for a snapshot.
+	private long presenceSeq = -1;
 
 	public MainFrame(ChatConnection conn, String me) {
 		this.conn = conn;
@@ -65,8 +67,7 @@ public class MainFrame {
 		buildUI();
 		//conn.setOnMessage(line -> this.onServerLine(line));
 		conn.send("FRIENDS");
-		conn.send("ONLINE");
-		conn.send("STATUSES");
+		conn.send("PRESENCE_SYNC");
 		startAutoAway();
 		conn.send("STATUS online");
 	}
@@ -129,8 +130,7 @@ public class MainFrame {
 	    removeButton.addActionListener(e -> removeFriendSelected());
 	    refreshButton.addActionListener(e -> {
 	    	conn.send("FRIENDS");
-	    	conn.send("ONLINE");
-	    	conn.send("STATUSES");
+	    	conn.send("PRESENCE_SYNC");
 	    });
 	    requestsButton.addActionListener(e -> conn.send("FRIEND_REQUEST"));
 
@@ -273,8 +273,7 @@ public class MainFrame {
 		}
 		conn.send("FRIEND_REQ " + friend.trim());
 		conn.send("FRIENDS");
-		conn.send("ONLINE");
-		conn.send("STATUSES");
+		conn.send("PRESENCE_SYNC");
 	}
 	
 	private void removeFriendSelected() {
@@ -292,8 +291,7 @@ public class MainFrame {
 
         conn.send("FRIEND_REMOVE " + friend);
         conn.send("FRIENDS");
-        conn.send("ONLINE");
-        conn.send("STATUSES");
+        conn.send("PRESENCE_SYNC");
     }
     
 	/*private void removeFriend() {
@@ -382,6 +380,42 @@ public class MainFrame {
 			return;
 		}
 		
+		if(line.startsWith("PRESENCESNAP ")) {
+			String[] parts = line.substring("PRESENCESNAP ".length()).trim().split("\\s+", 2);
+			onlineSet.clear();
+			statusMap.clear();
+			if(parts.length == 2) {
+				for(String entry : parts[1].split(",")) applyPresenceUpsert(entry.trim());
+			}
+			presenceSeq = parseSeq(parts[0]);
+			SwingUtilities.invokeLater(this::refreshPresenceViews);
+			return;
+		}
+		
+		if(line.startsWith("PRESENCE ")) {
+			String[] parts = line.substring("PRESENCE ".length()).trim().split("\\s+");
+			long seq = parseSeq(parts[0]);
+			if(presenceSeq < 0 || seq != presenceSeq + 1) {
+				// Missed an update: ignore deltas until a fresh snapshot arrives.
+				if(presenceSeq >= 0) conn.send("PRESENCE_SYNC");
+				presenceSeq = -1;
+				return;
+			}
+			for(int i = 1; i < parts.length; i++) {
+				String op = parts[i];
+				if(op.startsWith("+")) {
+					applyPresenceUpsert(op.substring(1));
+				} else if(op.startsWith("-")) {
+					String user = op.substring(1);
+					onlineSet.remove(user);
+					statusMap.remove(user);
+				}
+			}
+			presenceSeq = seq;
+			SwingUtilities.invokeLater(this::refreshPresenceViews);
+			return;
+		}
+		
 		if(line.startsWith("FRIENDS ")) {
 			String friendNames = line.substring("FRIENDS ".length()).trim();
 			List<String> friends = new ArrayList<>();
@@ -452,11 +486,11 @@ public class MainFrame {
 				if(choice == JOptionPane.YES_OPTION) {
 					conn.send("FRIEND_ACCEPT " + from);
 					conn.send("FRIENDS");
-					conn.send("ONLINE");
+					conn.send("PRESENCE_SYNC");
 				} else if(choice == JOptionPane.NO_OPTION) {
 					conn.send("FRIEND_DECLINE " + from);
 					conn.send("FRIENDS");
-					conn.send("ONLINE");
+					conn.send("PRESENCE_SYNC");
 				}
 			});
 			return;
@@ -522,11 +556,11 @@ public class MainFrame {
 		    	if(choice == JOptionPane.YES_OPTION) {
 		    		conn.send("FRIEND_ACCEPT " + selectFriend);
 		    		conn.send("FRIENDS");
-		    	    conn.send("ONLINE");
+		    	    conn.send("PRESENCE_SYNC");
 		    	} else if( choice == JOptionPane.NO_OPTION) {
 		    		conn.send("FRIEND_DECLINE " + selectFriend);
 		    		conn.send("FRIENDS");
-		    	    conn.send("ONLINE");
+		    	    conn.send("PRESENCE_SYNC");
 		    	}
 		    });
 		    return;
@@ -612,6 +646,26 @@ public class MainFrame {
 		SwingUtilities.invokeLater(() -> statusLabel.setText(line));
 	}
 	
+	private void applyPresenceUpsert(String entry) {
+		String[] keyValue = entry.split(":", 2);
+		if(keyValue.length != 2 || keyValue[0].isEmpty()) return;
+		onlineSet.add(keyValue[0]);
+		statusMap.put(keyValue[0], keyValue[1]);
+	}
+	
+	private long parseSeq(String value) {
+		try {
+			return Long.parseLong(value);
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+	
+	private void refreshPresenceViews() {
+		refreshTabIcons();
+		friendsList.repaint();
+	}
+	
 	private void appendRoomMessage(String room, String from, String message) {
 		openRoom(room);
 		RoomChatPanel roomPanel = roomPanels.get(room);
@@ -6,6 +6,10 @@ import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.sql.Types;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
 
 public class ActivityLogDAO {
 
@@ -28,27 +32,107 @@ public class ActivityLogDAO {
 		}
 	}
 	
+	// BLOCK waits for room in the queue; DROP (default) discards the event so a command never waits on auditing.
+	public enum OverflowPolicy { BLOCK, DROP }
+	
+	public static class Stats {
+		public final long enqueued;
+		public final long written;
+		public final long dropped;
+		public final long failed;
+		public final int queued;
+		
+		Stats(long enqueued, long written, long dropped, long failed, int queued) {
+			this.enqueued = enqueued;
+			this.written = written;
+			this.dropped = dropped;
+			this.failed = failed;
+			this.queued = queued;
+		}
+		
+		@Override
+		public String toString() {
+			return String.format("enqueued=%d written=%d dropped=%d failed=%d queued=%d",
+					enqueued, written, dropped, failed, queued);
+		}
+	}
+	
+	private static final class Event {
+		final String username;
+		final String event;
+		final String details;
+		final String createdAt;
+		
+		Event(String username, String event, String details, String createdAt) {
+			this.username = username;
+			this.event = event;
+			this.details = details;
+			this.createdAt = createdAt;
+		}
+	}
+	
+	private static final int ROWS_PER_INSERT = 100;
+	private static final DateTimeFormatter SQLITE_TIMESTAMP =
+			DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss").withZone(ZoneOffset.UTC);
+	
+	// -Dchat.activity.policy / queueCapacity / batchSize / flushMs tune the appender.
+	private static final OverflowPolicy POLICY = OverflowPolicy.valueOf(
+			System.getProperty("chat.activity.policy", "DROP").trim().toUpperCase());
+	private static final BatchWriter<Event> WRITER = new BatchWriter<>("ActivityLogWriter",
+			Integer.getInteger("chat.activity.queueCapacity", 10_000),
+			Integer.getInteger("chat.activity.batchSize", 500),
+			Long.getLong("chat.activity.flushMs", 200L),
+			ActivityLogDAO::writeBatch);
+	
+	// Queues the event and returns; the user id lookup and the INSERT happen on the writer thread.
 	public static void log(String username, String event, String details) {
 		if (event == null || event.trim().isEmpty()) return;
-		if (username != null) username = username.trim();
-		Integer userId = null;
-		if (username != null && !username.isEmpty()) {
-		    userId = UserDAO.getUserId(username);
+		Event entry = new Event(username == null ? null : username.trim(), event.trim(),
+				details == null ? "" : details, SQLITE_TIMESTAMP.format(Instant.now()));
+		boolean queued = POLICY == OverflowPolicy.BLOCK ? WRITER.submit(entry) : WRITER.offer(entry);
+		if (!queued && POLICY == OverflowPolicy.BLOCK) {
+			System.err.println("ERR ActivityLogDAO.log error: activity writer is shut down");
 		}
-        String sqlCommand = "INSERT INTO activity_log(user_id, event, details) VALUES(?, ?, ?)";
-        try(Connection conn = DatabaseManager.getConnection();
-        	PreparedStatement pStatement = conn.prepareStatement(sqlCommand)){
-        	if(userId == null) {
-        		pStatement.setNull(1,  Types.INTEGER);
-        	} else {
-        		pStatement.setInt(1,  userId);
-        	}
-        	pStatement.setString(2, event.trim());
-        	pStatement.setString(3, details == null ? "" : details);
-        	pStatement.executeUpdate();
-        } catch (SQLException e) {
-        	System.err.println("ERR ActivityLogDAO.log error: " + e.getMessage());
-        }
+	}
+	
+	private static void writeBatch(Connection conn, List<Event> batch) throws SQLException {
+		for (int start = 0; start < batch.size(); start += ROWS_PER_INSERT) {
+			int count = Math.min(ROWS_PER_INSERT, batch.size() - start);
+			StringBuilder sqlCommand = new StringBuilder("INSERT INTO activity_log(user_id, event, details, created_at) VALUES ");
+			for (int i = 0; i < count; i++) {
+				sqlCommand.append(i == 0 ? "(?, ?, ?, ?)" : ", (?, ?, ?, ?)");
+			}
+			try (PreparedStatement pStatement = conn.prepareStatement(sqlCommand.toString())) {
+				int index = 1;
+				for (int i = 0; i < count; i++) {
+					Event e = batch.get(start + i);
+					Integer userId = e.username == null || e.username.isEmpty() ? null : UserDAO.getUserId(conn, e.username);
+					if (userId == null) {
+						pStatement.setNull(index++, Types.INTEGER);
+					} else {
+						pStatement.setInt(index++, userId);
+					}
+					pStatement.setString(index++, e.event);
+					pStatement.setString(index++, e.details);
+					pStatement.setString(index++, e.createdAt);
+				}
+				pStatement.executeUpdate();
+			}
+		}
+	}
+	
+	public static Stats stats() {
+		return new Stats(WRITER.submittedCount(), WRITER.writtenCount(), WRITER.droppedCount(),
+				WRITER.failedCount(), WRITER.queueDepth());
+	}
+	
+	public static boolean awaitPersisted(long timeoutMillis) {
+		return WRITER.awaitFlushed(timeoutMillis);
+	}
+	
+	// Drains everything still queued; called from the server's shutdown hook.
+	public static void shutdown() {
+		WRITER.shutdown(10_000);
 	}
 	
 }
@@ -0,0 +1,186 @@
+package database;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Write-behind queue: callers enqueue rows and return immediately, a single writer thread drains
+// them in batches, each batch in one transaction. A full queue blocks the caller (backpressure) in
+// submit(); offer() drops the row instead, for writers that must never wait.
+public class BatchWriter<T> {
+
+	public interface BatchSink<T> {
+		void write(Connection conn, List<T> batch) throws SQLException;
+
+		// Called on the writer thread with a batch that was rolled back and dropped.
+		default void failed(List<T> batch) {
+		}
+	}
+
+	private final String name;
+	private final BlockingQueue<T> queue;
+	private final int batchSize;
+	private final long flushIntervalMillis;
+	private final BatchSink<T> sink;
+	private final Thread writer;
+	private volatile boolean running = true;
+
+	private final AtomicLong submitted = new AtomicLong();
+	private final AtomicLong completed = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final ReentrantLock progressLock = new ReentrantLock();
+	private final Condition progress = progressLock.newCondition();
+
+	public BatchWriter(String name, int capacity, int batchSize, long flushIntervalMillis, BatchSink<T> sink) {
+		this.name = name;
+		this.queue = new ArrayBlockingQueue<>(Math.max(1, capacity));
+		this.batchSize = Math.max(1, batchSize);
+		this.flushIntervalMillis = Math.max(0, flushIntervalMillis);
+		this.sink = sink;
+		this.writer = new Thread(this::drainLoop, name);
+		this.writer.setDaemon(true);
+		this.writer.start();
+	}
+
+	public boolean submit(T item) {
+		if(!running) return false;
+		try {
+			queue.put(item);
+			submitted.incrementAndGet();
+			return true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	// Non-blocking: returns false (and counts a drop) if the queue is full or shut down.
+	public boolean offer(T item) {
+		if(!running || !queue.offer(item)) {
+			dropped.incrementAndGet();
+			return false;
+		}
+		submitted.incrementAndGet();
+		return true;
+	}
+
+	// Waits until everything submitted before this call has been written (or given up on).
+	public boolean awaitFlushed(long timeoutMillis) {
+		long target = submitted.get();
+		if(completed.get() >= target) return true;
+		long remaining = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		progressLock.lock();
+		try {
+			while(completed.get() < target) {
+				if(remaining <= 0) return false;
+				remaining = progress.awaitNanos(remaining);
+			}
+			return true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		} finally {
+			progressLock.unlock();
+		}
+	}
+
+	public void shutdown(long timeoutMillis) {
+		running = false;
+		writer.interrupt();
+		try {
+			writer.join(timeoutMillis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if(!queue.isEmpty()) {
+			System.err.println(name + ": " + queue.size() + " rows not written at shutdown");
+		}
+	}
+
+	public int queueDepth() {
+		return queue.size();
+	}
+
+	public long submittedCount() {
+		return submitted.get();
+	}
+
+	public long writtenCount() {
+		return completed.get() - failed.get();
+	}
+
+	public long failedCount() {
+		return failed.get();
+	}
+
+	public long droppedCount() {
+		return dropped.get();
+	}
+
+	private void drainLoop() {
+		List<T> batch = new ArrayList<>(batchSize);
+		while(running || !queue.isEmpty()) {
+			try {
+				T first = running ? queue.poll(1, TimeUnit.SECONDS) : queue.poll();
+				if(first == null) continue;
+				batch.add(first);
+				long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(flushIntervalMillis);
+				while(batch.size() < batchSize && running) {
+					queue.drainTo(batch, batchSize - batch.size());
+					long wait = deadline - System.nanoTime();
+					if(batch.size() >= batchSize || wait <= 0) break;
+					T next = queue.poll(wait, TimeUnit.NANOSECONDS);
+					if(next == null) break;
+					batch.add(next);
+				}
+			} catch (InterruptedException e) {
+				// shutdown() interrupts the writer; whatever is queued is drained below.
+			}
+			if(!running) queue.drainTo(batch, batchSize - batch.size());
+			if(!batch.isEmpty()) {
+				Thread.interrupted();
+				writeBatch(batch);
+				batch.clear();
+			}
+		}
+	}
+
+	private void writeBatch(List<T> batch) {
+		try(Connection conn = DatabaseManager.getConnection()) {
+			conn.setAutoCommit(false);
+			try {
+				sink.write(conn, batch);
+				conn.commit();
+			} catch (SQLException | RuntimeException e) {
+				conn.rollback();
+				throw e;
+			}
+		} catch (SQLException | RuntimeException e) {
+			// A bad row must not stop the writer: submit() would block once the queue filled up and
+			// awaitFlushed() callers would wait out their timeouts.
+			failed.addAndGet(batch.size());
+			System.err.println(name + " batch error (" + batch.size() + " rows dropped): "
+					+ (e instanceof SQLException ? e.getMessage() : e.toString()));
+			try {
+				sink.failed(batch);
+			} catch (RuntimeException callbackError) {
+				System.err.println(name + " batch error: failure callback threw " + callbackError);
+			}
+		}
+		completed.addAndGet(batch.size());
+		progressLock.lock();
+		try {
+			progress.signalAll();
+		} finally {
+			progressLock.unlock();
+		}
+	}
+}
@@ -0,0 +1,328 @@
+package database;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// Bounded pool of SQLite connections. Callers get a proxy whose close() hands the connection back,
+// and whose prepareStatement() reuses statements already compiled on that physical connection.
+public class ConnectionPool {
+
+	public interface ConnectionFactory {
+		Connection open() throws SQLException;
+	}
+
+	// Told about every execution of a statement prepared through the pool.
+	public interface StatementListener {
+		// Called once per compiled statement; whatever it returns is passed back on each execution.
+		Object prepared(String sql);
+
+		void executed(Object tag, long nanos);
+	}
+
+	public static class Stats {
+		public final int active;
+		public final int idle;
+		public final int maxSize;
+		public final long borrows;
+		public final long totalWaitNanos;
+		public final long maxWaitNanos;
+		public final long timeouts;
+		public final long statementHits;
+		public final long statementMisses;
+
+		Stats(int active, int idle, int maxSize, long borrows, long totalWaitNanos, long maxWaitNanos,
+				long timeouts, long statementHits, long statementMisses) {
+			this.active = active;
+			this.idle = idle;
+			this.maxSize = maxSize;
+			this.borrows = borrows;
+			this.totalWaitNanos = totalWaitNanos;
+			this.maxWaitNanos = maxWaitNanos;
+			this.timeouts = timeouts;
+			this.statementHits = statementHits;
+			this.statementMisses = statementMisses;
+		}
+
+		public double averageWaitMicros() {
+			return borrows == 0 ? 0 : totalWaitNanos / 1000.0 / borrows;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("active=%d idle=%d max=%d borrows=%d avgWait=%.1fus maxWait=%.1fus timeouts=%d stmtHits=%d stmtMisses=%d",
+					active, idle, maxSize, borrows, averageWaitMicros(), maxWaitNanos / 1000.0,
+					timeouts, statementHits, statementMisses);
+		}
+	}
+
+	private final ConnectionFactory factory;
+	private final int maxSize;
+	private final int statementCacheSize;
+	private final long borrowTimeoutMillis;
+	private final Semaphore permits;
+	private final ConcurrentLinkedDeque<Physical> idle = new ConcurrentLinkedDeque<>();
+
+	private final AtomicInteger active = new AtomicInteger();
+	private final LongAdder borrows = new LongAdder();
+	private final LongAdder totalWaitNanos = new LongAdder();
+	private final AtomicLong maxWaitNanos = new AtomicLong();
+	private final LongAdder timeouts = new LongAdder();
+	private final LongAdder statementHits = new LongAdder();
+	private final LongAdder statementMisses = new LongAdder();
+	private volatile StatementListener listener;
+
+	public ConnectionPool(ConnectionFactory factory, int maxSize, int statementCacheSize, long borrowTimeoutMillis) {
+		this.factory = factory;
+		this.maxSize = Math.max(1, maxSize);
+		this.statementCacheSize = Math.max(0, statementCacheSize);
+		this.borrowTimeoutMillis = borrowTimeoutMillis;
+		this.permits = new Semaphore(this.maxSize, true);
+	}
+
+	public Connection borrow() throws SQLException {
+		long start = System.nanoTime();
+		try {
+			if(!permits.tryAcquire(borrowTimeoutMillis, TimeUnit.MILLISECONDS)) {
+				timeouts.increment();
+				throw new SQLException("Timed out after " + borrowTimeoutMillis + " ms waiting for a database connection");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted while waiting for a database connection", e);
+		}
+		long waited = System.nanoTime() - start;
+		borrows.increment();
+		totalWaitNanos.add(waited);
+		maxWaitNanos.accumulateAndGet(waited, Math::max);
+
+		Physical physical = idle.pollFirst();
+		try {
+			if(physical == null || physical.connection.isClosed()) {
+				physical = new Physical(factory.open());
+			}
+		} catch (SQLException e) {
+			permits.release();
+			throw e;
+		}
+		active.incrementAndGet();
+		return physical.lease();
+	}
+
+	private void release(Physical physical) {
+		boolean healthy;
+		try {
+			if(!physical.connection.getAutoCommit()) {
+				physical.connection.rollback();
+				physical.connection.setAutoCommit(true);
+			}
+			healthy = !physical.connection.isClosed();
+		} catch (SQLException e) {
+			healthy = false;
+		}
+		if(healthy) {
+			idle.offerFirst(physical);
+		} else {
+			physical.closeQuietly();
+		}
+		active.decrementAndGet();
+		permits.release();
+	}
+
+	public void setStatementListener(StatementListener listener) {
+		this.listener = listener;
+	}
+
+	public void shutdown() {
+		Physical physical;
+		while((physical = idle.pollFirst()) != null) {
+			physical.closeQuietly();
+		}
+	}
+
+	public Stats stats() {
+		return new Stats(active.get(), idle.size(), maxSize, borrows.sum(), totalWaitNanos.sum(),
+				maxWaitNanos.get(), timeouts.sum(), statementHits.sum(), statementMisses.sum());
+	}
+
+	// A physical connection is only ever used by the thread that borrowed it, so its statement
+	// cache needs no locking.
+	private final class Physical {
+		final Connection connection;
+		final Map<String, CachedStatement> statements = new LinkedHashMap<>(16, 0.75f, true);
+
+		Physical(Connection connection) {
+			this.connection = connection;
+		}
+
+		Connection lease() {
+			return (Connection) Proxy.newProxyInstance(ConnectionPool.class.getClassLoader(),
+					new Class<?>[] { Connection.class }, new Lease(this));
+		}
+
+		PreparedStatement prepare(String sql, int generatedKeys) throws SQLException {
+			String key = generatedKeys + ":" + sql;
+			CachedStatement cached = statements.get(key);
+			if(cached != null && !cached.inUse) {
+				statementHits.increment();
+				cached.inUse = true;
+				return cached.proxy;
+			}
+			statementMisses.increment();
+			PreparedStatement statement = generatedKeys == Statement.NO_GENERATED_KEYS
+					? connection.prepareStatement(sql)
+					: connection.prepareStatement(sql, generatedKeys);
+			if(cached != null || statementCacheSize == 0) {
+				return new CachedStatement(statement, sql, false).proxy;
+			}
+			cached = new CachedStatement(statement, sql, true);
+			cached.inUse = true;
+			statements.put(key, cached);
+			if(statements.size() > statementCacheSize) {
+				Iterator<CachedStatement> eldest = statements.values().iterator();
+				while(eldest.hasNext() && statements.size() > statementCacheSize) {
+					CachedStatement candidate = eldest.next();
+					if(candidate.inUse) continue;
+					eldest.remove();
+					candidate.closeQuietly();
+				}
+			}
+			return cached.proxy;
+		}
+
+		void closeQuietly() {
+			for(CachedStatement cached : statements.values()) cached.closeQuietly();
+			statements.clear();
+			try {
+				connection.close();
+			} catch (SQLException ignored) {
+
+			}
+		}
+	}
+
+	// A statement handed out by prepareStatement(). Cached ones stay open when closed and are reused;
+	// the rest (cache disabled, or the cached copy is in use) are closed for real.
+	private final class CachedStatement implements InvocationHandler {
+		final PreparedStatement statement;
+		final PreparedStatement proxy;
+		final String sql;
+		final boolean cached;
+		boolean inUse;
+		// Listener tag for this statement, re-taken if the listener changes.
+		private StatementListener taggedBy;
+		private Object tag;
+
+		CachedStatement(PreparedStatement statement, String sql, boolean cached) {
+			this.statement = statement;
+			this.sql = sql;
+			this.cached = cached;
+			this.proxy = (PreparedStatement) Proxy.newProxyInstance(ConnectionPool.class.getClassLoader(),
+					new Class<?>[] { PreparedStatement.class }, this);
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			String name = method.getName();
+			switch (name) {
+			case "close":
+				if(!cached) {
+					statement.close();
+				} else if(inUse) {
+					inUse = false;
+					statement.clearParameters();
+				}
+				return null;
+			case "isClosed":
+				return cached ? !inUse : statement.isClosed();
+			default:
+				if(name.startsWith("execute")) return execute(method, args);
+				return forward(statement, method, args);
+			}
+		}
+
+		private Object execute(Method method, Object[] args) throws Throwable {
+			StatementListener l = listener;
+			if(l != null && taggedBy != l) {
+				tag = l.prepared(sql);
+				taggedBy = l;
+			}
+			StatementEvent event = new StatementEvent();
+			event.begin();
+			long start = System.nanoTime();
+			Object result = null;
+			try {
+				result = forward(statement, method, args);
+				return result;
+			} finally {
+				if(l != null) l.executed(tag, System.nanoTime() - start);
+				event.end();
+				if(event.shouldCommit()) {
+					event.sql = sql;
+					event.rows = StatementEvent.rows(result);
+					event.commit();
+				}
+			}
+		}
+
+		void closeQuietly() {
+			try {
+				statement.close();
+			} catch (SQLException ignored) {
+
+			}
+		}
+	}
+
+	private final class Lease implements InvocationHandler {
+		private final Physical physical;
+		private boolean closed;
+
+		Lease(Physical physical) {
+			this.physical = physical;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			String name = method.getName();
+			if(name.equals("close")) {
+				if(!closed) {
+					closed = true;
+					release(physical);
+				}
+				return null;
+			}
+			if(name.equals("isClosed")) return closed;
+			if(closed) throw new SQLException("Connection already returned to the pool");
+			if(name.equals("prepareStatement") && args.length == 1) {
+				return physical.prepare((String) args[0], Statement.NO_GENERATED_KEYS);
+			}
+			if(name.equals("prepareStatement") && args.length == 2 && args[1] instanceof Integer) {
+				return physical.prepare((String) args[0], (Integer) args[1]);
+			}
+			return forward(physical.connection, method, args);
+		}
+	}
+
+	private static Object forward(Object target, Method method, Object[] args) throws Throwable {
+		try {
+			return method.invoke(target, args);
+		} catch (InvocationTargetException e) {
+			throw e.getCause();
+		}
+	}
+}
@@ -2,12 +2,82 @@ package database;
 
 import java.sql.Connection;
 import java.sql.DriverManager;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class DatabaseManager {
 
-	private static final String DB_URL = "jdbc:sqlite:chatapp.db";
+	// Told when a DAO changes rows that other processes sharing the database keep copies of in memory.
+	public interface ChangeListener {
+		void friendsChanged(String username);
+
+		void membershipChanged(int roomId, int userId, boolean member);
+
+		// Retention archived or deleted message partitions.
+		void partitionsChanged();
+	}
+
+	// Journal mode and synchronous level; every pooled connection is opened with the same profile.
+	public enum Durability {
+		// WAL, fsync on every commit: nothing committed is lost on power failure.
+		SAFE("WAL", "FULL"),
+		// WAL, fsync at checkpoints: a power failure can lose the last commits but never corrupts.
+		BALANCED("WAL", "NORMAL"),
+		// WAL, no fsync: the OS decides when data reaches disk. For benchmarks and throwaway data.
+		FAST("WAL", "OFF"),
+		// Rollback journal, the SQLite default the server used before: writers block readers.
+		LEGACY("DELETE", "FULL");
+
+		final String journalMode;
+		final String synchronous;
+
+		Durability(String journalMode, String synchronous) {
+			this.journalMode = journalMode;
+			this.synchronous = synchronous;
+		}
+
+		boolean wal() {
+			return "WAL".equals(journalMode);
+		}
+	}
+
+	public static class CheckpointStats {
+		public final long checkpoints;
+		public final long busy;
+		public final long framesCheckpointed;
+		public final int lastWalFrames;
+
+		CheckpointStats(long checkpoints, long busy, long framesCheckpointed, int lastWalFrames) {
+			this.checkpoints = checkpoints;
+			this.busy = busy;
+			this.framesCheckpointed = framesCheckpointed;
+			this.lastWalFrames = lastWalFrames;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("checkpoints=%d busy=%d frames=%d lastWalFrames=%d",
+					checkpoints, busy, framesCheckpointed, lastWalFrames);
+		}
+	}
+
+	// -Dchat.db.path picks the database file (default chatapp.db in the working directory).
+	private static final String DB_URL = "jdbc:sqlite:" + System.getProperty("chat.db.path", "chatapp.db");
+	// -Dchat.db.durability=SAFE|BALANCED|FAST|LEGACY; the remaining pragmas apply to every profile.
+	private static final Durability DURABILITY = Durability.valueOf(
+			System.getProperty("chat.db.durability", "BALANCED").trim().toUpperCase());
+	private static final long MMAP_BYTES = Long.getLong("chat.db.mmapMB", 256L) * 1024 * 1024;
+	private static final int CACHE_KB = Integer.getInteger("chat.db.cacheKB", 16 * 1024);
+	private static final int BUSY_TIMEOUT_MS = Integer.getInteger("chat.db.busyTimeoutMs", 5000);
+	// WAL pages after which a commit checkpoints on its own; the periodic checkpoint keeps it from getting there.
+	private static final int AUTOCHECKPOINT_PAGES = Integer.getInteger("chat.db.autocheckpointPages", 1000);
+	private static final long CHECKPOINT_MS = Long.getLong("chat.db.checkpointMs", 30_000L);
 	static {
 		try {
 			Class.forName("org.sqlite.JDBC");
@@ -16,10 +86,115 @@ public class DatabaseManager {
 		}
 	}
 	
+	// Shared by every DAO; -Dchat.db.poolSize / chat.db.statementCache / chat.db.borrowTimeoutMs tune it.
+	private static final ConnectionPool POOL = new ConnectionPool(DatabaseManager::openConnection,
+			Integer.getInteger("chat.db.poolSize", 8),
+			Integer.getInteger("chat.db.statementCache", 32),
+			Long.getLong("chat.db.borrowTimeoutMs", 5000L));
+	
 	public static Connection getConnection() throws SQLException{
+		return POOL.borrow();
+	}
+	
+	public static ConnectionPool.Stats poolStats() {
+		return POOL.stats();
+	}
+	
+	// Times every statement executed through the pool (the server's metrics install one).
+	public static void setStatementListener(ConnectionPool.StatementListener listener) {
+		POOL.setStatementListener(listener);
+	}
+	
+	private static volatile ChangeListener changeListener;
+
+	// Cluster nodes install one to tell each other which cached rows to drop.
+	public static void setChangeListener(ChangeListener listener) {
+		changeListener = listener;
+	}
+
+	static ChangeListener changeListener() {
+		return changeListener;
+	}
+
+	private static final ReentrantLock checkpointLock = new ReentrantLock();
+	private static ScheduledExecutorService checkpointer;
+	private static final LongAdder checkpoints = new LongAdder();
+	private static final LongAdder checkpointsBusy = new LongAdder();
+	private static final LongAdder framesCheckpointed = new LongAdder();
+	private static volatile int lastWalFrames;
+	
+	public static Durability durability() {
+		return DURABILITY;
+	}
+	
+	// Starts the periodic PASSIVE checkpoint (WAL profiles only, -Dchat.db.checkpointMs=0 disables).
+	// Checkpointing off the request path keeps the WAL short without a commit paying for it.
+	public static void startCheckpointing() {
+		if(!DURABILITY.wal() || CHECKPOINT_MS <= 0) return;
+		checkpointLock.lock();
+		try {
+			if(checkpointer != null) return;
+			checkpointer = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread t = new Thread(r, "DbCheckpointer");
+				t.setDaemon(true);
+				return t;
+			});
+			checkpointer.scheduleWithFixedDelay(() -> checkpoint(false), CHECKPOINT_MS, CHECKPOINT_MS, TimeUnit.MILLISECONDS);
+		} finally {
+			checkpointLock.unlock();
+		}
+	}
+	
+	// Copies the WAL back into the database. PASSIVE never waits for readers or writers; TRUNCATE
+	// waits for them and empties the WAL file. Returns false if the checkpoint could not finish.
+	public static boolean checkpoint(boolean truncate) {
+		if(!DURABILITY.wal()) return true;
+		try (Connection conn = getConnection();
+			 Statement st = conn.createStatement();
+			 ResultSet resultSet = st.executeQuery("PRAGMA wal_checkpoint(" + (truncate ? "TRUNCATE" : "PASSIVE") + ")")) {
+			if(!resultSet.next()) return false;
+			boolean busy = resultSet.getInt(1) != 0;
+			checkpoints.increment();
+			if(busy) checkpointsBusy.increment();
+			lastWalFrames = resultSet.getInt(2);
+			framesCheckpointed.add(Math.max(0, resultSet.getInt(3)));
+			return !busy;
+		} catch (SQLException e) {
+			System.err.println("checkpoint error: " + e.getMessage());
+			return false;
+		}
+	}
+	
+	public static CheckpointStats checkpointStats() {
+		return new CheckpointStats(checkpoints.sum(), checkpointsBusy.sum(), framesCheckpointed.sum(), lastWalFrames);
+	}
+	
+	public static void shutdown() {
+		checkpointLock.lock();
+		try {
+			if(checkpointer != null) {
+				checkpointer.shutdownNow();
+				checkpointer = null;
+			}
+		} finally {
+			checkpointLock.unlock();
+		}
+		checkpoint(true);
+		POOL.shutdown();
+	}
+	
+	private static Connection openConnection() throws SQLException {
 		Connection conn = DriverManager.getConnection(DB_URL);
 		try (Statement st = conn.createStatement()) {
 		    st.execute("PRAGMA foreign_keys = ON");
+		    // busy_timeout first, so switching the journal mode waits out another connection.
+		    st.execute("PRAGMA busy_timeout = " + BUSY_TIMEOUT_MS);
+		    st.execute("PRAGMA journal_mode = " + DURABILITY.journalMode);
+		    st.execute("PRAGMA synchronous = " + DURABILITY.synchronous);
+		    st.execute("PRAGMA mmap_size = " + MMAP_BYTES);
+		    // Negative means KiB rather than pages.
+		    st.execute("PRAGMA cache_size = -" + CACHE_KB);
+		    if(DURABILITY.wal()) st.execute("PRAGMA wal_autocheckpoint = " + AUTOCHECKPOINT_PAGES);
 		}
 		return conn;
 
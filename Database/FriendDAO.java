@@ -6,9 +6,17 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class FriendDAO {
+	
+	// Friend lists of users the server currently cares about (online users), keyed by username.
+	// Any friendship change bumps the generation so a load racing with it is not cached.
+	private static final ConcurrentHashMap<String, List<String>> friendCache = new ConcurrentHashMap<>();
+	private static final AtomicLong friendCacheGeneration = new AtomicLong();
 
 	public static void initFriendsTable() {
 		String friendshipCommand =
@@ -138,6 +146,8 @@ public class FriendDAO {
 					 pStatement.executeUpdate();
 				 }
 				 conn.commit();
+				 friendsChanged(toUser);
+				 friendsChanged(fromUser);
 				 return true;
 			 } catch (SQLException e) {
 				 conn.rollback();
@@ -174,7 +184,10 @@ public class FriendDAO {
 		Integer userId = UserDAO.getUserId(user);
 		Integer friendId = UserDAO.getUserId(friend);
 		if(userId == null || friendId == null) return false;
-		return insertEdge(userId, friendId) && insertEdge(friendId, userId);
+		boolean added = insertEdge(userId, friendId) && insertEdge(friendId, userId);
+		friendsChanged(user);
+		friendsChanged(friend);
+		return added;
 	}
 	
 	public static boolean removeFriend(String user, String friend) {
@@ -183,7 +196,32 @@ public class FriendDAO {
 		Integer userId = UserDAO.getUserId(user);
 		Integer friendId = UserDAO.getUserId(friend);
 		if(userId == null || friendId == null) return false;
-		return deleteEdge(userId, friendId) && deleteEdge(friendId, userId);
+		boolean removed = deleteEdge(userId, friendId) && deleteEdge(friendId, userId);
+		friendsChanged(user);
+		friendsChanged(friend);
+		return removed;
+	}
+	
+	// Read-only, sorted friend list served from memory after the first load.
+	public static List<String> getCachedFriends(String user) {
+		if(user == null) return Collections.emptyList();
+		List<String> cached = friendCache.get(user);
+		if(cached != null) return cached;
+		long generation = friendCacheGeneration.get();
+		List<String> loaded = Collections.unmodifiableList(getFriends(user));
+		if(friendCacheGeneration.get() == generation) friendCache.putIfAbsent(user, loaded);
+		return loaded;
+	}
+	
+	public static void invalidateFriendCache(String user) {
+		friendCacheGeneration.incrementAndGet();
+		if(user != null) friendCache.remove(user);
+	}
+	
+	private static void friendsChanged(String user) {
+		invalidateFriendCache(user);
+		DatabaseManager.ChangeListener listener = DatabaseManager.changeListener();
+		if(listener != null) listener.friendsChanged(user);
 	}
 	
 	public static List<String> getFriends(String user){
@@ -0,0 +1,111 @@
+package database;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+// Bounded name -> id cache for rows that are never renamed (users, rooms). Only hits are cached, so
+// a name registered later is looked up again. Eviction is sampled LRU: when over capacity a few
+// entries are inspected and the least recently used one is dropped, which keeps gets lock-free.
+public class IdCache {
+
+	private static final int EVICTION_SAMPLES = 8;
+
+	public static class Stats {
+		public final long hits;
+		public final long misses;
+		public final long evictions;
+		public final int size;
+
+		Stats(long hits, long misses, long evictions, int size) {
+			this.hits = hits;
+			this.misses = misses;
+			this.evictions = evictions;
+			this.size = size;
+		}
+
+		public double hitRatio() {
+			long total = hits + misses;
+			return total == 0 ? 0 : (double) hits / total;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("size=%d hits=%d misses=%d evictions=%d hitRatio=%.3f",
+					size, hits, misses, evictions, hitRatio());
+		}
+	}
+
+	private static final class Entry {
+		final int id;
+		volatile long lastAccess;
+
+		Entry(int id, long lastAccess) {
+			this.id = id;
+			this.lastAccess = lastAccess;
+		}
+	}
+
+	private final int capacity;
+	private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+
+	public IdCache(int capacity) {
+		this.capacity = Math.max(1, capacity);
+	}
+
+	public Integer get(String name) {
+		if(name == null) return null;
+		Entry entry = entries.get(name);
+		if(entry == null) {
+			misses.increment();
+			return null;
+		}
+		hits.increment();
+		entry.lastAccess = System.nanoTime();
+		return entry.id;
+	}
+
+	public void put(String name, int id) {
+		if(name == null) return;
+		entries.put(name, new Entry(id, System.nanoTime()));
+		while(entries.size() > capacity) {
+			evictOne();
+		}
+	}
+
+	public void invalidate(String name) {
+		if(name != null) entries.remove(name);
+	}
+
+	public void invalidateAll() {
+		entries.clear();
+	}
+
+	public Stats stats() {
+		return new Stats(hits.sum(), misses.sum(), evictions.sum(), entries.size());
+	}
+
+	private void evictOne() {
+		String victim = null;
+		long oldest = Long.MAX_VALUE;
+		Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+		// Start at a random offset so the sample is not always the same few hash bins.
+		for(int skip = ThreadLocalRandom.current().nextInt(32); skip > 0 && it.hasNext(); skip--) it.next();
+		if(!it.hasNext()) it = entries.entrySet().iterator();
+		for(int i = 0; i < EVICTION_SAMPLES && it.hasNext(); i++) {
+			Map.Entry<String, Entry> candidate = it.next();
+			if(candidate.getValue().lastAccess < oldest) {
+				oldest = candidate.getValue().lastAccess;
+				victim = candidate.getKey();
+			}
+		}
+		if(victim != null && entries.remove(victim) != null) {
+			evictions.increment();
+		}
+	}
+}
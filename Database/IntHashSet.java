@@ -0,0 +1,100 @@
+package database;
+
+// Open-addressing set of positive ints (database ids) with linear probing. 0 marks an empty slot,
+// which is safe because SQLite AUTOINCREMENT ids start at 1. Not thread-safe on its own.
+final class IntHashSet {
+
+	private static final int EMPTY = 0;
+
+	private int[] table;
+	private int size;
+
+	IntHashSet() {
+		this(8);
+	}
+
+	IntHashSet(int expected) {
+		int capacity = 8;
+		while(capacity < expected * 2) capacity <<= 1;
+		table = new int[capacity];
+	}
+
+	int size() {
+		return size;
+	}
+
+	int capacity() {
+		return table.length;
+	}
+
+	boolean contains(int value) {
+		if(value == EMPTY) return false;
+		int[] t = table;
+		int mask = t.length - 1;
+		int slot = mix(value) & mask;
+		for(int probes = 0; probes < t.length; probes++) {
+			int current = t[slot];
+			if(current == value) return true;
+			if(current == EMPTY) return false;
+			slot = (slot + 1) & mask;
+		}
+		return false;
+	}
+
+	boolean add(int value) {
+		if(value == EMPTY) throw new IllegalArgumentException("id must be non-zero");
+		if((size + 1) * 2 > table.length) resize(table.length * 2);
+		int mask = table.length - 1;
+		int slot = mix(value) & mask;
+		while(table[slot] != EMPTY) {
+			if(table[slot] == value) return false;
+			slot = (slot + 1) & mask;
+		}
+		table[slot] = value;
+		size++;
+		return true;
+	}
+
+	boolean remove(int value) {
+		if(value == EMPTY) return false;
+		int mask = table.length - 1;
+		int slot = mix(value) & mask;
+		while(table[slot] != value) {
+			if(table[slot] == EMPTY) return false;
+			slot = (slot + 1) & mask;
+		}
+		// Backward-shift deletion keeps probe chains intact without tombstones.
+		int gap = slot;
+		int next = (gap + 1) & mask;
+		while(table[next] != EMPTY) {
+			int home = mix(table[next]) & mask;
+			if(((next - home) & mask) >= ((next - gap) & mask)) {
+				table[gap] = table[next];
+				gap = next;
+			}
+			next = (next + 1) & mask;
+		}
+		table[gap] = EMPTY;
+		size--;
+		return true;
+	}
+
+	// Bytes held by the backing array plus the object headers.
+	long footprintBytes() {
+		return 16L + 4L * table.length + 32L;
+	}
+
+	private void resize(int newCapacity) {
+		int[] old = table;
+		table = new int[newCapacity];
+		size = 0;
+		for(int value : old) {
+			if(value != EMPTY) add(value);
+		}
+	}
+
+	private static int mix(int value) {
+		int h = value * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+}
@@ -0,0 +1,108 @@
+package database;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.StampedLock;
+
+// In-memory copy of room_members (room id -> set of user ids). RoomDAO keeps it in step with every
+// insert/delete so membership checks on the message path never reach the database.
+public class MembershipIndex {
+
+	public static class Stats {
+		public final int rooms;
+		public final long memberships;
+		public final long footprintBytes;
+		public final int largestRoom;
+
+		Stats(int rooms, long memberships, long footprintBytes, int largestRoom) {
+			this.rooms = rooms;
+			this.memberships = memberships;
+			this.footprintBytes = footprintBytes;
+			this.largestRoom = largestRoom;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("rooms=%d memberships=%d largestRoom=%d footprint=%.1fKB",
+					rooms, memberships, largestRoom, footprintBytes / 1024.0);
+		}
+	}
+
+	private static final class Members {
+		final StampedLock lock = new StampedLock();
+		final IntHashSet ids = new IntHashSet();
+	}
+
+	// Rough per-room overhead: map node, boxed key, Members, StampedLock and the set header.
+	private static final long PER_ROOM_OVERHEAD = 160;
+
+	private final ConcurrentHashMap<Integer, Members> rooms = new ConcurrentHashMap<>();
+	private volatile boolean loaded;
+
+	public boolean isLoaded() {
+		return loaded;
+	}
+
+	void markLoaded() {
+		loaded = true;
+	}
+
+	void clear() {
+		rooms.clear();
+		loaded = false;
+	}
+
+	public boolean contains(int roomId, int userId) {
+		Members members = rooms.get(roomId);
+		if(members == null) return false;
+		long stamp = members.lock.tryOptimisticRead();
+		boolean found = members.ids.contains(userId);
+		if(members.lock.validate(stamp)) return found;
+		stamp = members.lock.readLock();
+		try {
+			return members.ids.contains(userId);
+		} finally {
+			members.lock.unlockRead(stamp);
+		}
+	}
+
+	void add(int roomId, int userId) {
+		Members members = rooms.computeIfAbsent(roomId, r -> new Members());
+		long stamp = members.lock.writeLock();
+		try {
+			members.ids.add(userId);
+		} finally {
+			members.lock.unlockWrite(stamp);
+		}
+	}
+
+	void remove(int roomId, int userId) {
+		Members members = rooms.get(roomId);
+		if(members == null) return;
+		long stamp = members.lock.writeLock();
+		try {
+			members.ids.remove(userId);
+		} finally {
+			members.lock.unlockWrite(stamp);
+		}
+	}
+
+	public Stats stats() {
+		long memberships = 0;
+		long bytes = 0;
+		int largest = 0;
+		int count = 0;
+		for(Members members : rooms.values()) {
+			long stamp = members.lock.readLock();
+			try {
+				int size = members.ids.size();
+				memberships += size;
+				largest = Math.max(largest, size);
+				bytes += PER_ROOM_OVERHEAD + members.ids.footprintBytes();
+			} finally {
+				members.lock.unlockRead(stamp);
+			}
+			count++;
+		}
+		return new Stats(count, memberships, bytes, largest);
+	}
+}
@@ -6,8 +6,20 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class MessageDAO {
 
@@ -45,36 +57,515 @@ public class MessageDAO {
 		}
 	}
 	
-    public static void saveDM(String fromUser, String toUser, String body) {
-        Integer fromId = UserDAO.getUserId(fromUser);
-        Integer toId = UserDAO.getUserId(toUser);
-        if (fromId == null || toId == null) return;
-        String sqlCommand = "INSERT INTO messages(kind, from_id, to_id, body) VALUES('DM', ?, ?, ?)";
-        try (Connection conn = DatabaseManager.getConnection();
-             PreparedStatement pStatement = conn.prepareStatement(sqlCommand)) {
-             pStatement.setInt(1, fromId);
-             pStatement.setInt(2, toId);
-             pStatement.setString(3, body);
-             pStatement.executeUpdate();
-        } catch (SQLException e) {
-             System.err.println("saveDM error: " + e.getMessage());
-        }
+    private static final class Pending {
+    	final long id;
+    	final boolean room;
+    	final String fromUser;
+    	final String target;
+    	final String body;
+    	final String createdAt;
+    	
+    	Pending(long id, boolean room, String fromUser, String target, String body, String createdAt) {
+    		this.id = id;
+    		this.room = room;
+    		this.fromUser = fromUser;
+    		this.target = target;
+    		this.body = body;
+    		this.createdAt = createdAt;
+    	}
+    }
+    
+    // One history row. Partitions, archives and the recent cache all produce these, newest first.
+    static final class HistoryRow {
+    	final long id;
+    	final String from;
+    	final String body;
+    	final String createdAt;
+    	
+    	HistoryRow(long id, String from, String body, String createdAt) {
+    		this.id = id;
+    		this.from = from;
+    		this.body = body;
+    		this.createdAt = createdAt;
+    	}
+    }
+    
+    // History page queries, run against each partition table (%s); QueryPlanCheck explains them.
+    // Indexes come from SchemaMigrations (legacy messages table) and MessagePartitions (monthly tables).
+    static final String ROOM_PAGE_SQL = "SELECT m.id, u.username, m.body, m.created_at " +
+    									"FROM %s m " +
+    									"JOIN users u ON u.id = m.from_id " +
+    									"WHERE m.kind='ROOM' AND m.room_id=? AND m.id<? " +
+    									"ORDER BY m.id DESC LIMIT ?";
+    static final String DM_PAGE_SQL = "SELECT m.id, u.username, m.body, m.created_at " +
+    								  "FROM %s m " +
+    								  "JOIN users u ON u.id = m.from_id " +
+    								  "WHERE m.dm_key=? AND m.id<? " +
+    								  "ORDER BY m.id DESC LIMIT ?";
+    
+    private static final int ROWS_PER_INSERT = 100;
+    private static final long HISTORY_FLUSH_WAIT_MS = 1000;
+    private static final DateTimeFormatter SQLITE_TIMESTAMP =
+    		DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss").withZone(ZoneOffset.UTC);
+    // Ids are handed out here rather than by AUTOINCREMENT so a message has its id before it is written.
+    private static final AtomicLong lastId = new AtomicLong(-1);
+    private static final ReentrantLock seedLock = new ReentrantLock();
+    
+    // -Dchat.persist.queueCapacity / chat.persist.batchSize / chat.persist.flushMs tune the write-behind queue.
+    private static final BatchWriter<Pending> WRITER = new BatchWriter<>("MessageWriter",
+    		Integer.getInteger("chat.persist.queueCapacity", 10_000),
+    		Integer.getInteger("chat.persist.batchSize", 200),
+    		Long.getLong("chat.persist.flushMs", 50L),
+    		new BatchWriter.BatchSink<Pending>() {
+    			@Override
+    			public void write(Connection conn, List<Pending> batch) throws SQLException {
+    				writeBatch(conn, batch);
+    			}
+
+    			@Override
+    			public void failed(List<Pending> batch) {
+    				forgetFailed(batch);
+    			}
+    		});
+    
+    // Newest messages of recently read conversations; -Dchat.cache.recentPerConversation=0 turns it off.
+    private static final int RECENT_PER_CONVERSATION = Integer.getInteger("chat.cache.recentPerConversation", 200);
+    private static final RecentMessageCache RECENT = new RecentMessageCache(RECENT_PER_CONVERSATION,
+    		Long.getLong("chat.cache.recentMB", 64L) * 1024 * 1024);
+    private static volatile boolean recentEnabled = RECENT_PER_CONVERSATION > 0;
+    // Set by shareDatabase(): ids are handed out in the residue class idOffset modulo idStride.
+    private static volatile int idStride = 1;
+    private static volatile int idOffset = 0;
+    
+    private static long nextId() {
+    	if(lastId.get() < 0) {
+    		seedLock.lock();
+    		try {
+    			if(lastId.get() < 0) lastId.set(loadMaxId());
+    		} finally {
+    			seedLock.unlock();
+    		}
+    	}
+    	if(idStride == 1) return lastId.incrementAndGet();
+    	return lastId.updateAndGet(MessageDAO::nextOwnId);
+    }
+    
+    private static long nextOwnId(long last) {
+    	long next = last + 1;
+    	long behind = Math.floorMod(next - idOffset, (long) idStride);
+    	return behind == 0 ? next : next + idStride - behind;
+    }
+    
+    // Other processes (cluster nodes) write the same message tables. Each node takes the ids equal to
+    // node modulo nodes, and the recent-message cache is turned off since it would miss their messages.
+    public static void shareDatabase(int nodes, int node) {
+    	if(nodes < 1 || node < 0 || node >= nodes) throw new IllegalArgumentException("node " + node + " of " + nodes);
+    	idOffset = node;
+    	idStride = nodes;
+    	MessagePartitions.shareDatabase();
+    	recentEnabled = false;
+    	RECENT.invalidateAll();
+    }
+    
+    // An id another node handed out; later ids from this one sort after it.
+    public static void observeId(long id) {
+    	if(id > 0) lastId.accumulateAndGet(id, Math::max);
+    }
+    
+    public static long lastIssuedId() {
+    	return lastId.get();
+    }
+    
+    private static long loadMaxId() {
+    	// Partitions record their highest id, archived and deleted ones included.
+    	String sqlCommand = "SELECT MAX(v) FROM (" +
+    						"SELECT MAX(id) AS v FROM messages " +
+    						"UNION ALL SELECT seq FROM sqlite_sequence WHERE name = 'messages' " +
+    						"UNION ALL SELECT MAX(max_id) FROM message_partitions)";
+    	try (Connection conn = DatabaseManager.getConnection();
+    		 PreparedStatement pStatement = conn.prepareStatement(sqlCommand);
+    		 ResultSet resultSet = pStatement.executeQuery()) {
+    		 return resultSet.next() ? resultSet.getLong(1) : 0;
+    	} catch (SQLException e) {
+    		System.err.println("loadMaxId error: " + e.getMessage());
+    		return 0;
+    	}
+    }
+    
+    // Queues the message for the background writer and returns its id without touching the database.
+    public static long saveDM(String fromUser, String toUser, String body) {
+        return enqueue(false, fromUser, toUser, body);
     }
 	
-    public static void saveRoom(String fromUser, String roomName, String body) {
-        Integer fromId = UserDAO.getUserId(fromUser);
-        Integer roomId = RoomDAO.getRoomId(roomName);
-        if (fromId == null || roomId == null) return;
-        String sqlCommand = "INSERT INTO messages(kind, room_id, from_id, body) VALUES('ROOM', ?, ?, ?)";
-        try (Connection conn = DatabaseManager.getConnection();
-             PreparedStatement pStatement = conn.prepareStatement(sqlCommand)) {
-             pStatement.setInt(1, roomId);
-             pStatement.setInt(2, fromId);
-             pStatement.setString(3, body);
-             pStatement.executeUpdate();
-        } catch (SQLException e) {
-             System.err.println("saveRoom error: " + e.getMessage());
-        }
+    public static long saveRoom(String fromUser, String roomName, String body) {
+        return enqueue(true, fromUser, roomName, body);
+    }
+    
+    private static long enqueue(boolean room, String fromUser, String target, String body) {
+    	if (fromUser == null || target == null || body == null) return 0;
+    	long id = nextId();
+    	String createdAt = SQLITE_TIMESTAMP.format(Instant.now());
+    	if (!WRITER.submit(new Pending(id, room, fromUser, target, body, createdAt))) {
+    		System.err.println((room ? "saveRoom" : "saveDM") + " error: message writer is shut down");
+    		return 0;
+    	}
+    	remember(room, fromUser, target, new HistoryRow(id, fromUser, body, createdAt));
+    	return id;
+    }
+    
+    // Appends to the conversation's ring if it has one; cold conversations are left alone.
+    private static void remember(boolean room, String fromUser, String target, HistoryRow row) {
+    	if (!recentEnabled) return;
+    	Long key = cacheKey(room, fromUser, target);
+    	if (key == null) return;
+    	RecentMessageCache.Conversation conversation = RECENT.peek(key);
+    	if (conversation == null) return;
+    	conversation.append(row);
+    	RECENT.enforceBudget();
+    }
+    
+    // remember() put these rows in their rings when they were queued; they never reached the table, so the
+    // rings would keep serving them. Dropping the ring makes the next read warm it from the database.
+    private static void forgetFailed(List<Pending> batch) {
+    	if (!recentEnabled) return;
+    	Set<Long> keys = new HashSet<>();
+    	for (Pending p : batch) {
+    		Long key = cacheKey(p.room, p.fromUser, p.target);
+    		if (key != null && keys.add(key)) RECENT.invalidate(key);
+    	}
+    }
+    
+    // Rooms by room id, DMs by conversation key; a DM key is always >= 2^32, so they never collide.
+    private static Long cacheKey(boolean room, String fromUser, String target) {
+    	if (room) {
+    		Integer roomId = RoomDAO.getRoomId(target);
+    		return roomId == null ? null : (long) roomId;
+    	}
+    	Integer fromId = UserDAO.getUserId(fromUser);
+    	Integer toId = UserDAO.getUserId(target);
+    	return fromId == null || toId == null ? null : conversationKey(fromId, toId);
+    }
+    
+    // Rows older than beforeId, newest first, from memory; null when the database has to answer.
+    // The first read of a conversation loads its newest rows; after that saves keep it current.
+    private static List<HistoryRow> recentPage(boolean room, long key, long beforeId, int limit) {
+    	if (!recentEnabled) return null;
+    	RecentMessageCache.Conversation conversation = RECENT.open(key);
+    	if (!conversation.isWarm() && !warm(conversation, room, key)) {
+    		RECENT.recordMiss();
+    		return null;
+    	}
+    	List<HistoryRow> rows = conversation.page(beforeId, limit);
+    	if (rows == null) RECENT.recordMiss();
+    	else RECENT.recordHit();
+    	return rows;
+    }
+    
+    private static boolean warm(RecentMessageCache.Conversation conversation, boolean room, long key) {
+    	conversation.loadLock.lock();
+    	try {
+    		if (conversation.isWarm()) return true;
+    		// Saves queued before the ring existed are not in it; they must be in the table first.
+    		if (!awaitPersisted(HISTORY_FLUSH_WAIT_MS)) return false;
+    		List<HistoryRow> rows;
+    		try {
+    			rows = readPage(room, key, Long.MAX_VALUE, RECENT_PER_CONVERSATION);
+    		} catch (SQLException e) {
+    			System.err.println("warmRecent error: " + e.getMessage());
+    			return false;
+    		}
+    		conversation.warm(rows, rows.size() < RECENT_PER_CONVERSATION);
+    		RECENT.enforceBudget();
+    		return true;
+    	} finally {
+    		conversation.loadLock.unlock();
+    	}
+    }
+    
+    public static RecentMessageCache.Stats recentCacheStats() {
+    	return RECENT.stats();
+    }
+    
+    // Retention deleted messages that rings may still hold.
+    static void forgetRecent() {
+    	RECENT.invalidateAll();
+    }
+    
+    private static void writeBatch(Connection conn, List<Pending> batch) throws SQLException {
+    	// Grouped by monthly partition: one group normally, two for a batch that straddles a month end.
+    	// Partitions are looked up (and created) before the first insert of this transaction.
+    	Map<MessagePartitions.Partition, List<Object[]>> byPartition = new LinkedHashMap<>();
+    	List<Object[]> searchRows = new ArrayList<>(SearchDAO.ENABLED ? batch.size() : 0);
+    	// Lookups run on this connection: with a pool of one, borrowing another would wait on it.
+    	for (Pending p : batch) {
+    		Integer fromId = UserDAO.getUserId(conn, p.fromUser);
+    		Integer roomId = p.room ? RoomDAO.getRoomId(conn, p.target) : null;
+    		Integer toId = p.room ? null : UserDAO.getUserId(conn, p.target);
+    		if (fromId == null || (p.room ? roomId == null : toId == null)) continue;
+    		Long dmKey = p.room ? null : conversationKey(fromId, toId);
+    		MessagePartitions.Partition partition = MessagePartitions.forMonth(conn, MessagePartitions.monthOf(p.createdAt));
+    		byPartition.computeIfAbsent(partition, k -> new ArrayList<>())
+    				.add(new Object[] { p.id, p.room ? "ROOM" : "DM", roomId, fromId, toId, dmKey, p.body, p.createdAt });
+    		if (SearchDAO.ENABLED) {
+    			searchRows.add(new Object[] { p.id, p.room ? "ROOM" : "DM", roomId, fromId, toId, p.fromUser, p.target, p.body, p.createdAt });
+    		}
+    	}
+    	for (Map.Entry<MessagePartitions.Partition, List<Object[]>> entry : byPartition.entrySet()) {
+    		insertRows(conn, entry.getKey(), entry.getValue());
+    	}
+    	SearchDAO.index(conn, searchRows);
+    }
+    
+    private static void insertRows(Connection conn, MessagePartitions.Partition partition, List<Object[]> rows) throws SQLException {
+    	long low = Long.MAX_VALUE;
+    	long high = 0;
+    	for (int start = 0; start < rows.size(); start += ROWS_PER_INSERT) {
+    		int count = Math.min(ROWS_PER_INSERT, rows.size() - start);
+    		StringBuilder sqlCommand = new StringBuilder("INSERT INTO ").append(partition.name)
+    				.append("(id, kind, room_id, from_id, to_id, dm_key, body, created_at) VALUES ");
+    		for (int i = 0; i < count; i++) {
+    			sqlCommand.append(i == 0 ? "(?, ?, ?, ?, ?, ?, ?, ?)" : ", (?, ?, ?, ?, ?, ?, ?, ?)");
+    		}
+    		try (PreparedStatement pStatement = conn.prepareStatement(sqlCommand.toString())) {
+    			int index = 1;
+    			for (int i = 0; i < count; i++) {
+    				Object[] row = rows.get(start + i);
+    				low = Math.min(low, (Long) row[0]);
+    				high = Math.max(high, (Long) row[0]);
+    				for (Object value : row) {
+    					pStatement.setObject(index++, value);
+    				}
+    			}
+    			pStatement.executeUpdate();
+    		}
+    	}
+    	MessagePartitions.recordWrite(conn, partition, low, high, rows.size());
+    }
+    
+    // Same value for (a, b) and (b, a); stored in messages.dm_key for every DM.
+    public static long conversationKey(int userA, int userB) {
+    	return ((long) Math.min(userA, userB) << 32) | Math.max(userA, userB);
+    }
+    
+    public static boolean awaitPersisted(long timeoutMillis) {
+    	return WRITER.awaitFlushed(timeoutMillis);
+    }
+    
+    public static int pendingWrites() {
+    	return WRITER.queueDepth();
+    }
+    
+    // Drains everything still queued; called from the server's shutdown hook.
+    public static void shutdown() {
+    	MessagePartitions.stopRetention();
+    	WRITER.shutdown(10_000);
+    }
+    
+    // Receives history rows newest first, straight from the result set.
+    public interface HistoryVisitor {
+    	void message(long id, String from, String body, String createdAt);
+    }
+    
+    public static final int MAX_PAGE_SIZE = 200;
+    
+    // One page of room history older than beforeId (0 = newest). Returns the cursor for the next
+    // page, or 0 when this page reached the beginning.
+    public static long streamRoomHistory(int roomId, long beforeId, int pageSize, HistoryVisitor visitor) {
+    	int limit = Math.max(1, Math.min(pageSize, MAX_PAGE_SIZE));
+    	List<HistoryRow> cached = recentPage(true, roomId, beforeId > 0 ? beforeId : Long.MAX_VALUE, limit);
+    	if (cached != null) return visitRows(cached, limit, visitor);
+    	awaitPersisted(HISTORY_FLUSH_WAIT_MS);
+    	try {
+    		return readPage(true, roomId, beforeId > 0 ? beforeId : Long.MAX_VALUE, limit, visitor);
+    	} catch (SQLException e) {
+    		System.err.println("streamRoomHistory error: " + e.getMessage());
+    		return 0;
+    	}
+    }
+    
+    // Same for the DM conversation between two users: one range of the (dm_key, id) index.
+    public static long streamDMHistory(int userA, int userB, long beforeId, int pageSize, HistoryVisitor visitor) {
+    	int limit = Math.max(1, Math.min(pageSize, MAX_PAGE_SIZE));
+    	List<HistoryRow> cached = recentPage(false, conversationKey(userA, userB),
+    			beforeId > 0 ? beforeId : Long.MAX_VALUE, limit);
+    	if (cached != null) return visitRows(cached, limit, visitor);
+    	awaitPersisted(HISTORY_FLUSH_WAIT_MS);
+    	try {
+    		return readPage(false, conversationKey(userA, userB), beforeId > 0 ? beforeId : Long.MAX_VALUE, limit, visitor);
+    	} catch (SQLException e) {
+    		System.err.println("streamDMHistory error: " + e.getMessage());
+    		return 0;
+    	}
+    }
+    
+    // Up to limit rows of one conversation older than beforeId, newest first, for the callers that
+    // keep the page (the recent cache, the List methods).
+    static List<HistoryRow> readPage(boolean room, long key, long beforeId, int limit) throws SQLException {
+    	List<HistoryRow> out = new ArrayList<>(limit);
+    	readPage(room, key, beforeId, limit, (id, from, body, createdAt) -> out.add(new HistoryRow(id, from, body, createdAt)));
+    	return out;
+    }
+    
+    // Streams up to limit rows older than beforeId to the visitor, newest first, and returns the
+    // cursor for the next page (0 when this one reached the beginning). Ids grow with time, so a
+    // page usually touches only the newest partition and goes straight from its result set to the
+    // visitor; older partitions are read one after another, and only partitions whose id ranges
+    // overlap are merged.
+    static long readPage(boolean room, long key, long beforeId, int limit, HistoryVisitor visitor) throws SQLException {
+    	Page page = new Page(visitor, beforeId, limit);
+    	MessagePartitions.all();
+    	Lock readLock = MessagePartitions.readLock();
+    	readLock.lock();
+    	try (Connection conn = DatabaseManager.getConnection()) {
+    		try {
+    			readPartitions(conn, MessagePartitions.current(conn), room, key, page);
+    		} catch (SQLException e) {
+    			if (!MessagePartitions.shared()) throw e;
+    			// Another node archived a partition between reading the registry and querying its table;
+    			// carry on below the last row sent.
+    			readPartitions(conn, MessagePartitions.current(conn), room, key, page);
+    		}
+    	} finally {
+    		readLock.unlock();
+    	}
+    	return page.remaining == 0 ? page.before : 0;
+    }
+    
+    // Counts what has been sent, so a read can resume below the last row.
+    private static final class Page implements HistoryVisitor {
+    	final HistoryVisitor visitor;
+    	long before;
+    	int remaining;
+    	
+    	Page(HistoryVisitor visitor, long before, int remaining) {
+    		this.visitor = visitor;
+    		this.before = before;
+    		this.remaining = remaining;
+    	}
+    	
+    	@Override
+    	public void message(long id, String from, String body, String createdAt) {
+    		before = id;
+    		remaining--;
+    		visitor.message(id, from, body, createdAt);
+    	}
+    }
+    
+    private static void readPartitions(Connection conn, List<MessagePartitions.Partition> partitions,
+    		boolean room, long key, Page page) throws SQLException {
+    	List<MessagePartitions.Partition> candidates = new ArrayList<>();
+    	for (MessagePartitions.Partition partition : partitions) {
+    		if (partition.minId < page.before && partition.minId <= partition.maxId) candidates.add(partition);
+    	}
+    	candidates.sort((a, b) -> Long.compare(b.maxId, a.maxId));
+    	int start = 0;
+    	while (start < candidates.size() && page.remaining > 0) {
+    		// Every partition after the group holds only rows older than all of the group's.
+    		int end = start + 1;
+    		long low = candidates.get(start).minId;
+    		while (end < candidates.size() && candidates.get(end).maxId > low) {
+    			low = Math.min(low, candidates.get(end).minId);
+    			end++;
+    		}
+    		if (end - start == 1) {
+    			readPartition(conn, candidates.get(start), room, key, page);
+    		} else {
+    			mergePartitions(conn, candidates.subList(start, end), room, key, page);
+    		}
+    		start = end;
+    	}
+    }
+    
+    private static void readPartition(Connection conn, MessagePartitions.Partition partition,
+    		boolean room, long key, Page page) throws SQLException {
+    	if (partition.archived()) {
+    		for (HistoryRow row : MessagePartitions.readArchive(partition, room, key, page.before, page.remaining)) {
+    			page.message(row.id, row.from, row.body, row.createdAt);
+    		}
+    		return;
+    	}
+    	try (PreparedStatement pStatement = pageStatement(conn, partition, room, key, page);
+    		 ResultSet resultSet = pStatement.executeQuery()) {
+    		while (resultSet.next()) {
+    			page.message(resultSet.getLong(1), resultSet.getString(2), resultSet.getString(3), resultSet.getString(4));
+    		}
+    	}
+    }
+    
+    // k-way merge of partitions with overlapping id ranges: one open cursor per partition and a
+    // heap of their current rows, so memory stays at one row per partition (archives: one window).
+    private static void mergePartitions(Connection conn, List<MessagePartitions.Partition> group,
+    		boolean room, long key, Page page) throws SQLException {
+    	List<PreparedStatement> statements = new ArrayList<>(group.size());
+    	PriorityQueue<MergeSource> heads = new PriorityQueue<>(group.size(), (a, b) -> Long.compare(b.current.id, a.current.id));
+    	try {
+    		for (MessagePartitions.Partition partition : group) {
+    			MergeSource source;
+    			if (partition.archived()) {
+    				source = new MergeSource(null,
+    						MessagePartitions.readArchive(partition, room, key, page.before, page.remaining).iterator());
+    			} else {
+    				PreparedStatement pStatement = pageStatement(conn, partition, room, key, page);
+    				statements.add(pStatement);
+    				source = new MergeSource(pStatement.executeQuery(), null);
+    			}
+    			if (source.advance()) heads.add(source);
+    		}
+    		while (page.remaining > 0 && !heads.isEmpty()) {
+    			MergeSource source = heads.poll();
+    			HistoryRow row = source.current;
+    			page.message(row.id, row.from, row.body, row.createdAt);
+    			if (source.advance()) heads.add(source);
+    		}
+    	} finally {
+    		for (PreparedStatement pStatement : statements) pStatement.close();
+    	}
+    }
+    
+    private static PreparedStatement pageStatement(Connection conn, MessagePartitions.Partition partition,
+    		boolean room, long key, Page page) throws SQLException {
+    	PreparedStatement pStatement = conn.prepareStatement(room ? partition.roomPageSql : partition.dmPageSql);
+    	pStatement.setLong(1, key);
+    	pStatement.setLong(2, page.before);
+    	pStatement.setInt(3, page.remaining);
+    	return pStatement;
+    }
+    
+    // One partition's rows in a merge, newest first: a live result set or an archive's window.
+    private static final class MergeSource {
+    	final ResultSet resultSet;
+    	final Iterator<HistoryRow> archived;
+    	HistoryRow current;
+    	
+    	MergeSource(ResultSet resultSet, Iterator<HistoryRow> archived) {
+    		this.resultSet = resultSet;
+    		this.archived = archived;
+    	}
+    	
+    	boolean advance() throws SQLException {
+    		if (archived != null) {
+    			current = archived.hasNext() ? archived.next() : null;
+    		} else {
+    			current = resultSet.next() ? new HistoryRow(resultSet.getLong(1), resultSet.getString(2),
+    					resultSet.getString(3), resultSet.getString(4)) : null;
+    		}
+    		return current != null;
+    	}
+    }
+    
+    private static long visitRows(List<HistoryRow> rows, int limit, HistoryVisitor visitor) {
+    	for (HistoryRow row : rows) visitor.message(row.id, row.from, row.body, row.createdAt);
+    	return rows.size() == limit ? rows.get(rows.size() - 1).id : 0;
+    }
+    
+    // Cached rows come newest first; the List methods return oldest first.
+    private static List<Message> oldestFirst(List<HistoryRow> rows) {
+    	List<Message> resultList = new ArrayList<>(rows.size());
+    	for (int i = rows.size() - 1; i >= 0; i--) {
+    		HistoryRow row = rows.get(i);
+    		resultList.add(new Message(row.from, row.body, row.createdAt));
+    	}
+    	return resultList;
     }
     
     public static List<Message> getDMHistory(String UserA, String UserB, int limit){
@@ -82,57 +573,31 @@ public class MessageDAO {
     	Integer IdB = UserDAO.getUserId(UserB);
     	List<Message> out = new ArrayList<>();
     	if(IdA == null || IdB == null) return out;
-    	String sqlCommand = "SELECT u.username, m.body, m.created_at " +
-                			"FROM messages m " +
-                			"JOIN users u ON u.id = m.from_id " +
-                			"WHERE m.kind='DM' AND ((m.from_id=? AND m.to_id=?) OR (m.from_id=? AND m.to_id=?)) " +
-                			"ORDER BY m.id DESC LIMIT ?";
-    	try (Connection conn = DatabaseManager.getConnection();
-             PreparedStatement pStatement = conn.prepareStatement(sqlCommand)) {
-             pStatement.setInt(1, IdA); 
-             pStatement.setInt(2, IdB);
-             pStatement.setInt(3, IdB); 
-             pStatement.setInt(4, IdA);
-             pStatement.setInt(5, Math.max(1, Math.min(limit, 200)));
-             try (ResultSet resultSet = pStatement.executeQuery()) {
-            	 while (resultSet.next()) {
-                     out.add(new Message(resultSet.getString(1), resultSet.getString(2), resultSet.getString(3)));
-                 }
-             }
+    	List<HistoryRow> cached = recentPage(false, conversationKey(IdA, IdB), Long.MAX_VALUE,
+    			Math.max(1, Math.min(limit, 200)));
+    	if (cached != null) return oldestFirst(cached);
+    	awaitPersisted(HISTORY_FLUSH_WAIT_MS);
+    	try {
+    		return oldestFirst(readPage(false, conversationKey(IdA, IdB), Long.MAX_VALUE, Math.max(1, Math.min(limit, 200))));
         } catch (SQLException e) {
             System.err.println("getDMHistory error: " + e.getMessage());
         }
-           List<Message> resultList = new ArrayList<>();
-           for (int i = out.size() - 1; i >= 0; i--) 
-        	   resultList.add(out.get(i));
-           return resultList;
+        return out;
     }
     
     public static List<Message> getRoomHistory(String roomName, int limit){
         Integer roomId = RoomDAO.getRoomId(roomName);
         List<Message> out = new ArrayList<>();
         if (roomId == null) return out;
-        String sqlCommand = "SELECT u.username, m.body, m.created_at " +
-        					"FROM messages m " +
-        					"JOIN users u ON u.id = m.from_id " +
-        					"WHERE m.kind='ROOM' AND m.room_id=? " +
-        					"ORDER BY m.id DESC LIMIT ?";
-        try (Connection conn = DatabaseManager.getConnection();
-             PreparedStatement pStatement = conn.prepareStatement(sqlCommand)) {
-             pStatement.setInt(1, roomId);
-             pStatement.setInt(2, Math.max(1, Math.min(limit, 200)));
-             try (ResultSet resultSet = pStatement.executeQuery()) {
-                 while (resultSet.next()) 
-                	 out.add(new Message(resultSet.getString(1), resultSet.getString(2), resultSet.getString(3)));
-             }
+        List<HistoryRow> cached = recentPage(true, roomId, Long.MAX_VALUE, Math.max(1, Math.min(limit, 200)));
+        if (cached != null) return oldestFirst(cached);
+        awaitPersisted(HISTORY_FLUSH_WAIT_MS);
+        try {
+        	return oldestFirst(readPage(true, roomId, Long.MAX_VALUE, Math.max(1, Math.min(limit, 200))));
         } catch (SQLException e) {
             System.err.println("getRoomHistory error: " + e.getMessage());
         }
-
-        List<Message> resultList = new ArrayList<>();
-        for (int i = out.size() - 1; i >= 0; i--) 
-        	resultList.add(out.get(i));
-        return resultList;
+        return out;
     }
     
 }
@@ -0,0 +1,607 @@
+package database;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.YearMonth;
+import java.time.ZoneOffset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import database.MessageDAO.HistoryRow;
+
+// Messages are stored in one table per month (messages_YYYYMM), listed in message_partitions; the
+// pre-partitioning messages table is registered as the oldest partition by SchemaMigrations v3.
+// Only recent months stay in SQLite: retention exports older partitions to a gzipped archive file,
+// drops the table, and eventually deletes the archive. The registry row of a deleted partition is
+// kept so its ids are never handed out again. History reads span all live and archived partitions.
+public final class MessagePartitions {
+
+	public static class Stats {
+		public final int hotPartitions;
+		public final long hotRows;
+		public final long currentPartitionRows;
+		public final int archivedPartitions;
+		public final long archivedRows;
+		public final long archiveBytes;
+
+		Stats(int hotPartitions, long hotRows, long currentPartitionRows, int archivedPartitions,
+				long archivedRows, long archiveBytes) {
+			this.hotPartitions = hotPartitions;
+			this.hotRows = hotRows;
+			this.currentPartitionRows = currentPartitionRows;
+			this.archivedPartitions = archivedPartitions;
+			this.archivedRows = archivedRows;
+			this.archiveBytes = archiveBytes;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("hot=%d (%d rows, current %d) archived=%d (%d rows, %.1fKB)",
+					hotPartitions, hotRows, currentPartitionRows, archivedPartitions, archivedRows, archiveBytes / 1024.0);
+		}
+	}
+
+	static final class Partition {
+		final String name;
+		final String month;
+		final String roomPageSql;
+		final String dmPageSql;
+		// Id range written so far; an empty partition has minId > maxId. Only the writer thread (and,
+		// in a shared database, refresh) updates these, and only ever widens them.
+		volatile long minId;
+		volatile long maxId;
+		volatile long rows;
+		volatile File archive;
+		private final ReentrantLock rangeLock = new ReentrantLock();
+
+		Partition(String name, String month, long minId, long maxId, long rows, File archive) {
+			this.name = name;
+			this.month = month;
+			this.roomPageSql = String.format(MessageDAO.ROOM_PAGE_SQL, name);
+			this.dmPageSql = String.format(MessageDAO.DM_PAGE_SQL, name);
+			this.minId = minId;
+			this.maxId = maxId;
+			this.rows = rows;
+			this.archive = archive;
+		}
+
+		boolean archived() {
+			return archive != null;
+		}
+
+		void noteWritten(long low, long high, int count) {
+			widen(low, high);
+			rows += count;
+		}
+
+		void widen(long low, long high) {
+			rangeLock.lock();
+			try {
+				if(low < minId) minId = low;
+				if(high > maxId) maxId = high;
+			} finally {
+				rangeLock.unlock();
+			}
+		}
+	}
+
+	static final String REGISTRY_SQL = "CREATE TABLE IF NOT EXISTS message_partitions (" +
+									   "  name TEXT PRIMARY KEY," +
+									   "  month TEXT NOT NULL," +
+									   "  min_id INTEGER," +
+									   "  max_id INTEGER," +
+									   "  row_count INTEGER NOT NULL DEFAULT 0," +
+									   "  state TEXT NOT NULL DEFAULT 'HOT'," +
+									   "  archive_path TEXT" +
+									   ")";
+
+	// Months kept in SQLite, the current one included (at least 2, so a write queued just before
+	// midnight on the last day never targets a partition that is being archived).
+	private static final int HOT_MONTHS = Math.max(2, Integer.getInteger("chat.messages.hotMonths", 3));
+	// Months after which an archive is deleted for good; 0 keeps archives forever.
+	private static final int RETENTION_MONTHS = Integer.getInteger("chat.messages.retentionMonths", 0);
+	private static final File ARCHIVE_DIR = new File(System.getProperty("chat.messages.archiveDir", "archive"));
+	private static final long RETENTION_CHECK_MS = Long.getLong("chat.messages.retentionCheckMs", 3_600_000L);
+
+	private static final ReentrantLock loadLock = new ReentrantLock();
+	// Readers hold the read lock while they query partitions, so a table is never dropped under them.
+	private static final ReentrantReadWriteLock dropLock = new ReentrantReadWriteLock();
+	private static volatile List<Partition> partitions;
+	private static ScheduledExecutorService retention;
+	// Set by shareDatabase(): other processes write, archive and delete partitions too.
+	private static volatile boolean shared;
+
+	private MessagePartitions() {
+	}
+
+	// Newest month first. Loads the registry on first use and makes sure the current month exists.
+	static List<Partition> all() throws SQLException {
+		List<Partition> current = partitions;
+		if(current != null) return current;
+		try (Connection conn = DatabaseManager.getConnection()) {
+			return all(conn);
+		}
+	}
+
+	private static List<Partition> all(Connection conn) throws SQLException {
+		List<Partition> current = partitions;
+		if(current != null) return current;
+		loadLock.lock();
+		try {
+			if(partitions == null) {
+				partitions = load(conn);
+				forMonth(conn, YearMonth.now(ZoneOffset.UTC).toString().replace("-", ""));
+			}
+			return partitions;
+		} finally {
+			loadLock.unlock();
+		}
+	}
+
+	static ReentrantReadWriteLock.ReadLock readLock() {
+		return dropLock.readLock();
+	}
+
+	// Other processes (cluster nodes) use the same registry, so id ranges kept in memory fall behind
+	// their writes; reads re-read the registry before skipping a partition by its range.
+	static void shareDatabase() {
+		shared = true;
+	}
+
+	static boolean shared() {
+		return shared;
+	}
+
+	// The partitions a read should consider: the in-memory list, brought up to date with the
+	// registry first when the database is shared. Callers hold the read lock and have called all().
+	static List<Partition> current(Connection conn) throws SQLException {
+		return shared ? refresh(conn) : partitions;
+	}
+
+	// Re-reads the registry after another node created, archived or deleted a partition.
+	public static void refresh() {
+		dropLock.readLock().lock();
+		try {
+			all();
+			try (Connection conn = DatabaseManager.getConnection()) {
+				refresh(conn);
+			}
+		} catch (SQLException e) {
+			System.err.println("refreshPartitions error: " + e.getMessage());
+		} finally {
+			dropLock.readLock().unlock();
+		}
+	}
+
+	// Widens id ranges to what the registry records, adds partitions other nodes created, picks up
+	// archives and forgets deleted partitions. Registry rows are never removed, so a partition this
+	// process created after the query is simply kept.
+	private static List<Partition> refresh(Connection conn) throws SQLException {
+		List<Object[]> rows = new ArrayList<>();
+		try (PreparedStatement pStatement = conn.prepareStatement(
+				"SELECT name, month, min_id, max_id, row_count, state, archive_path FROM message_partitions");
+			 ResultSet resultSet = pStatement.executeQuery()) {
+			while(resultSet.next()) {
+				long minId = resultSet.getLong(3);
+				if(resultSet.wasNull()) minId = Long.MAX_VALUE;
+				rows.add(new Object[] { resultSet.getString(1), resultSet.getString(2), minId, resultSet.getLong(4),
+						resultSet.getLong(5), resultSet.getString(6), resultSet.getString(7) });
+			}
+		}
+		loadLock.lock();
+		try {
+			Map<String, Partition> byName = new HashMap<>();
+			for(Partition partition : partitions) byName.put(partition.name, partition);
+			for(Object[] row : rows) {
+				String name = (String) row[0];
+				String state = (String) row[5];
+				Partition partition = byName.get(name);
+				if("DELETED".equals(state)) {
+					byName.remove(name);
+					continue;
+				}
+				File archive = "ARCHIVED".equals(state) ? new File((String) row[6]) : null;
+				if(partition == null) {
+					byName.put(name, new Partition(name, (String) row[1], (Long) row[2], (Long) row[3], (Long) row[4], archive));
+					continue;
+				}
+				partition.widen((Long) row[2], (Long) row[3]);
+				partition.rows = (Long) row[4];
+				if(archive != null && !partition.archived()) partition.archive = archive;
+			}
+			List<Partition> next = new ArrayList<>(byName.values());
+			sort(next);
+			partitions = Collections.unmodifiableList(next);
+			return partitions;
+		} finally {
+			loadLock.unlock();
+		}
+	}
+
+	// Partition for a yyyyMM month, created (table, indexes and registry row) if it does not exist.
+	// Creation runs on the caller's connection and commits it, so the caller (the message writer)
+	// must not have written anything in its transaction yet.
+	static Partition forMonth(Connection conn, String month) throws SQLException {
+		String name = "messages_" + month;
+		for(Partition partition : all(conn)) {
+			if(partition.name.equals(name)) return partition;
+		}
+		loadLock.lock();
+		try {
+			for(Partition partition : partitions) {
+				if(partition.name.equals(name)) return partition;
+			}
+			try (Statement statement = conn.createStatement()) {
+				conn.setAutoCommit(false);
+				statement.execute("CREATE TABLE IF NOT EXISTS " + name + " (" +
+								  "  id INTEGER PRIMARY KEY," +
+								  "  kind TEXT NOT NULL," +
+								  "  room_id INTEGER," +
+								  "  from_id INTEGER," +
+								  "  to_id INTEGER," +
+								  "  dm_key INTEGER," +
+								  "  body TEXT NOT NULL," +
+								  "  created_at DATETIME DEFAULT CURRENT_TIMESTAMP," +
+								  "  FOREIGN KEY(room_id) REFERENCES rooms(id) ON DELETE CASCADE," +
+								  "  FOREIGN KEY(from_id) REFERENCES users(id) ON DELETE SET NULL," +
+								  "  FOREIGN KEY(to_id) REFERENCES users(id) ON DELETE SET NULL" +
+								  ")");
+				statement.execute("CREATE INDEX IF NOT EXISTS idx_" + name + "_room_page ON " + name + "(kind, room_id, id)");
+				statement.execute("CREATE INDEX IF NOT EXISTS idx_" + name + "_dm_key ON " + name + "(dm_key, id)");
+				statement.execute("INSERT OR IGNORE INTO message_partitions(name, month) VALUES('" + name + "', '" + month + "')");
+				conn.commit();
+			}
+			Partition partition = new Partition(name, month, Long.MAX_VALUE, 0, 0, null);
+			List<Partition> next = new ArrayList<>(partitions);
+			next.add(partition);
+			sort(next);
+			partitions = Collections.unmodifiableList(next);
+			return partition;
+		} finally {
+			loadLock.unlock();
+		}
+	}
+
+	static String monthOf(String createdAt) {
+		return createdAt.substring(0, 4) + createdAt.substring(5, 7);
+	}
+
+	// Records a written batch in the registry, in the writer's transaction.
+	static void recordWrite(Connection conn, Partition partition, long low, long high, int count) throws SQLException {
+		try (PreparedStatement pStatement = conn.prepareStatement(
+				"UPDATE message_partitions SET min_id = min(coalesce(min_id, ?), ?), max_id = max(coalesce(max_id, ?), ?), " +
+				"row_count = row_count + ? WHERE name = ?")) {
+			pStatement.setLong(1, low);
+			pStatement.setLong(2, low);
+			pStatement.setLong(3, high);
+			pStatement.setLong(4, high);
+			pStatement.setInt(5, count);
+			pStatement.setString(6, partition.name);
+			pStatement.executeUpdate();
+		}
+		partition.noteWritten(low, high, count);
+	}
+
+	// Up to limit rows of one conversation older than beforeId from an archive, newest first. The
+	// file is sorted by id, so this is one sequential pass keeping the last limit matches.
+	static List<HistoryRow> readArchive(Partition partition, boolean room, long key, long beforeId, int limit) throws SQLException {
+		ArrayDeque<String[]> window = new ArrayDeque<>(limit + 1);
+		String kind = room ? "ROOM" : "DM";
+		String keyText = Long.toString(key);
+		try (BufferedReader in = new BufferedReader(new InputStreamReader(
+				new GZIPInputStream(new FileInputStream(partition.archive), 1 << 16), StandardCharsets.UTF_8))) {
+			String line;
+			while((line = in.readLine()) != null) {
+				String[] fields = line.split("\t", 7);
+				if(fields.length < 7) continue;
+				if(Long.parseLong(fields[0]) >= beforeId) break;
+				if(!fields[1].equals(kind) || !fields[room ? 2 : 3].equals(keyText)) continue;
+				// Sender deleted since: kept in the file, but hidden as the history queries hide it.
+				if(fields[4].isEmpty()) continue;
+				window.addLast(fields);
+				if(window.size() > limit) window.removeFirst();
+			}
+		} catch (IOException | RuntimeException e) {
+			throw new SQLException("Reading archive " + partition.archive + " failed: " + e.getMessage(), e);
+		}
+		List<HistoryRow> out = new ArrayList<>(window.size());
+		while(!window.isEmpty()) {
+			String[] fields = window.removeLast();
+			out.add(new HistoryRow(Long.parseLong(fields[0]), unescape(fields[4]), unescape(fields[6]), fields[5]));
+		}
+		return out;
+	}
+
+	// Runs retention now and then every -Dchat.messages.retentionCheckMs on a daemon thread.
+	public static void startRetention() {
+		loadLock.lock();
+		try {
+			if(retention != null || RETENTION_CHECK_MS <= 0) return;
+			retention = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread t = new Thread(r, "MessageRetention");
+				t.setDaemon(true);
+				return t;
+			});
+			retention.scheduleWithFixedDelay(MessagePartitions::runRetention, 0, RETENTION_CHECK_MS, TimeUnit.MILLISECONDS);
+		} finally {
+			loadLock.unlock();
+		}
+	}
+
+	public static void stopRetention() {
+		loadLock.lock();
+		try {
+			if(retention != null) {
+				retention.shutdownNow();
+				retention = null;
+			}
+		} finally {
+			loadLock.unlock();
+		}
+	}
+
+	// Archives partitions older than the hot window and deletes archives past the retention window.
+	public static void runRetention() {
+		YearMonth now = YearMonth.now(ZoneOffset.UTC);
+		String archiveBefore = now.minusMonths(HOT_MONTHS - 1).toString().replace("-", "");
+		String deleteBefore = RETENTION_MONTHS > 0 ? now.minusMonths(RETENTION_MONTHS - 1).toString().replace("-", "") : null;
+		boolean deleted = false;
+		List<Partition> snapshot;
+		dropLock.readLock().lock();
+		try {
+			snapshot = all();
+			// Shared: the other nodes' writes widen the ranges delete() clears from the search index.
+			if(shared) {
+				try (Connection conn = DatabaseManager.getConnection()) {
+					snapshot = refresh(conn);
+				}
+			}
+		} catch (SQLException e) {
+			System.err.println("runRetention error: " + e.getMessage());
+			return;
+		} finally {
+			dropLock.readLock().unlock();
+		}
+		boolean changed = false;
+		for(Partition partition : snapshot) {
+			try {
+				if(deleteBefore != null && partition.month.compareTo(deleteBefore) < 0) {
+					delete(partition);
+					deleted = true;
+					changed = true;
+				} else if(!partition.archived() && partition.month.compareTo(archiveBefore) < 0) {
+					archive(partition);
+					changed = true;
+				}
+			} catch (SQLException | IOException e) {
+				System.err.println("runRetention error (" + partition.name + "): " + e.getMessage());
+			}
+		}
+		if(deleted) MessageDAO.forgetRecent();
+		if(changed) {
+			DatabaseManager.ChangeListener listener = DatabaseManager.changeListener();
+			if(listener != null) listener.partitionsChanged();
+		}
+	}
+
+	public static Stats stats() {
+		int hot = 0;
+		int archived = 0;
+		long hotRows = 0;
+		long archivedRows = 0;
+		long archiveBytes = 0;
+		long currentRows = 0;
+		List<Partition> snapshot;
+		try {
+			snapshot = all();
+		} catch (SQLException e) {
+			System.err.println("partition stats error: " + e.getMessage());
+			snapshot = Collections.emptyList();
+		}
+		for(Partition partition : snapshot) {
+			if(partition.archived()) {
+				archived++;
+				archivedRows += partition.rows;
+				archiveBytes += partition.archive.length();
+			} else {
+				if(hot == 0) currentRows = partition.rows;
+				hot++;
+				hotRows += partition.rows;
+			}
+		}
+		return new Stats(hot, hotRows, currentRows, archived, archivedRows, archiveBytes);
+	}
+
+	private static List<Partition> load(Connection conn) throws SQLException {
+		List<Partition> loaded = new ArrayList<>();
+		String sqlCommand = "SELECT name, month, min_id, max_id, row_count, state, archive_path FROM message_partitions " +
+							"WHERE state <> 'DELETED'";
+		try (PreparedStatement pStatement = conn.prepareStatement(sqlCommand);
+			 ResultSet resultSet = pStatement.executeQuery()) {
+			while(resultSet.next()) {
+				long minId = resultSet.getLong(3);
+				if(resultSet.wasNull()) minId = Long.MAX_VALUE;
+				String archivePath = resultSet.getString(7);
+				loaded.add(new Partition(resultSet.getString(1), resultSet.getString(2), minId, resultSet.getLong(4),
+						resultSet.getLong(5), "ARCHIVED".equals(resultSet.getString(6)) ? new File(archivePath) : null));
+			}
+		}
+		sort(loaded);
+		return Collections.unmodifiableList(loaded);
+	}
+
+	// Newest month first; the legacy messages table sorts after a monthly table of the same month.
+	private static void sort(List<Partition> list) {
+		list.sort((a, b) -> {
+			int byMonth = b.month.compareTo(a.month);
+			return byMonth != 0 ? byMonth : Long.compare(b.maxId, a.maxId);
+		});
+	}
+
+	// Writes the partition to <archiveDir>/<name>.tsv.gz (temp file, then rename), then drops the table
+	// if the file holds every row. Messages whose sender was deleted (from_id NULL) are kept with an
+	// empty sender.
+	private static void archive(Partition partition) throws SQLException, IOException {
+		if(!ARCHIVE_DIR.isDirectory() && !ARCHIVE_DIR.mkdirs()) throw new IOException("Cannot create " + ARCHIVE_DIR);
+		File target = new File(ARCHIVE_DIR, partition.name + ".tsv.gz");
+		File temp = new File(ARCHIVE_DIR, partition.name + ".tsv.gz.tmp");
+		long rows = 0;
+		String sqlCommand = "SELECT m.id, m.kind, m.room_id, m.dm_key, u.username, m.created_at, m.body " +
+							"FROM " + partition.name + " m LEFT JOIN users u ON u.id = m.from_id ORDER BY m.id";
+		try (Connection conn = DatabaseManager.getConnection();
+			 PreparedStatement pStatement = conn.prepareStatement(sqlCommand);
+			 ResultSet resultSet = pStatement.executeQuery();
+			 FileOutputStream file = new FileOutputStream(temp);
+			 BufferedWriter out = new BufferedWriter(new OutputStreamWriter(new GZIPOutputStream(file, 1 << 16), StandardCharsets.UTF_8))) {
+			while(resultSet.next()) {
+				out.write(Long.toString(resultSet.getLong(1)));
+				out.write('\t');
+				out.write(resultSet.getString(2));
+				out.write('\t');
+				out.write(nullable(resultSet.getString(3)));
+				out.write('\t');
+				out.write(nullable(resultSet.getString(4)));
+				out.write('\t');
+				out.write(escape(resultSet.getString(5)));
+				out.write('\t');
+				out.write(nullable(resultSet.getString(6)));
+				out.write('\t');
+				out.write(escape(resultSet.getString(7)));
+				out.write('\n');
+				rows++;
+			}
+			out.flush();
+			file.getFD().sync();
+		}
+		Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+		try (Connection conn = DatabaseManager.getConnection()) {
+			dropLock.writeLock().lock();
+			try (Statement statement = conn.createStatement();
+				 PreparedStatement pStatement = conn.prepareStatement(
+						 "UPDATE message_partitions SET state = 'ARCHIVED', archive_path = ?, row_count = ? WHERE name = ?")) {
+				conn.setAutoCommit(false);
+				long tableRows;
+				try (ResultSet resultSet = statement.executeQuery("SELECT COUNT(*) FROM " + partition.name)) {
+					resultSet.next();
+					tableRows = resultSet.getLong(1);
+				}
+				if(tableRows != rows) {
+					throw new SQLException("archive of " + partition.name + " has " + rows + " rows but the table has "
+							+ tableRows + "; keeping the table");
+				}
+				// Archived months are not searchable; their index entries go with the table.
+				SearchDAO.forgetPartition(conn, partition.name);
+				statement.execute("DROP TABLE " + partition.name);
+				// Absolute, so other processes sharing the database find it from their own working directory.
+				pStatement.setString(1, target.getAbsolutePath());
+				pStatement.setLong(2, rows);
+				pStatement.setString(3, partition.name);
+				pStatement.executeUpdate();
+				conn.commit();
+				partition.rows = rows;
+				partition.archive = target;
+			} catch (SQLException e) {
+				conn.rollback();
+				throw e;
+			} finally {
+				dropLock.writeLock().unlock();
+			}
+		}
+	}
+
+	private static void delete(Partition partition) throws SQLException, IOException {
+		try (Connection conn = DatabaseManager.getConnection()) {
+			dropLock.writeLock().lock();
+			try (Statement statement = conn.createStatement();
+				 PreparedStatement pStatement = conn.prepareStatement(
+						 "UPDATE message_partitions SET state = 'DELETED', archive_path = NULL WHERE name = ?")) {
+				conn.setAutoCommit(false);
+				if(!partition.archived()) {
+					SearchDAO.forgetPartition(conn, partition.name);
+					statement.execute("DROP TABLE IF EXISTS " + partition.name);
+				} else if(partition.minId <= partition.maxId) {
+					// Archives written before archiving cleared the index still have entries there.
+					SearchDAO.forget(conn, partition.minId, partition.maxId);
+				}
+				pStatement.setString(1, partition.name);
+				pStatement.executeUpdate();
+				conn.commit();
+				loadLock.lock();
+				try {
+					List<Partition> next = new ArrayList<>(partitions);
+					next.remove(partition);
+					partitions = Collections.unmodifiableList(next);
+				} finally {
+					loadLock.unlock();
+				}
+			} catch (SQLException e) {
+				conn.rollback();
+				throw e;
+			} finally {
+				dropLock.writeLock().unlock();
+			}
+		}
+		if(partition.archived()) Files.deleteIfExists(partition.archive.toPath());
+	}
+
+	private static String nullable(String value) {
+		return value == null ? "" : value;
+	}
+
+	private static String escape(String value) {
+		if(value == null) return "";
+		StringBuilder out = null;
+		for(int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			String replacement = c == '\\' ? "\\\\" : c == '\t' ? "\\t" : c == '\n' ? "\\n" : c == '\r' ? "\\r" : null;
+			if(replacement == null) {
+				if(out != null) out.append(c);
+				continue;
+			}
+			if(out == null) out = new StringBuilder(value.length() + 8).append(value, 0, i);
+			out.append(replacement);
+		}
+		return out == null ? value : out.toString();
+	}
+
+	private static String unescape(String value) {
+		if(value.indexOf('\\') < 0) return value;
+		StringBuilder out = new StringBuilder(value.length());
+		for(int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if(c != '\\' || i + 1 == value.length()) {
+				out.append(c);
+				continue;
+			}
+			char next = value.charAt(++i);
+			out.append(next == 't' ? '\t' : next == 'n' ? '\n' : next == 'r' ? '\r' : next);
+		}
+		return out.toString();
+	}
+}
@@ -0,0 +1,98 @@
+package database;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+// Query-plan regression check: runs EXPLAIN QUERY PLAN on the history statements for every message
+// partition still in SQLite and reports any that scan the table or sort it instead of walking an
+// index. The server runs it at
+// startup after migrating; `java database.QueryPlanCheck` runs it alone against -Dchat.db.path and
+// exits non-zero on a regression. `gradle check` (and so `gradle build`) runs it on a fresh database.
+public final class QueryPlanCheck {
+
+	private QueryPlanCheck() {
+	}
+
+	// Empty when every query plan is index-driven.
+	public static List<String> problems() {
+		List<String> problems = new ArrayList<>();
+		List<String[]> queries;
+		try {
+			// Before borrowing: the first call loads the partition registry on a connection of its own.
+			queries = queries();
+		} catch (SQLException e) {
+			problems.add("EXPLAIN failed: " + e.getMessage());
+			return problems;
+		}
+		try (Connection conn = DatabaseManager.getConnection()) {
+			for(String[] query : queries) {
+				List<String> plan = explain(conn, query[1]);
+				boolean usesIndex = false;
+				for(String step : plan) {
+					if(step.startsWith("SCAN m") || step.startsWith("SCAN messages")) {
+						problems.add(query[0] + ": full scan (" + step + ")");
+					} else if(step.contains("TEMP B-TREE")) {
+						problems.add(query[0] + ": sorts instead of reading the index in order (" + step + ")");
+					}
+					if(step.contains("USING INDEX idx_messages_") || step.contains("USING COVERING INDEX idx_messages_")) {
+						usesIndex = true;
+					}
+				}
+				if(!usesIndex) problems.add(query[0] + ": no messages index used " + plan);
+			}
+		} catch (SQLException e) {
+			problems.add("EXPLAIN failed: " + e.getMessage());
+		}
+		return problems;
+	}
+
+	// Logs the outcome; returns true when all plans are fine.
+	public static boolean run() {
+		List<String> problems = problems();
+		if(problems.isEmpty()) {
+			System.out.println("Query plans OK (history queries use indexes in every partition)");
+			return true;
+		}
+		for(String problem : problems) System.err.println("Query plan regression: " + problem);
+		return false;
+	}
+
+	private static List<String[]> queries() throws SQLException {
+		List<String[]> queries = new ArrayList<>();
+		for(MessagePartitions.Partition partition : MessagePartitions.all()) {
+			if(partition.archived()) continue;
+			queries.add(new String[] { "room history page (" + partition.name + ")", partition.roomPageSql });
+			queries.add(new String[] { "DM history page (" + partition.name + ")", partition.dmPageSql });
+		}
+		return queries;
+	}
+
+	private static List<String> explain(Connection conn, String sql) throws SQLException {
+		List<String> steps = new ArrayList<>();
+		try (PreparedStatement pStatement = conn.prepareStatement("EXPLAIN QUERY PLAN " + sql)) {
+			int parameters = sql.length() - sql.replace("?", "").length();
+			for(int i = 1; i <= parameters; i++) pStatement.setLong(i, 1);
+			try (ResultSet resultSet = pStatement.executeQuery()) {
+				while(resultSet.next()) steps.add(resultSet.getString("detail"));
+			}
+		}
+		return steps;
+	}
+
+	// Creates the schema the way the server does, so this also works on an empty database.
+	public static void main(String[] args) {
+		UserDAO.initDatabase();
+		FriendDAO.initFriendsTable();
+		RoomDAO.initRoomTable();
+		MessageDAO.initMessageTable();
+		ActivityLogDAO.initActivityLogTable();
+		SchemaMigrations.migrate();
+		boolean ok = run();
+		DatabaseManager.shutdown();
+		System.exit(ok ? 0 : 1);
+	}
+}
@@ -0,0 +1,247 @@
+package database;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+import database.MessageDAO.HistoryRow;
+
+// The newest messages of recently read conversations, kept in memory so history for active rooms
+// and DMs is served without SQLite. A conversation gets a ring the first time its history is read;
+// from then on every save appends to it. Conversations are evicted sampled-LRU (as in IdCache)
+// once the estimated size of all rings passes the byte budget.
+public class RecentMessageCache {
+
+	private static final int EVICTION_SAMPLES = 8;
+	// Rough per-message overhead: the row object, two String headers and the id.
+	private static final long ENTRY_OVERHEAD = 96;
+
+	public static class Stats {
+		public final int conversations;
+		public final long messages;
+		public final long bytes;
+		public final long hits;
+		public final long misses;
+		public final long evictions;
+
+		Stats(int conversations, long messages, long bytes, long hits, long misses, long evictions) {
+			this.conversations = conversations;
+			this.messages = messages;
+			this.bytes = bytes;
+			this.hits = hits;
+			this.misses = misses;
+			this.evictions = evictions;
+		}
+
+		@Override
+		public String toString() {
+			long total = hits + misses;
+			return String.format("conversations=%d messages=%d size=%.1fKB hits=%d misses=%d evictions=%d hitRatio=%.3f",
+					conversations, messages, bytes / 1024.0, hits, misses, evictions, total == 0 ? 0.0 : (double) hits / total);
+		}
+	}
+
+	private static long footprint(HistoryRow row) {
+		return ENTRY_OVERHEAD + 2L * (row.from.length() + row.body.length() + (row.createdAt == null ? 0 : row.createdAt.length()));
+	}
+
+	// Rows sorted by id in a circular array; appends may arrive slightly out of id order.
+	final class Conversation {
+		private final ReentrantLock lock = new ReentrantLock();
+		// Serializes warming so only one reader goes to the database per conversation.
+		final ReentrantLock loadLock = new ReentrantLock();
+		private final HistoryRow[] rows = new HistoryRow[perConversation];
+		private int head;
+		private int size;
+		private long bytes;
+		private volatile boolean warm;
+		// Set when evicted; a save still holding the reference then no longer counts against the budget.
+		private boolean detached;
+		// True while the ring holds the whole conversation, so pages past its oldest row are empty.
+		private boolean reachesStart;
+		volatile long lastAccess = System.nanoTime();
+
+		boolean isWarm() {
+			return warm;
+		}
+
+		void append(HistoryRow row) {
+			lock.lock();
+			try {
+				insert(row);
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		// newestFirst is what the database returned (newest first); complete means that was everything.
+		void warm(List<HistoryRow> newestFirst, boolean complete) {
+			lock.lock();
+			try {
+				// Inserting an older row into a full ring clears this again.
+				reachesStart = complete;
+				for(HistoryRow row : newestFirst) insert(row);
+				warm = true;
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		// Up to limit rows older than beforeId, newest first; null if the ring cannot answer alone.
+		List<HistoryRow> page(long beforeId, int limit) {
+			lock.lock();
+			try {
+				if(!warm) return null;
+				List<HistoryRow> out = new ArrayList<>(Math.min(limit, size));
+				for(int i = size - 1; i >= 0 && out.size() < limit; i--) {
+					HistoryRow row = rows[(head + i) % rows.length];
+					if(row.id < beforeId) out.add(row);
+				}
+				return out.size() == limit || reachesStart ? out : null;
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		private void insert(HistoryRow row) {
+			int pos = size;
+			while(pos > 0) {
+				HistoryRow previous = rows[(head + pos - 1) % rows.length];
+				if(previous.id == row.id) return;
+				if(previous.id < row.id) break;
+				pos--;
+			}
+			if(size == rows.length) {
+				if(pos == 0) {
+					reachesStart = false;
+					return;
+				}
+				HistoryRow dropped = rows[head];
+				rows[head] = null;
+				head = (head + 1) % rows.length;
+				size--;
+				pos--;
+				reachesStart = false;
+				adjust(-footprint(dropped));
+			}
+			for(int i = size; i > pos; i--) {
+				rows[(head + i) % rows.length] = rows[(head + i - 1) % rows.length];
+			}
+			rows[(head + pos) % rows.length] = row;
+			size++;
+			adjust(footprint(row));
+		}
+
+		private void adjust(long delta) {
+			bytes += delta;
+			if(!detached) totalBytes.addAndGet(delta);
+		}
+
+		private void detach() {
+			lock.lock();
+			try {
+				if(detached) return;
+				detached = true;
+				totalBytes.addAndGet(-bytes);
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		int size() {
+			lock.lock();
+			try {
+				return size;
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	private final int perConversation;
+	private final long budgetBytes;
+	private final ConcurrentHashMap<Long, Conversation> conversations = new ConcurrentHashMap<>();
+	private final AtomicLong totalBytes = new AtomicLong();
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+
+	public RecentMessageCache(int perConversation, long budgetBytes) {
+		this.perConversation = Math.max(1, perConversation);
+		this.budgetBytes = Math.max(1, budgetBytes);
+	}
+
+	int perConversation() {
+		return perConversation;
+	}
+
+	// Existing ring or null; saves use this so cold conversations cost nothing.
+	Conversation peek(long key) {
+		return conversations.get(key);
+	}
+
+	// Ring for a history read, created (cold) if needed. The caller warms it before relying on it.
+	Conversation open(long key) {
+		Conversation conversation = conversations.computeIfAbsent(key, k -> new Conversation());
+		conversation.lastAccess = System.nanoTime();
+		return conversation;
+	}
+
+	void recordHit() {
+		hits.increment();
+	}
+
+	void recordMiss() {
+		misses.increment();
+	}
+
+	void invalidate(long key) {
+		Conversation removed = conversations.remove(key);
+		if(removed != null) removed.detach();
+	}
+
+	void invalidateAll() {
+		for(Long key : conversations.keySet()) invalidate(key);
+	}
+
+	// Called after anything that grows the cache.
+	void enforceBudget() {
+		while(totalBytes.get() > budgetBytes && conversations.size() > 1) {
+			evictOne();
+		}
+	}
+
+	public Stats stats() {
+		long messages = 0;
+		for(Conversation conversation : conversations.values()) messages += conversation.size();
+		return new Stats(conversations.size(), messages, totalBytes.get(), hits.sum(), misses.sum(), evictions.sum());
+	}
+
+	private void evictOne() {
+		Long victim = null;
+		long oldest = Long.MAX_VALUE;
+		Iterator<Map.Entry<Long, Conversation>> it = conversations.entrySet().iterator();
+		for(int skip = ThreadLocalRandom.current().nextInt(32); skip > 0 && it.hasNext(); skip--) it.next();
+		if(!it.hasNext()) it = conversations.entrySet().iterator();
+		for(int i = 0; i < EVICTION_SAMPLES && it.hasNext(); i++) {
+			Map.Entry<Long, Conversation> candidate = it.next();
+			if(candidate.getValue().lastAccess < oldest) {
+				oldest = candidate.getValue().lastAccess;
+				victim = candidate.getKey();
+			}
+		}
+		if(victim != null) {
+			Conversation removed = conversations.remove(victim);
+			if(removed != null) {
+				removed.detach();
+				evictions.increment();
+			}
+		}
+	}
+}
@@ -10,6 +10,9 @@ import java.util.ArrayList;
 import java.util.List;
 
 public class RoomDAO {
+	
+	private static final IdCache idCache = new IdCache(Integer.getInteger("chat.cache.roomIds", 50_000));
+	private static final MembershipIndex membership = new MembershipIndex();
 
 	public static void initRoomTable() {
 		String rooms =
@@ -52,21 +55,64 @@ public class RoomDAO {
         } catch (SQLException e) {
         	System.err.println("RoomDAO init error: " + e.getMessage());
         }
+        loadMembershipIndex();
+	}
+	
+	// Loads room_members into memory; until this succeeds isMember falls back to SQL.
+	public static void loadMembershipIndex() {
+		String sqlCommand = "SELECT room_id, user_id FROM room_members";
+		membership.clear();
+		try (Connection conn = DatabaseManager.getConnection();
+			 PreparedStatement pStatement = conn.prepareStatement(sqlCommand);
+			 ResultSet resultSet = pStatement.executeQuery()) {
+			 while (resultSet.next()) {
+				 membership.add(resultSet.getInt(1), resultSet.getInt(2));
+			 }
+			 membership.markLoaded();
+			 System.out.println("Membership index loaded: " + membership.stats());
+		} catch (SQLException e) {
+			membership.clear();
+			System.err.println("loadMembershipIndex error: " + e.getMessage());
+		}
+	}
+	
+	public static MembershipIndex.Stats membershipStats() {
+		return membership.stats();
 	}
 	
     public static Integer getRoomId(String roomName) {
-        String sqlCommand = "SELECT id FROM rooms WHERE name = ?";
-        try (Connection conn = DatabaseManager.getConnection();
-             PreparedStatement pStatement = conn.prepareStatement(sqlCommand)) {
+        if (roomName == null) return null;
+        Integer cached = idCache.get(roomName);
+        if (cached != null) return cached;
+        try (Connection conn = DatabaseManager.getConnection()) {
+             return getRoomId(conn, roomName);
+        } catch (SQLException e) {
+            System.err.println("getRoomId error: " + e.getMessage());
+        }
+        return null;
+    }
+    
+    // Same lookup on a connection the caller already holds (the message writer's transaction).
+    static Integer getRoomId(Connection conn, String roomName) throws SQLException {
+        if (roomName == null) return null;
+        Integer cached = idCache.get(roomName);
+        if (cached != null) return cached;
+        try (PreparedStatement pStatement = conn.prepareStatement("SELECT id FROM rooms WHERE name = ?")) {
              pStatement.setString(1, roomName);
              try (ResultSet resultSet = pStatement.executeQuery()) {
-                 if (resultSet.next()) return resultSet.getInt(1);
+                 if (resultSet.next()) {
+                	 int id = resultSet.getInt(1);
+                	 idCache.put(roomName, id);
+                	 return id;
+                 }
              }
-        } catch (SQLException e) {
-            System.err.println("getRoomId error: " + e.getMessage());
         }
         return null;
     }
+    
+    public static IdCache.Stats idCacheStats() {
+    	return idCache.stats();
+    }
 	
     public static Integer ensureRoomExist(String roomName, String ownerUsername) {
     	Integer exist = getRoomId(roomName);
@@ -83,16 +129,22 @@ public class RoomDAO {
     		}
     		pStatement.executeUpdate();
     		try (ResultSet keys = pStatement.getGeneratedKeys()){
-    			if(keys.next()) return keys.getInt(1);
+    			if(keys.next()) {
+    				int id = keys.getInt(1);
+    				idCache.put(roomName, id);
+    				return id;
+    			}
     		}
     	} catch (SQLException e) {
     		System.err.println("ensureRoom error: " + e.getMessage());
     	}
+    	idCache.invalidate(roomName);
     	return getRoomId(roomName);
     }
     
     public static boolean isMember(Integer roomId, Integer userId) {
     	if(roomId == null || userId == null) return false;
+    	if(membership.isLoaded()) return membership.contains(roomId, userId);
     	String sqlCommand = "SELECT 1 FROM room_members WHERE room_id = ? AND user_id = ?";
     	try(Connection conn = DatabaseManager.getConnection(); 
     		PreparedStatement pStatement = conn.prepareStatement(sqlCommand)){
@@ -115,6 +167,8 @@ public class RoomDAO {
              pStatement.setInt(1, roomId);
              pStatement.setInt(2, userId);
              pStatement.executeUpdate();
+             membership.add(roomId, userId);
+             membershipChanged(roomId, userId, true);
              return true;
         } catch (SQLException e) {
              System.err.println("addMember error: " + e.getMessage());
@@ -122,6 +176,20 @@ public class RoomDAO {
         }
     }
     
+    private static void membershipChanged(int roomId, int userId, boolean member) {
+    	DatabaseManager.ChangeListener listener = DatabaseManager.changeListener();
+    	if (listener != null) listener.membershipChanged(roomId, userId, member);
+    }
+    
+    // A membership another node wrote; the row is already in the shared database.
+    public static void applyMembership(int roomId, int userId, boolean member) {
+    	if (member) {
+    		membership.add(roomId, userId);
+    	} else {
+    		membership.remove(roomId, userId);
+    	}
+    }
+    
     public static boolean removeMember(Integer roomId, Integer userId) {
         if (roomId == null || userId == null) return false;
         String sqlCommand = "DELETE FROM room_members WHERE room_id = ? AND user_id = ?";
@@ -129,7 +197,10 @@ public class RoomDAO {
              PreparedStatement pStatement = conn.prepareStatement(sqlCommand)) {
              pStatement.setInt(1, roomId);
              pStatement.setInt(2, userId);
-             return pStatement.executeUpdate() > 0;
+             boolean removed = pStatement.executeUpdate() > 0;
+             membership.remove(roomId, userId);
+             membershipChanged(roomId, userId, false);
+             return removed;
         } catch (SQLException e) {
              System.err.println("removeMember error: " + e.getMessage());
              return false;
@@ -183,6 +254,24 @@ public class RoomDAO {
         }
     }
     
+    // Rooms the user belongs to, by id (idx_room_members_user).
+    public static List<Integer> listRoomIds(int userId) {
+    	List<Integer> out = new ArrayList<>();
+    	String sqlCommand = "SELECT room_id FROM room_members WHERE user_id = ?";
+    	try (Connection conn = DatabaseManager.getConnection();
+             PreparedStatement pStatement = conn.prepareStatement(sqlCommand)) {
+             pStatement.setInt(1, userId);
+             try (ResultSet resultSet = pStatement.executeQuery()) {
+                 while (resultSet.next()) {
+                	 out.add(resultSet.getInt(1));
+                 }
+             }
+         } catch (SQLException e) {
+             System.err.println("listRoomIds error: " + e.getMessage());
+         }
+         return out;
+    }
+    
     public static List<String> listMembers(String roomName){
     	Integer roomId = getRoomId(roomName);
     	List<String> out = new ArrayList<>();
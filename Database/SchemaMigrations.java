@@ -0,0 +1,127 @@
+package database;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Versioned schema changes on top of the CREATE TABLE IF NOT EXISTS done by each DAO's init.
+// The applied version lives in PRAGMA user_version; each migration runs in its own transaction
+// together with the version bump, so an existing chatapp.db is upgraded in place and a failed
+// step leaves it at the previous version. Append new migrations; never edit an applied one.
+public final class SchemaMigrations {
+
+	private interface Step {
+		void apply(Statement statement) throws SQLException;
+	}
+
+	private static final class Migration {
+		final int version;
+		final String description;
+		final Step step;
+
+		Migration(int version, String description, Step step) {
+			this.version = version;
+			this.description = description;
+			this.step = step;
+		}
+	}
+
+	private static final List<Migration> MIGRATIONS = Arrays.asList(
+			new Migration(1, "history paging indexes", statement -> {
+				statement.execute("CREATE INDEX IF NOT EXISTS idx_messages_room_page ON messages(kind, room_id, id)");
+				statement.execute("CREATE INDEX IF NOT EXISTS idx_messages_dm_page ON messages(kind, from_id, to_id, id)");
+			}),
+			new Migration(2, "canonical DM conversation key", statement -> {
+				// (smaller user id << 32) | larger user id: one key per pair, so DM history is a single range.
+				statement.execute("ALTER TABLE messages ADD COLUMN dm_key INTEGER");
+				statement.execute("UPDATE messages SET dm_key = (min(from_id, to_id) << 32) | max(from_id, to_id) " +
+								  "WHERE kind = 'DM'");
+				statement.execute("CREATE INDEX IF NOT EXISTS idx_messages_dm_key ON messages(dm_key, id)");
+				statement.execute("DROP INDEX IF EXISTS idx_messages_dm_page");
+			}),
+			new Migration(3, "monthly message partitions", statement -> {
+				statement.execute(MessagePartitions.REGISTRY_SQL);
+				// The existing table becomes the oldest partition, filed under the month of its newest row.
+				statement.execute("INSERT OR IGNORE INTO message_partitions(name, month, min_id, max_id, row_count) " +
+								  "SELECT 'messages', strftime('%Y%m', MAX(created_at)), MIN(id), MAX(id), COUNT(*) " +
+								  "FROM messages HAVING COUNT(*) > 0");
+			}),
+			new Migration(4, "full-text message search", statement -> {
+				statement.execute(SearchDAO.TABLE_SQL);
+				// SEARCH lists the rooms a user belongs to on every query.
+				statement.execute("CREATE INDEX IF NOT EXISTS idx_room_members_user ON room_members(user_id, room_id)");
+				// Backfill what is still in SQLite; archived partitions are not indexed.
+				List<String> tables = new ArrayList<>();
+				try (ResultSet resultSet = statement.executeQuery("SELECT name FROM message_partitions WHERE state = 'HOT'")) {
+					while(resultSet.next()) tables.add(resultSet.getString(1));
+				}
+				for(String table : tables) {
+					statement.execute("INSERT INTO message_search(rowid, body, scope, kind, from_name, to_name, created_at) " +
+									  "SELECT m.id, m.body, " +
+									  "CASE WHEN m.kind = 'ROOM' THEN 'r' || m.room_id ELSE 'u' || m.from_id || ' u' || m.to_id END, " +
+									  "m.kind, u.username, CASE WHEN m.kind = 'ROOM' THEN r.name ELSE t.username END, m.created_at " +
+									  "FROM " + table + " m LEFT JOIN users u ON u.id = m.from_id " +
+									  "LEFT JOIN rooms r ON r.id = m.room_id LEFT JOIN users t ON t.id = m.to_id");
+				}
+			})
+	);
+
+	private SchemaMigrations() {
+	}
+
+	public static int latestVersion() {
+		return MIGRATIONS.get(MIGRATIONS.size() - 1).version;
+	}
+
+	public static int currentVersion() {
+		try (Connection conn = DatabaseManager.getConnection()) {
+			return readVersion(conn);
+		} catch (SQLException e) {
+			System.err.println("currentVersion error: " + e.getMessage());
+			return -1;
+		}
+	}
+
+	// Applies every migration newer than the database; returns the version it ends at.
+	public static int migrate() {
+		try (Connection conn = DatabaseManager.getConnection()) {
+			int version = readVersion(conn);
+			if(version > latestVersion()) {
+				System.err.println("Database schema v" + version + " is newer than this server (v" + latestVersion() + ")");
+				return version;
+			}
+			for(Migration migration : MIGRATIONS) {
+				if(migration.version <= version) continue;
+				conn.setAutoCommit(false);
+				try (Statement statement = conn.createStatement()) {
+					migration.step.apply(statement);
+					statement.execute("PRAGMA user_version = " + migration.version);
+					conn.commit();
+					version = migration.version;
+					System.out.println("Schema migrated to v" + version + ": " + migration.description);
+				} catch (SQLException e) {
+					conn.rollback();
+					System.err.println("Schema migration v" + migration.version + " failed: " + e.getMessage());
+					return version;
+				} finally {
+					conn.setAutoCommit(true);
+				}
+			}
+			return version;
+		} catch (SQLException e) {
+			System.err.println("migrate error: " + e.getMessage());
+			return -1;
+		}
+	}
+
+	private static int readVersion(Connection conn) throws SQLException {
+		try (Statement statement = conn.createStatement();
+			 ResultSet resultSet = statement.executeQuery("PRAGMA user_version")) {
+			return resultSet.next() ? resultSet.getInt(1) : 0;
+		}
+	}
+}
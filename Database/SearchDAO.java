@@ -0,0 +1,179 @@
+package database;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// Full-text search over message bodies, backed by the FTS5 table message_search (rowid = message
+// id). MessageDAO's writer indexes each batch in the same transaction that stores it, so sending
+// a message never waits on the index. Every row carries a scope column -- r<roomId> for a room
+// message, u<fromId> u<toId> for a DM -- so visibility is part of the MATCH itself.
+public class SearchDAO {
+
+	public static class Stats {
+		public final long indexed;
+		public final long searches;
+		public final long totalNanos;
+		public final long maxNanos;
+
+		Stats(long indexed, long searches, long totalNanos, long maxNanos) {
+			this.indexed = indexed;
+			this.searches = searches;
+			this.totalNanos = totalNanos;
+			this.maxNanos = maxNanos;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("indexed=%d searches=%d avg=%.2fms max=%.2fms", indexed, searches,
+					searches == 0 ? 0.0 : totalNanos / 1e6 / searches, maxNanos / 1e6);
+		}
+	}
+
+	public interface SearchVisitor {
+		void hit(long id, String kind, String from, String to, String body, String createdAt);
+	}
+
+	static final String TABLE_SQL = "CREATE VIRTUAL TABLE IF NOT EXISTS message_search USING fts5(" +
+									"body, scope, kind UNINDEXED, from_name UNINDEXED, to_name UNINDEXED, " +
+									"created_at UNINDEXED, tokenize = 'unicode61 remove_diacritics 2', prefix = '3')";
+
+	// bm25 ranks only the newest matches (rowid order is the index's natural order), so a common
+	// term costs the same on a huge corpus as on a small one; older hits are reached by narrowing the query.
+	private static final String SEARCH_SQL = "SELECT rowid, kind, from_name, to_name, body, created_at FROM (" +
+											 "SELECT rowid, kind, from_name, to_name, body, created_at, rank " +
+											 "FROM message_search WHERE message_search MATCH ? " +
+											 "ORDER BY rowid DESC LIMIT ?) " +
+											 "ORDER BY rank LIMIT ? OFFSET ?";
+
+	public static final int MAX_PAGE_SIZE = 50;
+	private static final int RANK_WINDOW = Integer.getInteger("chat.search.rankWindow", 1000);
+	private static final int MAX_TERMS = 8;
+	// Shorter prefixes expand to too many terms; they are matched as whole words instead.
+	private static final int MIN_PREFIX = 3;
+	private static final int ROWS_PER_INSERT = 100;
+	// -Dchat.search.enabled=false stops indexing new messages (SEARCH then only finds older ones).
+	static final boolean ENABLED = !"false".equalsIgnoreCase(System.getProperty("chat.search.enabled"));
+
+	private static final LongAdder indexed = new LongAdder();
+	private static final LongAdder searches = new LongAdder();
+	private static final LongAdder searchNanos = new LongAdder();
+	private static final AtomicLong maxSearchNanos = new AtomicLong();
+
+	// Called by MessageDAO's writer with rows it is inserting, inside its transaction. Each row is
+	// { id, kind, roomId, fromId, toId, fromName, toName (room name for ROOM), body, createdAt }.
+	static void index(Connection conn, List<Object[]> rows) throws SQLException {
+		if(!ENABLED || rows.isEmpty()) return;
+		for(int start = 0; start < rows.size(); start += ROWS_PER_INSERT) {
+			int count = Math.min(ROWS_PER_INSERT, rows.size() - start);
+			StringBuilder sqlCommand = new StringBuilder(
+					"INSERT INTO message_search(rowid, body, scope, kind, from_name, to_name, created_at) VALUES ");
+			for(int i = 0; i < count; i++) {
+				sqlCommand.append(i == 0 ? "(?, ?, ?, ?, ?, ?, ?)" : ", (?, ?, ?, ?, ?, ?, ?)");
+			}
+			try (PreparedStatement pStatement = conn.prepareStatement(sqlCommand.toString())) {
+				int index = 1;
+				for(int i = 0; i < count; i++) {
+					Object[] row = rows.get(start + i);
+					boolean room = "ROOM".equals(row[1]);
+					pStatement.setLong(index++, (Long) row[0]);
+					pStatement.setString(index++, (String) row[7]);
+					pStatement.setString(index++, room ? "r" + row[2] : "u" + row[3] + " u" + row[4]);
+					pStatement.setString(index++, (String) row[1]);
+					pStatement.setString(index++, (String) row[5]);
+					pStatement.setString(index++, (String) row[6]);
+					pStatement.setString(index++, (String) row[8]);
+				}
+				pStatement.executeUpdate();
+			}
+		}
+		indexed.add(rows.size());
+	}
+
+	// Removes the index entries of the messages in a partition table retention is about to drop. By id
+	// rather than by range: partitions written by several nodes can have overlapping id ranges.
+	static void forgetPartition(Connection conn, String table) throws SQLException {
+		try (Statement statement = conn.createStatement()) {
+			try (ResultSet resultSet = statement.executeQuery(
+					"SELECT 1 FROM sqlite_master WHERE type = 'table' AND name = '" + table + "'")) {
+				if(!resultSet.next()) return;
+			}
+			statement.executeUpdate("DELETE FROM message_search WHERE rowid IN (SELECT id FROM " + table + ")");
+		}
+	}
+
+	// Removes the index entries of messages retention deleted.
+	static void forget(Connection conn, long minId, long maxId) throws SQLException {
+		try (PreparedStatement pStatement = conn.prepareStatement("DELETE FROM message_search WHERE rowid BETWEEN ? AND ?")) {
+			pStatement.setLong(1, minId);
+			pStatement.setLong(2, maxId);
+			pStatement.executeUpdate();
+		}
+	}
+
+	// One page of the messages userId may see (rooms in roomIds, DMs they sent or received) that
+	// contain every term, best match first. Returns the offset of the next page, or 0 at the end.
+	public static int search(int userId, List<Integer> roomIds, String query, int offset, int pageSize, SearchVisitor visitor) {
+		String match = buildMatch(userId, roomIds, query);
+		if(match == null) return 0;
+		int limit = Math.max(1, Math.min(pageSize, MAX_PAGE_SIZE));
+		offset = Math.max(0, offset);
+		if(offset >= RANK_WINDOW) return 0;
+		long start = System.nanoTime();
+		int rows = 0;
+		try (Connection conn = DatabaseManager.getConnection();
+			 PreparedStatement pStatement = conn.prepareStatement(SEARCH_SQL)) {
+			 pStatement.setString(1, match);
+			 pStatement.setInt(2, RANK_WINDOW);
+			 pStatement.setInt(3, limit);
+			 pStatement.setInt(4, offset);
+			 try (ResultSet resultSet = pStatement.executeQuery()) {
+				 while(resultSet.next()) {
+					 visitor.hit(resultSet.getLong(1), resultSet.getString(2), resultSet.getString(3),
+							 resultSet.getString(4), resultSet.getString(5), resultSet.getString(6));
+					 rows++;
+				 }
+			 }
+		} catch (SQLException e) {
+			System.err.println("search error: " + e.getMessage());
+			return 0;
+		}
+		long elapsed = System.nanoTime() - start;
+		searches.increment();
+		searchNanos.add(elapsed);
+		maxSearchNanos.accumulateAndGet(elapsed, Math::max);
+		return rows == limit && offset + limit < RANK_WINDOW ? offset + limit : 0;
+	}
+
+	public static Stats stats() {
+		return new Stats(indexed.sum(), searches.sum(), searchNanos.sum(), maxSearchNanos.get());
+	}
+
+	// body:("t1" "t2"*) AND scope:(u<me> OR r1 OR r2 ...). Terms are quoted, so FTS5 syntax in the
+	// query is searched for literally; a trailing * keeps prefix matching (served by the 3-character
+	// prefix index). Null if no usable term.
+	static String buildMatch(int userId, List<Integer> roomIds, String query) {
+		if(query == null) return null;
+		StringBuilder terms = new StringBuilder();
+		int count = 0;
+		for(String word : query.trim().split("\\s+")) {
+			String term = word.endsWith("*") ? word.substring(0, word.length() - 1) : word;
+			boolean prefix = term.length() < word.length() && term.length() >= MIN_PREFIX;
+			if(term.isEmpty() || count == MAX_TERMS) continue;
+			if(count++ > 0) terms.append(' ');
+			terms.append('"').append(term.replace("\"", "\"\"")).append('"');
+			if(prefix) terms.append('*');
+		}
+		if(count == 0) return null;
+		StringBuilder match = new StringBuilder(terms.length() + 16 + roomIds.size() * 8);
+		match.append("body : (").append(terms).append(") AND scope : (u").append(userId);
+		for(Integer roomId : roomIds) match.append(" OR r").append(roomId);
+		return match.append(')').toString();
+	}
+}
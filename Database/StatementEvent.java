@@ -0,0 +1,36 @@
+package database;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+// Flight Recorder event for a pooled statement execution that took longer than the threshold (10 ms
+// by default). The stack trace is kept so the DAO method that ran the statement can be seen.
+@Name("chat.Statement")
+@Label("Chat Database Statement")
+@Category({ "Chat", "Database" })
+@Description("A prepared statement that took longer than the threshold to execute")
+@Threshold("10 ms")
+@StackTrace(true)
+final class StatementEvent extends jdk.jfr.Event {
+
+	@Label("SQL")
+	String sql;
+
+	// Rows changed by an update or batch; -1 for queries, whose rows are read after execution.
+	@Label("Rows")
+	long rows;
+
+	static long rows(Object result) {
+		if(result instanceof Integer || result instanceof Long) return ((Number) result).longValue();
+		if(result instanceof int[]) {
+			long rows = 0;
+			for(int n : (int[]) result) rows += Math.max(n, 0);
+			return rows;
+		}
+		return -1;
+	}
+}
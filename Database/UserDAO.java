@@ -11,6 +11,8 @@ public class UserDAO {
 	
 	public enum LoginResult { OK, NO_SUCH_USER, WRONG_PASSWORD, DB_ERROR }
 	
+	private static final IdCache idCache = new IdCache(Integer.getInteger("chat.cache.userIds", 100_000));
+	
 	public static void initDatabase() {
 		String sqlCommand = "CREATE TABLE IF NOT EXISTS users (" +
 							"id INTEGER PRIMARY KEY AUTOINCREMENT," +
@@ -38,6 +40,7 @@ public class UserDAO {
 	         pStatement.setString(1, username);
 	         pStatement.setString(2, hashPassword(password));
 	         pStatement.executeUpdate();
+	         idCache.invalidate(username);
 	         return RegisterResult.OK;
 	    } catch (SQLException e) {
 	         return RegisterResult.DB_ERROR;
@@ -122,6 +125,7 @@ public class UserDAO {
 		try(Connection conn = DatabaseManager.getConnection();
 			Statement statement = conn.createStatement()) {
 			statement.execute(sqlCommand);
+			idCache.invalidateAll();
 			System.out.println("User Table Dropped!");
 		} catch (SQLException e) {
 			System.err.println("Error dropping users table: " + e.getMessage());
@@ -129,19 +133,40 @@ public class UserDAO {
 	}
 	
 	public static Integer getUserId(String username) {
-		String sqlCommand = "SELECT id FROM users WHERE username = ?";
-		try(Connection conn = DatabaseManager.getConnection();
-			PreparedStatement pStatement = conn.prepareStatement(sqlCommand)){
+		if(username == null) return null;
+		Integer cached = idCache.get(username);
+		if(cached != null) return cached;
+		try(Connection conn = DatabaseManager.getConnection()){
+			return getUserId(conn, username);
+		} catch(SQLException e) {
+			System.err.println("getUserId error: " + e.getMessage());
+		}
+		return null;
+	}
+	
+	// Same lookup on a connection the caller already holds, such as a batch writer's transaction:
+	// borrowing a second one there could wait on the pool for the first.
+	static Integer getUserId(Connection conn, String username) throws SQLException {
+		if(username == null) return null;
+		Integer cached = idCache.get(username);
+		if(cached != null) return cached;
+		try(PreparedStatement pStatement = conn.prepareStatement("SELECT id FROM users WHERE username = ?")){
 			pStatement.setString(1, username);
 			try(ResultSet rs = pStatement.executeQuery()){
-				if(rs.next()) return rs.getInt(1);
+				if(rs.next()) {
+					int id = rs.getInt(1);
+					idCache.put(username, id);
+					return id;
+				}
 			}
-		} catch(SQLException e) {
-			System.err.println("getUserId error: " + e.getMessage());
 		}
 		return null;
 	}
 	
+	public static IdCache.Stats idCacheStats() {
+		return idCache.stats();
+	}
+	
 	public static boolean usernameExists(String username) {
 		if(username == null) return false;
 		username = username.trim();
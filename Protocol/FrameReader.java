@@ -0,0 +1,100 @@
+package protocol;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// Reads text lines and, after negotiation, binary frames from one stream. It buffers on its own
+// and must be the only reader of the stream, so switching from lines to frames never loses bytes
+// that were read ahead. Lines and frames longer than the reader's limit fail with an IOException.
+public final class FrameReader {
+
+	private final InputStream in;
+	private final int maxLength;
+	private final byte[] buffer = new byte[8192];
+	private int position;
+	private int limit;
+	private byte[] scratch = new byte[256];
+
+	// Limited to WireFormat.MAX_FRAME, for the server reading a client.
+	public FrameReader(InputStream in) {
+		this(in, WireFormat.MAX_FRAME);
+	}
+
+	public FrameReader(InputStream in, int maxLength) {
+		this.in = in;
+		this.maxLength = maxLength;
+	}
+
+	// Next '\n'-terminated line without the terminator (or a trailing '\r'); null at end of stream.
+	public String readLine() throws IOException {
+		int length = 0;
+		while(true) {
+			if(position == limit && !fill()) {
+				if(length == 0) return null;
+				break;
+			}
+			int start = position;
+			while(position < limit && buffer[position] != '\n') position++;
+			int chunk = position - start;
+			if(length + chunk > maxLength) throw new IOException("Line too long");
+			ensureScratch(length + chunk);
+			System.arraycopy(buffer, start, scratch, length, chunk);
+			length += chunk;
+			if(position < limit) {
+				position++;
+				break;
+			}
+		}
+		if(length > 0 && scratch[length - 1] == '\r') length--;
+		return new String(scratch, 0, length, StandardCharsets.UTF_8);
+	}
+
+	// Next binary frame decoded back to its line; null at end of stream between frames.
+	public String readFrame() throws IOException {
+		int length = 0;
+		int shift = 0;
+		while(true) {
+			if(position == limit && !fill()) {
+				if(shift == 0) return null;
+				throw new IOException("Truncated frame length");
+			}
+			int b = buffer[position++];
+			length |= (b & 0x7F) << shift;
+			if((b & 0x80) == 0) break;
+			shift += 7;
+			if(shift > 28) throw new IOException("Malformed frame length");
+		}
+		if(length < 1 || length > maxLength) throw new IOException("Bad frame length " + length);
+		if(limit - position >= length) {
+			String line = WireFormat.decodeInPlace(buffer, position, length);
+			position += length;
+			return line;
+		}
+		ensureScratch(WireFormat.HEADROOM + length);
+		int copied = 0;
+		while(copied < length) {
+			if(position == limit && !fill()) throw new IOException("Truncated frame");
+			int chunk = Math.min(length - copied, limit - position);
+			System.arraycopy(buffer, position, scratch, WireFormat.HEADROOM + copied, chunk);
+			position += chunk;
+			copied += chunk;
+		}
+		return WireFormat.decodeInPlace(scratch, WireFormat.HEADROOM, length);
+	}
+
+	private boolean fill() throws IOException {
+		int n = in.read(buffer, 0, buffer.length);
+		if(n <= 0) return false;
+		position = 0;
+		limit = n;
+		return true;
+	}
+
+	private void ensureScratch(int needed) {
+		if(needed > scratch.length) {
+			scratch = Arrays.copyOf(scratch, Math.max(needed, Math.min(WireFormat.HEADROOM + maxLength, scratch.length * 2)));
+		}
+	}
+}
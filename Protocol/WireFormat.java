@@ -0,0 +1,127 @@
+package protocol;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+// Compact binary framing, negotiated per connection by sending the text line "PROTO BINARY".
+// The server answers "PROTO BINARY OK" as its last text line; from then on both directions use
+//   frame = varint(bodyLength) body,  body = opcode byte + UTF-8 payload
+// A known verb followed by a space travels as its opcode and the payload is the rest of the line;
+// anything else travels whole under opcode 0. Payloads may contain newlines.
+public final class WireFormat {
+
+	public static final String NEGOTIATE = "PROTO BINARY";
+	public static final String ACK = "PROTO BINARY OK";
+	// Longest line or frame the server reads from a client.
+	public static final int MAX_FRAME = 64 * 1024;
+	// Longest line or frame a client reads from the server. Presence lists grow with the number of
+	// users online, so the server's output has no fixed bound; this only stops a runaway stream.
+	public static final int MAX_SERVER_FRAME = 16 * 1024 * 1024;
+
+	private static final int RAW = 0;
+
+	// Index is the opcode. Append only: reordering breaks clients built against the old table.
+	private static final String[] VERBS = {
+			null,
+			// server -> client
+			"SYS", "ERR", "JOINED", "ONLINE", "STATUSES", "PRESENCESNAP", "PRESENCE", "FRIENDS",
+			"DMFROM", "ROOMFROM", "FRIENDREQFROM", "FRIENDREQS", "ROOMINVITE", "DMHISTORYLINE",
+			"DMHISTORYDONE", "ROOMHISTLINE", "ROOMHISTORYLINE", "ROOMHISTORYDONE",
+			// client -> server (REGISTER/LOGIN also prefix the server's auth replies)
+			"REGISTER", "LOGIN", "JOIN", "LEAVE", "ROOMMSG", "DM", "FRIEND_ADD", "FRIEND_REMOVE",
+			"FRIEND_REQ", "FRIEND_REQUEST", "FRIEND_ACCEPT", "FRIEND_DECLINE", "STATUS",
+			"PRESENCE_SYNC", "ROOM_INVITE", "ROOM_INVITE_ACCEPT", "ROOM_INVITE_DECLINE",
+			"DM_HISTORY", "ROOM_HISTORY",
+			"HISTORY", "HISTORYLINE", "HISTORYEND",
+			"SEARCH", "SEARCHHIT", "SEARCHEND"
+	};
+	private static final Map<String, Integer> OPCODES = new HashMap<>();
+	// "VERB " as bytes, for decoding straight into one String.
+	private static final byte[][] PREFIXES = new byte[VERBS.length][];
+	static {
+		for(int op = 1; op < VERBS.length; op++) {
+			OPCODES.put(VERBS[op], op);
+			PREFIXES[op] = (VERBS[op] + " ").getBytes(StandardCharsets.US_ASCII);
+		}
+	}
+
+	// Bytes decodeInPlace may overwrite ahead of a frame body: the longest "VERB " minus the opcode byte.
+	public static final int HEADROOM = 24;
+
+	private WireFormat() {
+	}
+
+	// Bytes the string takes in UTF-8, without encoding it.
+	public static int utf8Length(String s) {
+		int length = s.length();
+		for(int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if(c < 0x80) continue;
+			if(c < 0x800) {
+				length += 1;
+			} else if(Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+				length += 2;
+				i++;
+			} else {
+				length += 2;
+			}
+		}
+		return length;
+	}
+
+	// The whole frame, length prefix included.
+	public static byte[] encode(String line) {
+		byte[] utf8 = line.getBytes(StandardCharsets.UTF_8);
+		int space = line.indexOf(' ');
+		Integer op = space > 0 ? OPCODES.get(line.substring(0, space)) : null;
+		// Verbs are ASCII, so the char index of the space is also its byte index.
+		int payloadStart = op == null ? 0 : space + 1;
+		int bodyLength = 1 + utf8.length - payloadStart;
+		byte[] frame = new byte[varintSize(bodyLength) + bodyLength];
+		int pos = writeVarint(frame, 0, bodyLength);
+		frame[pos++] = (byte) (op == null ? RAW : op);
+		System.arraycopy(utf8, payloadStart, frame, pos, utf8.length - payloadStart);
+		return frame;
+	}
+
+	// Turns a frame body back into the line it was encoded from.
+	public static String decode(byte[] body, int offset, int length) throws IOException {
+		if(length < 1) throw new IOException("Empty frame");
+		int op = body[offset] & 0xFF;
+		String payload = new String(body, offset + 1, length - 1, StandardCharsets.UTF_8);
+		if(op == RAW) return payload;
+		if(op >= VERBS.length) throw new IOException("Unknown opcode " + op);
+		return VERBS[op] + " " + payload;
+	}
+
+	// Like decode, but writes the verb into the bytes just before the body (which the caller has
+	// already consumed) so the line is built with a single String allocation.
+	public static String decodeInPlace(byte[] buffer, int offset, int length) throws IOException {
+		if(length < 1) throw new IOException("Empty frame");
+		int op = buffer[offset] & 0xFF;
+		if(op == RAW) return new String(buffer, offset + 1, length - 1, StandardCharsets.UTF_8);
+		if(op >= VERBS.length) throw new IOException("Unknown opcode " + op);
+		byte[] prefix = PREFIXES[op];
+		int start = offset + 1 - prefix.length;
+		if(start < 0) return decode(buffer, offset, length);
+		System.arraycopy(prefix, 0, buffer, start, prefix.length);
+		return new String(buffer, start, prefix.length + length - 1, StandardCharsets.UTF_8);
+	}
+
+	public static int varintSize(int value) {
+		int size = 1;
+		while((value >>>= 7) != 0) size++;
+		return size;
+	}
+
+	public static int writeVarint(byte[] dst, int pos, int value) {
+		while((value & ~0x7F) != 0) {
+			dst[pos++] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		dst[pos++] = (byte) value;
+		return pos;
+	}
+}
@@ -0,0 +1,140 @@
+package database;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+// Concurrent history reads while the message writer and ActivityLogDAO insert as fast as they can,
+// once per durability profile. Each profile runs in its own JVM on its own database file, since the
+// profile is fixed per process. Reports read throughput and latency percentiles next to write rates.
+// Run with: java -cp <classes>:<sqlite-jdbc.jar> database.DurabilityProfileBenchmark [seconds] [readers]
+public class DurabilityProfileBenchmark {
+
+	private static final int USERS = 20;
+	private static final int SEED_MESSAGES = 20_000;
+	private static final int WRITERS = 2;
+	private static final String ROOM = "bench";
+
+	public static void main(String[] args) throws Exception {
+		if(args.length > 0 && args[0].equals("--child")) {
+			child(Integer.parseInt(args[1]), Integer.parseInt(args[2]));
+			return;
+		}
+		String seconds = args.length > 0 ? args[0] : "10";
+		String readers = args.length > 1 ? args[1] : "4";
+		File dir = new File(System.getProperty("java.io.tmpdir"), "chat-durability-bench");
+		dir.mkdirs();
+		String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+		for(DatabaseManager.Durability profile : DatabaseManager.Durability.values()) {
+			File db = new File(dir, profile.name().toLowerCase() + ".db");
+			for(String suffix : new String[] { "", "-wal", "-shm", "-journal" }) new File(db.getPath() + suffix).delete();
+			Process process = new ProcessBuilder(java,
+					"-Dchat.db.path=" + db.getPath(),
+					"-Dchat.db.durability=" + profile.name(),
+					"-cp", System.getProperty("java.class.path"),
+					DurabilityProfileBenchmark.class.getName(), "--child", seconds, readers)
+					.redirectErrorStream(true)
+					.start();
+			try (BufferedReader out = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+				String line;
+				while((line = out.readLine()) != null) {
+					if(line.startsWith("RESULT ")) System.out.printf("%-8s %s%n", profile, line.substring(7));
+					else if(line.contains("error")) System.out.println(profile + ": " + line);
+				}
+			}
+			process.waitFor();
+		}
+	}
+
+	private static void child(int seconds, int readers) throws Exception {
+		UserDAO.initDatabase();
+		RoomDAO.initRoomTable();
+		MessageDAO.initMessageTable();
+		ActivityLogDAO.initActivityLogTable();
+		SchemaMigrations.migrate();
+		for(int i = 0; i < USERS; i++) UserDAO.registerUser("bench" + i, "Bench-pass1");
+		int roomId = RoomDAO.ensureRoomExist(ROOM, "bench0");
+		for(int i = 0; i < SEED_MESSAGES; i++) MessageDAO.saveRoom("bench" + (i % USERS), ROOM, "seed message " + i);
+		MessageDAO.awaitPersisted(60_000);
+		DatabaseManager.startCheckpointing();
+
+		AtomicBoolean running = new AtomicBoolean(true);
+		LongAdder messagesWritten = new LongAdder();
+		List<Thread> threads = new ArrayList<>();
+		for(int w = 0; w < WRITERS; w++) {
+			int writer = w;
+			// One thread feeds the message writer, the other the activity log writer.
+			threads.add(new Thread(() -> {
+				int n = 0;
+				while(running.get()) {
+					String user = "bench" + (n++ % USERS);
+					if(writer == 0) {
+						MessageDAO.saveRoom(user, ROOM, "load message " + n);
+						messagesWritten.increment();
+					} else {
+						ActivityLogDAO.log(user, "BENCH", "event " + n);
+					}
+				}
+			}, "Writer-" + w));
+		}
+		long[][] latencies = new long[readers][];
+		int[] reads = new int[readers];
+		for(int r = 0; r < readers; r++) {
+			int reader = r;
+			threads.add(new Thread(() -> {
+				long[] samples = new long[1 << 16];
+				int count = 0;
+				try {
+					while(running.get()) {
+						long start = System.nanoTime();
+						MessageDAO.readPage(true, roomId, 1 + ThreadLocalRandom.current().nextInt(SEED_MESSAGES), 50);
+						if(count == samples.length) samples = Arrays.copyOf(samples, count * 2);
+						samples[count++] = System.nanoTime() - start;
+					}
+				} catch (SQLException e) {
+					System.out.println("reader error: " + e.getMessage());
+				}
+				latencies[reader] = Arrays.copyOf(samples, count);
+				reads[reader] = count;
+			}, "Reader-" + r));
+		}
+		for(Thread t : threads) t.start();
+		Thread.sleep(seconds * 1000L);
+		running.set(false);
+		for(Thread t : threads) t.join();
+		long drainStart = System.nanoTime();
+		long activityWritten = ActivityLogDAO.stats().written;
+		MessageDAO.awaitPersisted(60_000);
+		double drainMs = (System.nanoTime() - drainStart) / 1e6;
+
+		int total = 0;
+		for(int r : reads) total += r;
+		long[] all = new long[total];
+		int pos = 0;
+		for(long[] l : latencies) {
+			System.arraycopy(l, 0, all, pos, l.length);
+			pos += l.length;
+		}
+		Arrays.sort(all);
+		System.out.printf("RESULT reads/s %8.0f  p50 %7.1fus  p99 %8.1fus  max %9.1fus | messages/s %8.0f (drain %.0f ms)  activity/s %7.0f | %s%n",
+				(double) total / seconds, percentile(all, 0.50), percentile(all, 0.99), percentile(all, 1.0),
+				messagesWritten.sum() / (seconds + drainMs / 1000), drainMs,
+				(double) activityWritten / seconds, DatabaseManager.checkpointStats());
+		MessageDAO.shutdown();
+		ActivityLogDAO.shutdown();
+		DatabaseManager.shutdown();
+	}
+
+	private static double percentile(long[] sorted, double p) {
+		if(sorted.length == 0) return 0;
+		return sorted[Math.min(sorted.length - 1, (int) (p * sorted.length))] / 1000.0;
+	}
+}
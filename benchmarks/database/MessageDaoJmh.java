@@ -0,0 +1,101 @@
+package database;
+
+import java.io.File;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// MessageDAO and SearchDAO against a seeded database: enqueueing a room message, enqueue plus
+// waiting for the writer, the cached recent page, a deep page read from the partitions, and a
+// SEARCH page. The database file is fixed by the fork's -Dchat.db.path and recreated each trial.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dchat.db.path=build/jmh/message-dao.db")
+@State(Scope.Benchmark)
+public class MessageDaoJmh {
+
+	private static final int USERS = 20;
+	private static final int SEED_MESSAGES = 50_000;
+	private static final String ROOM = "bench";
+	private static final String[] WORDS = { "deploy", "release", "lunch", "standup", "review", "incident", "design", "ticket" };
+
+	private int roomId;
+	private int userId;
+	private List<Integer> roomIds;
+	private long sink;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		// Runs before any DAO class is loaded, so the connection pool opens the fresh file.
+		File db = new File(System.getProperty("chat.db.path"));
+		db.getParentFile().mkdirs();
+		for(String suffix : new String[] { "", "-wal", "-shm", "-journal" }) new File(db.getPath() + suffix).delete();
+		UserDAO.initDatabase();
+		RoomDAO.initRoomTable();
+		MessageDAO.initMessageTable();
+		ActivityLogDAO.initActivityLogTable();
+		SchemaMigrations.migrate();
+		for(int i = 0; i < USERS; i++) UserDAO.registerUser("bench" + i, "Bench-pass1");
+		roomId = RoomDAO.ensureRoomExist(ROOM, "bench0");
+		userId = UserDAO.getUserId("bench0");
+		RoomDAO.addMember(roomId, userId);
+		roomIds = RoomDAO.listRoomIds(userId);
+		for(int i = 0; i < SEED_MESSAGES; i++) {
+			MessageDAO.saveRoom("bench" + (i % USERS), ROOM,
+					"seed message " + i + " about the " + WORDS[i % WORDS.length] + " and " + WORDS[(i / 7) % WORDS.length]);
+		}
+		MessageDAO.awaitPersisted(120_000);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		MessageDAO.shutdown();
+		ActivityLogDAO.shutdown();
+		DatabaseManager.shutdown();
+	}
+
+	@Benchmark
+	public long saveRoom() {
+		return MessageDAO.saveRoom("bench1", ROOM, "benchmark message");
+	}
+
+	@Benchmark
+	public boolean saveRoomPersisted() {
+		MessageDAO.saveRoom("bench1", ROOM, "benchmark message");
+		return MessageDAO.awaitPersisted(10_000);
+	}
+
+	@Benchmark
+	public int recentRoomHistory() {
+		return MessageDAO.getRoomHistory(ROOM, 50).size();
+	}
+
+	@Benchmark
+	public int deepRoomPage() throws SQLException {
+		long before = 1 + ThreadLocalRandom.current().nextInt(SEED_MESSAGES);
+		return MessageDAO.readPage(true, roomId, before, 50).size();
+	}
+
+	@Benchmark
+	public long search() {
+		String term = WORDS[ThreadLocalRandom.current().nextInt(WORDS.length)];
+		SearchDAO.search(userId, roomIds, term + " dep*", 0, 20, (id, kind, from, to, body, createdAt) -> sink += id);
+		return sink;
+	}
+}
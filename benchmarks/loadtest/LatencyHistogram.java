@@ -0,0 +1,125 @@
+package loadtest;
+
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// Log-linear histogram in the style of HdrHistogram: values below 256 are counted exactly, above
+// that every power of two is split into 128 buckets, so a reported value is within 1/128 (0.8%)
+// of a recorded one. Values are microseconds. record() is lock-free and safe from any thread;
+// drainInto() moves the counts out atomically, so an interval histogram can be read while recording.
+public class LatencyHistogram {
+
+	private static final int SUB_BITS = 8;
+	private static final int HALF = 1 << (SUB_BITS - 1);
+
+	private final AtomicLongArray counts = new AtomicLongArray((64 - SUB_BITS) * HALF + 2 * HALF);
+	private final LongAdder total = new LongAdder();
+	private final LongAdder sum = new LongAdder();
+	private final AtomicLong max = new AtomicLong();
+
+	public void record(long value) {
+		if(value < 0) value = 0;
+		counts.incrementAndGet(index(value));
+		total.increment();
+		sum.add(value);
+		max.accumulateAndGet(value, Math::max);
+	}
+
+	// Adds this histogram's counts to target and resets this one.
+	public void drainInto(LatencyHistogram target) {
+		for(int i = 0; i < counts.length(); i++) {
+			long count = counts.getAndSet(i, 0);
+			if(count != 0) target.counts.addAndGet(i, count);
+		}
+		target.total.add(total.sumThenReset());
+		target.sum.add(sum.sumThenReset());
+		long intervalMax = max.getAndSet(0);
+		target.max.accumulateAndGet(intervalMax, Math::max);
+	}
+
+	public void reset() {
+		for(int i = 0; i < counts.length(); i++) counts.set(i, 0);
+		total.reset();
+		sum.reset();
+		max.set(0);
+	}
+
+	public long count() {
+		return total.sum();
+	}
+
+	public long max() {
+		return max.get();
+	}
+
+	public double mean() {
+		long count = total.sum();
+		return count == 0 ? 0.0 : (double) sum.sum() / count;
+	}
+
+	// Highest value (within bucket resolution) at or below which percentile% of the values fall.
+	public long valueAtPercentile(double percentile) {
+		long count = total.sum();
+		if(count == 0) return 0;
+		long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * count));
+		long seen = 0;
+		for(int i = 0; i < counts.length(); i++) {
+			seen += counts.get(i);
+			if(seen >= rank) return Math.min(highestEquivalent(i), max.get());
+		}
+		return max.get();
+	}
+
+	public String summary(double scale) {
+		return String.format("count=%d mean=%.3f p50=%.3f p90=%.3f p99=%.3f p99.9=%.3f p99.99=%.3f max=%.3f",
+				count(), mean() / scale, valueAtPercentile(50) / scale, valueAtPercentile(90) / scale,
+				valueAtPercentile(99) / scale, valueAtPercentile(99.9) / scale, valueAtPercentile(99.99) / scale,
+				max() / scale);
+	}
+
+	// The percentile distribution in HdrHistogram's text format (readable by its plotting tools):
+	// five reporting steps per halving of the distance to 100%.
+	public void printDistribution(PrintStream out, double scale) {
+		long count = total.sum();
+		out.println(String.format("%12s %14s %10s %14s", "Value", "Percentile", "TotalCount", "1/(1-Percentile)"));
+		out.println();
+		double percentile = 0;
+		while(count > 0) {
+			long value = valueAtPercentile(percentile);
+			long below = countAtOrBelow(value);
+			double reached = 100.0 * below / count;
+			if(below >= count) {
+				out.println(String.format("%12.3f %1.12f %10d", value / scale, 1.0, count));
+				break;
+			}
+			out.println(String.format("%12.3f %1.12f %10d %14.2f", value / scale, reached / 100, below, 100 / (100 - reached)));
+			int halvings = (int) Math.floor(Math.log(100 / (100 - reached)) / Math.log(2));
+			percentile = Math.max(percentile, reached) + 100 / (5 * Math.pow(2, halvings + 1));
+		}
+		out.println(String.format("#[Mean    = %12.3f, Max         = %12.3f]", mean() / scale, max() / scale));
+		out.println(String.format("#[Total count = %10d, Resolution  = 1/%d]", count, HALF));
+	}
+
+	private long countAtOrBelow(long value) {
+		int last = index(value);
+		long seen = 0;
+		for(int i = 0; i <= last; i++) seen += counts.get(i);
+		return seen;
+	}
+
+	private static int index(long value) {
+		int msb = 63 - Long.numberOfLeadingZeros(value | 1);
+		if(msb < SUB_BITS) return (int) value;
+		int shift = msb - SUB_BITS + 1;
+		return shift * HALF + (int) (value >>> shift);
+	}
+
+	private static long highestEquivalent(int index) {
+		if(index < 2 * HALF) return index;
+		int shift = index / HALF - 1;
+		long sub = index - (long) shift * HALF;
+		return ((sub + 1) << shift) - 1;
+	}
+}
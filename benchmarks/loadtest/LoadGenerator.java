@@ -0,0 +1,402 @@
+package loadtest;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+import java.util.function.IntSupplier;
+
+// Headless capacity test: connects thousands of simulated users to a running ChatServer over the
+// text protocol, drives one scenario at a fixed per-user rate and reports throughput and
+// end-to-end delivery latency. Latency runs from the moment a message was due to be sent to the
+// moment a recipient reads it, so a stall in the server (or the generator) shows up as latency
+// instead of as fewer samples. Start the server first, then run:
+//   java -cp <classes> loadtest.LoadGenerator <lobby|rooms|dm|reconnect> [clients] [seconds]
+// Options (-Dload.*): host, port, rate (messages per user per second), roomSize, messageBytes,
+// warmup and report (seconds), connectRate (new connections per second), prefix (user names),
+// password, stormEvery (seconds) and stormFraction, histogram (file for the full distribution).
+public class LoadGenerator {
+
+	enum Scenario {
+		// Everyone in the lobby; every message fans out to all users.
+		LOBBY(0.02),
+		// Rooms of load.roomSize users; each user talks in their own room.
+		ROOMS(0.5),
+		// Each user sends DMs to random other users.
+		DM(1.0),
+		// DM traffic while load.stormFraction of the users drop and log back in every load.stormEvery seconds.
+		RECONNECT(0.2);
+
+		final double defaultRate;
+
+		Scenario(double defaultRate) {
+			this.defaultRate = defaultRate;
+		}
+	}
+
+	private static final String HOST = System.getProperty("load.host", "localhost");
+	private static final int PORT = Integer.getInteger("load.port", 5000);
+	private static final int ROOM_SIZE = Math.max(2, Integer.getInteger("load.roomSize", 10));
+	private static final int MESSAGE_BYTES = Integer.getInteger("load.messageBytes", 64);
+	private static final int WARMUP_SECONDS = Integer.getInteger("load.warmup", 5);
+	private static final int REPORT_SECONDS = Math.max(1, Integer.getInteger("load.report", 5));
+	private static final int CONNECT_RATE = Math.max(1, Integer.getInteger("load.connectRate", 500));
+	private static final String PREFIX = System.getProperty("load.prefix", "load");
+	private static final String PASSWORD = System.getProperty("load.password", "Load-pass1");
+	private static final int STORM_EVERY_SECONDS = Math.max(1, Integer.getInteger("load.stormEvery", 10));
+	private static final double STORM_FRACTION = Double.parseDouble(System.getProperty("load.stormFraction", "0.2"));
+	private static final String HISTOGRAM_FILE = System.getProperty("load.histogram");
+	private static final int CONNECT_ATTEMPTS = 5;
+	private static final long STALL_MILLIS = 30_000;
+	private static final double MICROS_PER_MS = 1000.0;
+
+	private final Scenario scenario;
+	private final int clientCount;
+	private final int seconds;
+	private final double rate;
+	private final InetSocketAddress address = new InetSocketAddress(HOST, PORT);
+	// Stamps are nanoseconds since this instant, so they are never negative.
+	private final long epoch = System.nanoTime();
+	private final String padding;
+
+	private final List<SimulatedClient> clients = new ArrayList<>();
+	private final List<Reactor> reactors = new ArrayList<>();
+	private final ExecutorService connector;
+	private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> daemon(r, "LoadScheduler"));
+
+	private volatile boolean running = true;
+	private volatile boolean roomsReady;
+	// Deliveries of messages due before this stamp are warmup and not recorded.
+	private volatile long measureFrom = Long.MAX_VALUE;
+
+	private final LatencyHistogram deliveryInterval = new LatencyHistogram();
+	private final LatencyHistogram delivery = new LatencyHistogram();
+	private final LatencyHistogram loginInterval = new LatencyHistogram();
+	private final LatencyHistogram login = new LatencyHistogram();
+	private final LongAdder sent = new LongAdder();
+	private final LongAdder sentInterval = new LongAdder();
+	private final LongAdder errors = new LongAdder();
+	private final LongAdder droppedSends = new LongAdder();
+	private final LongAdder lostConnections = new LongAdder();
+	private final LongAdder failedConnects = new LongAdder();
+	private final LongAdder offlineTargets = new LongAdder();
+	private final AtomicInteger invitesAcked = new AtomicInteger();
+	private final AtomicInteger errorsPrinted = new AtomicInteger();
+
+	LoadGenerator(Scenario scenario, int clientCount, int seconds) throws IOException {
+		this.scenario = scenario;
+		this.clientCount = clientCount;
+		this.seconds = seconds;
+		String rateProperty = System.getProperty("load.rate");
+		this.rate = rateProperty == null ? scenario.defaultRate : Double.parseDouble(rateProperty);
+		this.padding = "x".repeat(Math.max(0, MESSAGE_BYTES - 24));
+		int cores = Runtime.getRuntime().availableProcessors();
+		for(int i = 0; i < Math.max(1, cores / 2); i++) {
+			Reactor reactor = new Reactor();
+			reactors.add(reactor);
+			daemon(reactor, "LoadReactor-" + i).start();
+		}
+		connector = Executors.newFixedThreadPool(8, r -> daemon(r, "LoadConnector"));
+		for(int i = 0; i < clientCount; i++) {
+			clients.add(new SimulatedClient(i, PREFIX + i, PASSWORD, reactors.get(i % reactors.size()), this));
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		if(args.length == 0) {
+			System.out.println("usage: LoadGenerator <lobby|rooms|dm|reconnect> [clients] [seconds]");
+			return;
+		}
+		Scenario scenario = Scenario.valueOf(args[0].trim().toUpperCase(Locale.ROOT));
+		int clients = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+		int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 60;
+		new LoadGenerator(scenario, clients, seconds).run();
+	}
+
+	void run() throws InterruptedException {
+		System.out.printf("scenario=%s clients=%d seconds=%d rate=%.3f/user/s server=%s:%d%n",
+				scenario, clientCount, seconds, rate, HOST, PORT);
+		long rampStart = System.nanoTime();
+		for(SimulatedClient client : clients) {
+			long due = rampStart + client.index * 1_000_000_000L / CONNECT_RATE;
+			long wait = due - System.nanoTime();
+			if(wait > 0) LockSupport.parkNanos(wait);
+			connector.execute(() -> connect(client));
+		}
+		boolean allIn = await(() -> readyCount() + failedConnects.intValue() >= clientCount, this::readyCount);
+		loginInterval.drainInto(login);
+		System.out.printf("logged in %d/%d in %.1fs%s; login ms: %s%n", readyCount(), clientCount,
+				(System.nanoTime() - rampStart) / 1e9, allIn ? "" : " (timed out)", login.summary(MICROS_PER_MS));
+		login.reset();
+
+		if(scenario == Scenario.LOBBY) {
+			for(SimulatedClient client : clients) {
+				client.room = "lobby";
+				client.inRoom = client.state == SimulatedClient.State.READY;
+			}
+		} else if(scenario == Scenario.ROOMS) {
+			setUpRooms();
+		}
+		roomsReady = true;
+
+		List<Thread> pacers = new ArrayList<>();
+		int pacerCount = reactors.size();
+		for(int p = 0; p < pacerCount; p++) {
+			int slice = p;
+			Thread pacer = daemon(() -> pace(slice, pacerCount), "LoadPacer-" + p);
+			pacers.add(pacer);
+			pacer.start();
+		}
+		if(scenario == Scenario.RECONNECT) {
+			scheduler.scheduleAtFixedRate(this::storm, STORM_EVERY_SECONDS, STORM_EVERY_SECONDS, TimeUnit.SECONDS);
+		}
+
+		Thread.sleep(WARMUP_SECONDS * 1000L);
+		measureFrom = System.nanoTime() - epoch;
+		loginInterval.reset();
+		sent.reset();
+		sentInterval.reset();
+		long measureStart = System.nanoTime();
+		for(int elapsed = 0; elapsed < seconds; ) {
+			int step = Math.min(REPORT_SECONDS, seconds - elapsed);
+			elapsed += step;
+			long wait = measureStart + elapsed * 1_000_000_000L - System.nanoTime();
+			if(wait > 0) LockSupport.parkNanos(wait);
+			report(elapsed, step);
+		}
+		running = false;
+		scheduler.shutdownNow();
+		for(Thread pacer : pacers) pacer.join();
+		double measured = (System.nanoTime() - measureStart) / 1e9;
+		// Let messages already sent arrive.
+		Thread.sleep(1000);
+		deliveryInterval.drainInto(delivery);
+		loginInterval.drainInto(login);
+		summary(measured);
+		for(SimulatedClient client : clients) client.disconnect();
+		for(Reactor reactor : reactors) reactor.stop();
+		connector.shutdownNow();
+	}
+
+	// First member of each group creates the room and invites the others, who then join. Membership
+	// is stored, so on a second run the invites come back as "already in room" and the joins succeed.
+	private void setUpRooms() {
+		List<SimulatedClient> owners = new ArrayList<>();
+		List<SimulatedClient> members = new ArrayList<>();
+		for(SimulatedClient client : clients) {
+			client.room = PREFIX + "_" + ROOM_SIZE + "_" + client.index / ROOM_SIZE;
+			(client.index % ROOM_SIZE == 0 ? owners : members).add(client);
+		}
+		for(SimulatedClient owner : owners) owner.send("JOIN " + owner.room);
+		await(() -> owners.stream().allMatch(c -> c.inRoom || c.state != SimulatedClient.State.READY), this::inRoomCount);
+		for(SimulatedClient member : members) {
+			clients.get(member.index - member.index % ROOM_SIZE).send("ROOM_INVITE " + member.room + " " + member.username);
+		}
+		await(() -> invitesAcked.get() >= members.size(), invitesAcked::get);
+		for(SimulatedClient member : members) member.send("JOIN " + member.room);
+		boolean joined = await(() -> clients.stream().allMatch(c -> c.inRoom || c.state != SimulatedClient.State.READY),
+				this::inRoomCount);
+		System.out.printf("rooms: %d of %d users joined %d rooms of %d%s%n", inRoomCount(), clientCount,
+				owners.size(), ROOM_SIZE, joined ? "" : " (timed out)");
+	}
+
+	// Sends for clients slice, slice + stride, ... at their fixed rate. Each message is stamped with
+	// the time it was due, not the time it went out.
+	private void pace(int slice, int stride) {
+		if(rate <= 0) return;
+		long interval = (long) (1_000_000_000L / rate);
+		long start = System.nanoTime();
+		for(int i = slice; i < clientCount; i += stride) {
+			clients.get(i).nextSendNanos = start + ThreadLocalRandom.current().nextLong(interval);
+		}
+		while(running) {
+			long now = System.nanoTime();
+			for(int i = slice; i < clientCount; i += stride) {
+				SimulatedClient client = clients.get(i);
+				if(now < client.nextSendNanos) continue;
+				if(!client.canSend()) {
+					client.nextSendNanos = now + interval;
+					continue;
+				}
+				String message = message(client, client.nextSendNanos - epoch);
+				if(message != null && client.send(message)) {
+					sent.increment();
+					sentInterval.increment();
+				}
+				client.nextSendNanos += interval;
+			}
+			LockSupport.parkNanos(200_000);
+		}
+	}
+
+	private String message(SimulatedClient client, long stamp) {
+		String body = "lt " + stamp + " " + padding;
+		if(scenario == Scenario.LOBBY || scenario == Scenario.ROOMS) return "ROOMMSG " + client.room + " " + body;
+		if(clientCount < 2) return null;
+		int target = ThreadLocalRandom.current().nextInt(clientCount - 1);
+		if(target >= client.index) target++;
+		return "DM " + clients.get(target).username + " " + body;
+	}
+
+	// Drops a random share of the logged-in users at once and reconnects them all immediately.
+	private void storm() {
+		List<SimulatedClient> dropped = new ArrayList<>();
+		for(SimulatedClient client : clients) {
+			if(client.state == SimulatedClient.State.READY && ThreadLocalRandom.current().nextDouble() < STORM_FRACTION) {
+				client.disconnect();
+				dropped.add(client);
+			}
+		}
+		for(SimulatedClient client : dropped) connector.execute(() -> connect(client));
+	}
+
+	private void connect(SimulatedClient client) {
+		client.state = SimulatedClient.State.CONNECTING;
+		client.connectStartNanos = System.nanoTime();
+		for(int attempt = 1; attempt <= CONNECT_ATTEMPTS && running; attempt++) {
+			SocketChannel channel = null;
+			try {
+				channel = SocketChannel.open();
+				channel.socket().setTcpNoDelay(true);
+				channel.socket().connect(address, 5000);
+				client.attach(channel);
+				return;
+			} catch (IOException e) {
+				if(channel != null) {
+					try {
+						channel.close();
+					} catch (IOException ignored) {
+
+					}
+				}
+				if(attempt == CONNECT_ATTEMPTS) System.err.println("Connect error for " + client.username + ": " + e.getMessage());
+				LockSupport.parkNanos(attempt * 100_000_000L);
+			}
+		}
+		client.state = SimulatedClient.State.DISCONNECTED;
+		if(running) failedConnects.increment();
+	}
+
+	private void report(int elapsed, int step) {
+		LatencyHistogram window = new LatencyHistogram();
+		deliveryInterval.drainInto(window);
+		System.out.printf("[%4ds] online %d/%d  sent %.0f/s  delivered %.0f/s  p50 %.2fms  p99 %.2fms  p99.9 %.2fms  max %.2fms  errors %d%n",
+				elapsed, readyCount(), clientCount, sentInterval.sumThenReset() / (double) step,
+				window.count() / (double) step, window.valueAtPercentile(50) / MICROS_PER_MS,
+				window.valueAtPercentile(99) / MICROS_PER_MS, window.valueAtPercentile(99.9) / MICROS_PER_MS,
+				window.max() / MICROS_PER_MS, errors.sum());
+		window.drainInto(delivery);
+	}
+
+	private void summary(double measured) {
+		long messages = sent.sum();
+		long deliveries = delivery.count();
+		System.out.println();
+		System.out.printf("scenario=%s clients=%d online=%d measured=%.1fs rate=%.3f/user/s%n",
+				scenario, clientCount, readyCount(), measured, rate);
+		System.out.printf("sent       %10d  (%.1f/s)%n", messages, messages / measured);
+		System.out.printf("delivered  %10d  (%.1f/s, %.2f per message)%n", deliveries, deliveries / measured,
+				messages == 0 ? 0.0 : (double) deliveries / messages);
+		System.out.printf("errors %d  DMs to offline users %d  dropped sends %d  lost connections %d  failed connects %d%n",
+				errors.sum(), offlineTargets.sum(), droppedSends.sum(), lostConnections.sum(), failedConnects.sum());
+		System.out.println("delivery latency ms: " + delivery.summary(MICROS_PER_MS));
+		if(login.count() > 0) System.out.println("login latency ms:    " + login.summary(MICROS_PER_MS));
+		if(HISTOGRAM_FILE != null) {
+			try (PrintStream out = new PrintStream(new FileOutputStream(HISTOGRAM_FILE), true, "UTF-8")) {
+				delivery.printDistribution(out, MICROS_PER_MS);
+				System.out.println("delivery distribution written to " + HISTOGRAM_FILE);
+			} catch (IOException e) {
+				System.err.println("Histogram error: " + e.getMessage());
+			}
+		}
+	}
+
+	// Callbacks from SimulatedClient, on reactor threads.
+
+	void delivered(long stamp) {
+		if(stamp < measureFrom) return;
+		deliveryInterval.record((System.nanoTime() - epoch - stamp) / 1000);
+	}
+
+	void loggedIn(SimulatedClient client, long nanos) {
+		loginInterval.record(nanos / 1000);
+	}
+
+	boolean roomsReady() {
+		return roomsReady;
+	}
+
+	void inviteAcked() {
+		invitesAcked.incrementAndGet();
+	}
+
+	void error(SimulatedClient client, String line) {
+		errors.increment();
+		if(errorsPrinted.incrementAndGet() <= 10) System.err.println(client.username + ": " + line);
+	}
+
+	void targetOffline() {
+		offlineTargets.increment();
+	}
+
+	void sendDropped() {
+		droppedSends.increment();
+	}
+
+	void connectionLost(SimulatedClient client) {
+		lostConnections.increment();
+		if(running) scheduler.schedule(() -> connect(client), 200, TimeUnit.MILLISECONDS);
+	}
+
+	private int readyCount() {
+		int ready = 0;
+		for(SimulatedClient client : clients) {
+			if(client.state == SimulatedClient.State.READY) ready++;
+		}
+		return ready;
+	}
+
+	private int inRoomCount() {
+		int joined = 0;
+		for(SimulatedClient client : clients) {
+			if(client.inRoom) joined++;
+		}
+		return joined;
+	}
+
+	// Waits for condition while progress keeps moving; gives up after STALL_MILLIS without any.
+	private static boolean await(BooleanSupplier condition, IntSupplier progress) {
+		int last = progress.getAsInt();
+		long deadline = System.currentTimeMillis() + STALL_MILLIS;
+		while(!condition.getAsBoolean()) {
+			int now = progress.getAsInt();
+			if(now != last) {
+				last = now;
+				deadline = System.currentTimeMillis() + STALL_MILLIS;
+			} else if(System.currentTimeMillis() > deadline) {
+				return false;
+			}
+			LockSupport.parkNanos(50_000_000L);
+		}
+		return true;
+	}
+
+	private static Thread daemon(Runnable task, String name) {
+		Thread t = new Thread(task, name);
+		t.setDaemon(true);
+		return t;
+	}
+}
@@ -0,0 +1,73 @@
+package loadtest;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+// Selector loop serving the connections of a fixed set of simulated clients, so thousands of users
+// need a handful of threads. A client always uses the same reactor, including after a reconnect,
+// which keeps its read state single-threaded.
+final class Reactor implements Runnable {
+
+	private final Selector selector;
+	private final Queue<SimulatedClient> registrations = new ConcurrentLinkedQueue<>();
+	private volatile boolean running = true;
+
+	Reactor() throws IOException {
+		selector = Selector.open();
+	}
+
+	void register(SimulatedClient client) {
+		registrations.add(client);
+		selector.wakeup();
+	}
+
+	void wantWrite(SelectionKey key) {
+		try {
+			key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+			selector.wakeup();
+		} catch (CancelledKeyException ignored) {
+
+		}
+	}
+
+	void stop() {
+		running = false;
+		selector.wakeup();
+	}
+
+	@Override
+	public void run() {
+		while(running) {
+			try {
+				selector.select();
+			} catch (IOException e) {
+				System.err.println("Reactor error: " + e.getMessage());
+				return;
+			}
+			SimulatedClient client;
+			while((client = registrations.poll()) != null) client.registerWith(selector);
+			Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+			while(keys.hasNext()) {
+				SelectionKey key = keys.next();
+				keys.remove();
+				SimulatedClient owner = (SimulatedClient) key.attachment();
+				try {
+					if(key.isReadable()) owner.onReadable(key);
+					if(key.isValid() && key.isWritable()) owner.onWritable(key);
+				} catch (IOException | CancelledKeyException e) {
+					owner.onClosed(key);
+				}
+			}
+		}
+		try {
+			selector.close();
+		} catch (IOException ignored) {
+
+		}
+	}
+}
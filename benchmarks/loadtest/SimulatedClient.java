@@ -0,0 +1,253 @@
+package loadtest;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.locks.ReentrantLock;
+
+// One simulated user on the text protocol: REGISTER (LOGIN if the account exists), wait for the
+// automatic lobby join, optionally JOIN a room, then whatever the scenario sends. Reads run only
+// on the owning Reactor; send() may be called from any thread. Chat lines carrying an "lt <stamp>"
+// marker are timed without decoding them into Strings, so the generator keeps up with the fan-out.
+final class SimulatedClient {
+
+	enum State { DISCONNECTED, CONNECTING, AUTHENTICATING, READY }
+
+	private static final byte[] ROOMFROM = "ROOMFROM ".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] DMFROM = "DMFROM ".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] STAMP = " lt ".getBytes(StandardCharsets.US_ASCII);
+	private static final int MAX_PENDING_BYTES = 4 * 1024 * 1024;
+
+	final int index;
+	final String username;
+	final Reactor reactor;
+	private final LoadGenerator run;
+	private final String password;
+
+	volatile State state = State.DISCONNECTED;
+	// Room the scenario talks in (lobby included); null for DM-only scenarios.
+	volatile String room;
+	volatile boolean inRoom;
+	volatile long connectStartNanos;
+	// Pacer thread only.
+	long nextSendNanos;
+
+	private volatile boolean accountExists;
+	private volatile SocketChannel channel;
+	private volatile SelectionKey key;
+	private final ReentrantLock writeLock = new ReentrantLock();
+	// Bytes the socket did not take yet, in write mode; guarded by writeLock.
+	private ByteBuffer pending;
+
+	// Reactor thread only.
+	private final ByteBuffer readBuffer = ByteBuffer.allocate(16 * 1024);
+	private byte[] line = new byte[256];
+	private int lineLength;
+
+	SimulatedClient(int index, String username, String password, Reactor reactor, LoadGenerator run) {
+		this.index = index;
+		this.username = username;
+		this.password = password;
+		this.reactor = reactor;
+		this.run = run;
+	}
+
+	boolean canSend() {
+		return state == State.READY && (room == null || inRoom);
+	}
+
+	// Connector thread: the socket is connected; the reactor takes over from here.
+	void attach(SocketChannel connected) throws IOException {
+		connected.configureBlocking(false);
+		channel = connected;
+		state = State.AUTHENTICATING;
+		reactor.register(this);
+	}
+
+	void registerWith(Selector selector) {
+		SocketChannel ch = channel;
+		if(ch == null) return;
+		try {
+			readBuffer.clear();
+			lineLength = 0;
+			key = ch.register(selector, SelectionKey.OP_READ, this);
+		} catch (ClosedChannelException e) {
+			return;
+		}
+		send((accountExists ? "LOGIN " : "REGISTER ") + username + " " + password);
+	}
+
+	boolean send(String text) {
+		SocketChannel ch = channel;
+		if(ch == null) return false;
+		byte[] bytes = (text + "\n").getBytes(StandardCharsets.UTF_8);
+		writeLock.lock();
+		try {
+			if(pending == null) {
+				ByteBuffer buffer = ByteBuffer.wrap(bytes);
+				ch.write(buffer);
+				if(!buffer.hasRemaining()) return true;
+				pending = ByteBuffer.allocate(Math.max(64 * 1024, buffer.remaining()));
+				pending.put(buffer);
+				SelectionKey k = key;
+				if(k != null) reactor.wantWrite(k);
+				return true;
+			}
+			if(pending.position() + bytes.length > MAX_PENDING_BYTES) {
+				run.sendDropped();
+				return false;
+			}
+			if(pending.remaining() < bytes.length) {
+				ByteBuffer larger = ByteBuffer.allocate(Math.max(pending.capacity() * 2, pending.position() + bytes.length));
+				pending.flip();
+				larger.put(pending);
+				pending = larger;
+			}
+			pending.put(bytes);
+			return true;
+		} catch (IOException e) {
+			// The reactor notices the broken connection on its next read.
+			return false;
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	void onWritable(SelectionKey k) throws IOException {
+		writeLock.lock();
+		try {
+			if(pending == null) {
+				k.interestOps(SelectionKey.OP_READ);
+				return;
+			}
+			pending.flip();
+			((SocketChannel) k.channel()).write(pending);
+			if(pending.hasRemaining()) {
+				pending.compact();
+			} else {
+				pending = null;
+				k.interestOps(SelectionKey.OP_READ);
+			}
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	void onReadable(SelectionKey k) throws IOException {
+		SocketChannel ch = (SocketChannel) k.channel();
+		int read;
+		while((read = ch.read(readBuffer)) > 0) {
+			readBuffer.flip();
+			byte[] data = readBuffer.array();
+			for(int i = readBuffer.position(); i < readBuffer.limit(); i++) {
+				byte b = data[i];
+				if(b == '\n') {
+					int length = lineLength > 0 && line[lineLength - 1] == '\r' ? lineLength - 1 : lineLength;
+					lineLength = 0;
+					onLine(length);
+				} else {
+					if(lineLength == line.length) {
+						byte[] larger = new byte[line.length * 2];
+						System.arraycopy(line, 0, larger, 0, lineLength);
+						line = larger;
+					}
+					line[lineLength++] = b;
+				}
+			}
+			readBuffer.clear();
+		}
+		if(read < 0) throw new EOFException();
+	}
+
+	void onClosed(SelectionKey k) {
+		if(k != key) return;
+		boolean expected = state == State.DISCONNECTED;
+		disconnect();
+		if(!expected) run.connectionLost(this);
+	}
+
+	// Closes the connection on purpose; the reactor ignores anything still in flight for it.
+	void disconnect() {
+		state = State.DISCONNECTED;
+		inRoom = false;
+		SocketChannel ch = channel;
+		channel = null;
+		SelectionKey k = key;
+		if(k != null) k.cancel();
+		writeLock.lock();
+		try {
+			pending = null;
+		} finally {
+			writeLock.unlock();
+		}
+		if(ch != null) {
+			try {
+				ch.close();
+			} catch (IOException ignored) {
+
+			}
+		}
+	}
+
+	private void onLine(int length) {
+		if(startsWith(ROOMFROM, length) || startsWith(DMFROM, length)) {
+			long stamp = parseStamp(length);
+			if(stamp >= 0) run.delivered(stamp);
+			return;
+		}
+		String text = new String(line, 0, length, StandardCharsets.UTF_8);
+		if(text.equals("REGISTER SUCCESSFUL") || text.equals("LOGIN SUCCESSFUL")) {
+			accountExists = true;
+		} else if(text.equals("ERR REGISTER_USERNAME_TAKEN")) {
+			accountExists = true;
+			send("LOGIN " + username + " " + password);
+		} else if(text.startsWith("JOINED ")) {
+			String joined = text.substring(7);
+			if(joined.equals("lobby") && state != State.READY) {
+				state = State.READY;
+				run.loggedIn(this, System.nanoTime() - connectStartNanos);
+				// Room membership is stored, so a reconnecting member simply joins again.
+				String target = room;
+				if(target != null && !target.equals("lobby") && run.roomsReady()) send("JOIN " + target);
+			}
+			if(joined.equals(room)) inRoom = true;
+		} else if(text.startsWith("SYS Invited ") || text.equals("ERR User already in room")
+				|| text.equals("ERR Invite already exists")) {
+			run.inviteAcked();
+		} else if(text.startsWith("ERR User not online")) {
+			run.targetOffline();
+		} else if(text.startsWith("ERR ")) {
+			run.error(this, text);
+		}
+	}
+
+	private boolean startsWith(byte[] prefix, int length) {
+		if(length < prefix.length) return false;
+		for(int i = 0; i < prefix.length; i++) {
+			if(line[i] != prefix[i]) return false;
+		}
+		return true;
+	}
+
+	// The stamp after " lt ", or -1 for lines not sent by a load generator.
+	private long parseStamp(int length) {
+		outer:
+		for(int i = DMFROM.length; i + STAMP.length < length; i++) {
+			for(int j = 0; j < STAMP.length; j++) {
+				if(line[i + j] != STAMP[j]) continue outer;
+			}
+			long value = 0;
+			int digits = 0;
+			for(int p = i + STAMP.length; p < length && line[p] >= '0' && line[p] <= '9'; p++, digits++) {
+				value = value * 10 + (line[p] - '0');
+			}
+			return digits == 0 ? -1 : value;
+		}
+		return -1;
+	}
+}
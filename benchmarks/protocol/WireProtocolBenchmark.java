@@ -0,0 +1,83 @@
+package protocol;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+// Pushes the same message mix through a loopback socket as text lines (BufferedReader.readLine,
+// the old read path) and as binary frames (FrameReader.readFrame), and reports messages per second
+// and bytes on the wire. Run with: java -cp <classes> protocol.WireProtocolBenchmark [messages]
+public class WireProtocolBenchmark {
+
+	private static final String[] MIX = {
+			"ROOMFROM lobby alice hey everyone, is the deploy finished yet?",
+			"DMFROM bob see you at 3",
+			"PRESENCE 1842 +carol:away -dave",
+			"STATUSES alice:online,bob:busy,carol:away,erin:online",
+			"SYS Joined room lobby",
+			"ROOMMSG lobby short",
+	};
+
+	public static void main(String[] args) throws Exception {
+		int messages = args.length > 0 ? Integer.parseInt(args[0]) : 2_000_000;
+		for(int round = 0; round < 3; round++) {
+			boolean report = round == 2;
+			run("text", messages, false, report);
+			run("binary", messages, true, report);
+		}
+	}
+
+	private static void run(String name, int messages, boolean binary, boolean report) throws Exception {
+		byte[][] encoded = new byte[MIX.length][];
+		long bytes = 0;
+		for(int i = 0; i < MIX.length; i++) {
+			encoded[i] = binary ? WireFormat.encode(MIX[i]) : (MIX[i] + "\n").getBytes(StandardCharsets.UTF_8);
+		}
+		for(int i = 0; i < messages; i++) bytes += encoded[i % MIX.length].length;
+
+		try (ServerSocket listener = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+			Thread writer = new Thread(() -> {
+				try (Socket s = new Socket(InetAddress.getLoopbackAddress(), listener.getLocalPort());
+						OutputStream out = new BufferedOutputStream(s.getOutputStream(), 64 * 1024)) {
+					for(int i = 0; i < messages; i++) out.write(encoded[i % MIX.length]);
+				} catch (IOException e) {
+					throw new IllegalStateException(e);
+				}
+			});
+			writer.start();
+			try (Socket s = listener.accept()) {
+				long start = System.nanoTime();
+				int received = 0;
+				long checksum = 0;
+				if(binary) {
+					FrameReader reader = new FrameReader(new BufferedInputStream(s.getInputStream(), 64 * 1024));
+					String line;
+					while((line = reader.readFrame()) != null) {
+						received++;
+						checksum += line.length();
+					}
+				} else {
+					BufferedReader reader = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8), 64 * 1024);
+					String line;
+					while((line = reader.readLine()) != null) {
+						received++;
+						checksum += line.length();
+					}
+				}
+				long nanos = System.nanoTime() - start;
+				writer.join();
+				if(report) {
+					System.out.printf("%-7s %,10d msgs %8.2f bytes/msg %,12.0f msgs/s (checksum %d)%n",
+							name, received, (double) bytes / messages, received * 1e9 / nanos, checksum);
+				}
+			}
+		}
+	}
+}
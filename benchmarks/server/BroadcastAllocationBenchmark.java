@@ -0,0 +1,52 @@
+package server;
+
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.Socket;
+
+// Measures bytes allocated by ChatServer.roomBroadcast for large rooms, and by the writer side
+// copying the shared payload to each socket. Recipients are unconnected handlers, so only the
+// fan-out itself is measured. Run with: java -cp <classes> server.BroadcastAllocationBenchmark
+public class BroadcastAllocationBenchmark {
+
+	private static final int ITERATIONS = 200;
+
+	public static void main(String[] args) {
+		com.sun.management.ThreadMXBean threads =
+				(com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long self = Thread.currentThread().getId();
+		String body = "ROOMFROM big alice " + "x".repeat(120);
+
+		System.out.printf("%-8s %18s %20s %20s%n", "members", "bytes/broadcast", "bytes/recipient", "write bytes/recipient");
+		for(int members : new int[] { 100, 1_000, 5_000, 20_000 }) {
+			ChatServer server = new ChatServer();
+			ClientHandler[] handlers = new ClientHandler[members];
+			for(int i = 0; i < members; i++) {
+				handlers[i] = new ClientHandler(new Socket(), server);
+				server.joinRoomMemory("big", handlers[i]);
+			}
+
+			// Warm up until every outbound queue is at capacity, so the steady state (drop-oldest,
+			// no deque growth) is what gets measured.
+			for(int i = 0; i < OutboundQueue.DEFAULT_CAPACITY + 50; i++) server.roomBroadcast("big", body, null);
+
+			long before = threads.getThreadAllocatedBytes(self);
+			for(int i = 0; i < ITERATIONS; i++) server.roomBroadcast("big", body, null);
+			long fanOut = (threads.getThreadAllocatedBytes(self) - before) / ITERATIONS;
+
+			EncodedMessage encoded = EncodedMessage.of(body);
+			OutputStream sink = OutputStream.nullOutputStream();
+			before = threads.getThreadAllocatedBytes(self);
+			try {
+				for(int i = 0; i < ITERATIONS; i++) {
+					for(int r = 0; r < members; r++) encoded.writeTo(sink);
+				}
+			} catch (java.io.IOException e) {
+				throw new IllegalStateException(e);
+			}
+			long writes = (threads.getThreadAllocatedBytes(self) - before) / ITERATIONS;
+
+			System.out.printf("%-8d %18d %20.2f %20.2f%n", members, fanOut, (double) fanOut / members, (double) writes / members);
+		}
+	}
+}
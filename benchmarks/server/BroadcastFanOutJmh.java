@@ -0,0 +1,51 @@
+package server;
+
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// ChatServer.roomBroadcast to rooms of different sizes. Members are unconnected handlers whose
+// outbound queues are filled first, so the steady state (drop-oldest, no queue growth) is measured.
+// Add -prof gc for bytes per broadcast.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BroadcastFanOutJmh {
+
+	@Param({ "10", "100", "1000", "10000" })
+	public int members;
+
+	private ChatServer server;
+	private ClientHandler sender;
+	private final String body = "ROOMFROM big alice " + "x".repeat(120);
+
+	@Setup
+	public void setUp() {
+		server = new ChatServer();
+		for(int i = 0; i < members; i++) {
+			ClientHandler handler = new ClientHandler(new Socket(), server);
+			server.joinRoomMemory("big", handler);
+			if(i == 0) sender = handler;
+		}
+		for(int i = 0; i < OutboundQueue.DEFAULT_CAPACITY + 50; i++) server.roomBroadcast("big", body, null);
+	}
+
+	@Benchmark
+	public void roomBroadcast() {
+		server.roomBroadcast("big", body, sender);
+	}
+}
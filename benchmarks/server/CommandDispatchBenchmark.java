@@ -0,0 +1,63 @@
+package server;
+
+import java.lang.management.ManagementFactory;
+
+// Compares the old if/else dispatch (trim, split, toUpperCase, equals chain) with CommandRegistry
+// for a late-chain command, in ns and bytes allocated per line. Commands are no-ops, so only the
+// dispatch is measured. Run with: java -cp <classes> server.CommandDispatchBenchmark
+public class CommandDispatchBenchmark {
+
+	private static final String[] VERBS = {
+			"JOIN", "LEAVE", "ROOMMSG", "DM", "FRIENDS", "FRIEND_ADD", "FRIEND_REMOVE", "ONLINE",
+			"FRIEND_REQ", "FRIEND_REQUEST", "FRIEND_ACCEPT", "FRIEND_DECLINE", "STATUS", "STATUSES",
+			"PRESENCE_SYNC", "ROOM_INVITE", "ROOM_INVITE_ACCEPT", "ROOM_INVITE_DECLINE", "DM_HISTORY", "ROOM_HISTORY"
+	};
+	private static final int ITERATIONS = 5_000_000;
+	private static long sink;
+
+	public static void main(String[] args) {
+		com.sun.management.ThreadMXBean threads =
+				(com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long self = Thread.currentThread().getId();
+		CommandRegistry registry = new CommandRegistry();
+		for(String verb : VERBS) registry.register(verb, (client, line) -> sink += line.count());
+		CommandLine commandLine = new CommandLine();
+
+		for(String line : new String[] { "room_history lobby", "STATUS away" }) {
+			for(int round = 0; round < 3; round++) {
+				long before = threads.getThreadAllocatedBytes(self);
+				long start = System.nanoTime();
+				for(int i = 0; i < ITERATIONS; i++) sink += chain(line);
+				long chainNanos = System.nanoTime() - start;
+				long chainBytes = threads.getThreadAllocatedBytes(self) - before;
+
+				before = threads.getThreadAllocatedBytes(self);
+				start = System.nanoTime();
+				for(int i = 0; i < ITERATIONS; i++) {
+					commandLine.parse(line);
+					registry.dispatch(null, commandLine);
+				}
+				long tableNanos = System.nanoTime() - start;
+				long tableBytes = threads.getThreadAllocatedBytes(self) - before;
+
+				if(round == 2) {
+					System.out.printf("%-20s if/else %6.1f ns %6.1f B   registry %6.1f ns %6.1f B%n", line,
+							(double) chainNanos / ITERATIONS, (double) chainBytes / ITERATIONS,
+							(double) tableNanos / ITERATIONS, (double) tableBytes / ITERATIONS);
+				}
+			}
+		}
+	}
+
+	// The shape of the old handleCommand: every miss is a string comparison.
+	private static int chain(String raw) {
+		raw = raw.trim();
+		if(raw.isEmpty()) return 0;
+		String[] parts = raw.split("\\s+", 3);
+		String command = parts[0].toUpperCase();
+		for(int i = 0; i < VERBS.length; i++) {
+			if(command.equals(VERBS[i])) return i + parts.length;
+		}
+		return -1;
+	}
+}
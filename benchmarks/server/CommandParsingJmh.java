@@ -0,0 +1,66 @@
+package server;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Command line parsing and verb lookup, as done by ClientHandler.handleCommand for every line.
+// The registered commands are no-ops, so only parse + dispatch is measured; splitChain is the
+// old trim/split/toUpperCase/equals-chain shape for comparison.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CommandParsingJmh {
+
+	private static final String[] VERBS = {
+			"JOIN", "LEAVE", "ROOMMSG", "DM", "FRIENDS", "FRIEND_ADD", "FRIEND_REMOVE", "ONLINE",
+			"FRIEND_REQ", "FRIEND_REQUEST", "FRIEND_ACCEPT", "FRIEND_DECLINE", "STATUS", "STATUSES",
+			"PRESENCE_SYNC", "ROOM_INVITE", "ROOM_INVITE_ACCEPT", "ROOM_INVITE_DECLINE", "DM_HISTORY",
+			"ROOM_HISTORY", "HISTORY", "SEARCH"
+	};
+
+	@Param({ "ROOMMSG lobby hey everyone, is the deploy finished yet?", "room_history lobby", "STATUS away" })
+	public String line;
+
+	private CommandRegistry registry;
+	private CommandLine commandLine;
+	private long sink;
+
+	@Setup
+	public void setUp() {
+		registry = new CommandRegistry();
+		for(String verb : VERBS) registry.register(verb, (client, parsed) -> sink += parsed.count());
+		commandLine = new CommandLine();
+	}
+
+	@Benchmark
+	public long registry() {
+		commandLine.parse(line);
+		registry.dispatch(null, commandLine);
+		return sink;
+	}
+
+	@Benchmark
+	public int splitChain() {
+		String raw = line.trim();
+		String[] parts = raw.split("\\s+", 3);
+		String command = parts[0].toUpperCase();
+		for(int i = 0; i < VERBS.length; i++) {
+			if(command.equals(VERBS[i])) return i + parts.length;
+		}
+		return -1;
+	}
+}
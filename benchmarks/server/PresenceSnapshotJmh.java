@@ -0,0 +1,52 @@
+package server;
+
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Building and queueing a PRESENCESNAP for one client with N users online. Runs with
+// chat.presence.scope=all (every user visible, the largest snapshot) so no friend lookups hit
+// the database.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dchat.presence.scope=all")
+@State(Scope.Benchmark)
+public class PresenceSnapshotJmh {
+
+	@Param({ "100", "1000", "10000" })
+	public int online;
+
+	private ChatServer server;
+	private ClientHandler viewer;
+
+	@Setup
+	public void setUp() throws InterruptedException {
+		server = new ChatServer();
+		for(int i = 0; i < online; i++) {
+			ClientHandler handler = new ClientHandler(new Socket(), server);
+			server.registerOnline("user" + i, handler);
+			if(i % 3 == 1) server.setStatus("user" + i, "away");
+			if(i == 0) viewer = handler;
+		}
+		// Let the presence aggregator deliver the login burst before measuring.
+		Thread.sleep(PresenceAggregator.DEFAULT_MAX_DELAY_MS + PresenceAggregator.DEFAULT_WINDOW_MS + 200);
+	}
+
+	@Benchmark
+	public void presenceSnapshot() {
+		server.sendPresenceSnapshot(viewer);
+	}
+}
@@ -0,0 +1,27 @@
+package server;
+
+import java.net.Socket;
+
+// Replays a reconnect storm: N users log in back to back and every one is visible to everyone
+// (scope=all, the worst case). Prints how many presence lines the server queued. Compare
+//   java -Dchat.presence.windowMs=0   -cp <classes> server.PresenceStormBenchmark
+//   java -Dchat.presence.windowMs=100 -cp <classes> server.PresenceStormBenchmark
+// Without the window the count grows with N^2; with it, roughly N per flush.
+public class PresenceStormBenchmark {
+
+	public static void main(String[] args) throws InterruptedException {
+		if(System.getProperty("chat.presence.scope") == null) System.setProperty("chat.presence.scope", "all");
+		int users = args.length > 0 ? Integer.parseInt(args[0]) : 2_000;
+
+		ChatServer server = new ChatServer();
+		long start = System.nanoTime();
+		for(int i = 0; i < users; i++) {
+			server.registerOnline("user" + i, new ClientHandler(new Socket(), server));
+		}
+		long registerMillis = (System.nanoTime() - start) / 1_000_000;
+		Thread.sleep(PresenceAggregator.DEFAULT_MAX_DELAY_MS + PresenceAggregator.DEFAULT_WINDOW_MS + 200);
+
+		System.out.println("users=" + users + " registerMs=" + registerMillis);
+		System.out.println(server.presenceStats());
+	}
+}
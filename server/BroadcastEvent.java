@@ -0,0 +1,25 @@
+package server;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+// Flight Recorder event for a room broadcast that took longer than the threshold (10 ms by
+// default). The duration covers encoding and queueing to every recipient, not the socket writes.
+@Name("chat.Broadcast")
+@Label("Chat Broadcast")
+@Category("Chat")
+@Description("A room broadcast that took longer than the threshold to queue")
+@Threshold("10 ms")
+@StackTrace(false)
+final class BroadcastEvent extends jdk.jfr.Event {
+
+	@Label("Room")
+	String room;
+
+	@Label("Recipients")
+	int recipients;
+}
@@ -1,13 +1,18 @@
 package server;
 
 import database.ActivityLogDAO;
+import database.DatabaseManager;
 import database.FriendDAO;
 import database.MessageDAO;
+import database.MessagePartitions;
+import database.QueryPlanCheck;
 import database.RoomDAO;
+import database.SchemaMigrations;
 import database.UserDAO;
 
 
 import java.io.IOException;
+import java.lang.reflect.Method;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.util.ArrayList;
@@ -15,6 +20,10 @@ import java.util.Collections;
 import java.util.List;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
 public class ChatServer {
 
@@ -22,17 +31,37 @@ public class ChatServer {
     private final ConcurrentHashMap<String, ClientHandler> online = new ConcurrentHashMap<>();
     private final ConcurrentHashMap<String, Set<ClientHandler>> rooms = new ConcurrentHashMap<>();
     private final ConcurrentHashMap<String, String> statuses = new ConcurrentHashMap<>();
+    private volatile ExecutorService connectionExecutor;
+    
+    // -Dchat.presence.scope=all restores presence fan-out to every online user.
+    private static final boolean FRIEND_SCOPED =
+    		!System.getProperty("chat.presence.scope", "friends").equalsIgnoreCase("all");
+    private final AtomicInteger deltaClients = new AtomicInteger();
+    private final LongAdder presenceChanges = new LongAdder();
+    private final LongAdder presenceMessages = new LongAdder();
+    private final LongAdder presenceUnscopedMessages = new LongAdder();
+    private final PresenceAggregator presence = new PresenceAggregator(new PresenceDelivery());
+    private final AtomicInteger connections = new AtomicInteger();
+    // Null unless this server is one node of a cluster.
+    private volatile Cluster cluster;
+    private static final Metrics.Histogram BROADCAST_RECIPIENTS = Metrics.histogram("chat_broadcast_recipients",
+    		"Clients a room broadcast was queued for", Metrics.SIZE_BUCKETS);
 
 	public void start(int port) {
+		start(port, false);
+	}
+	
+	public void start(int port, boolean virtualThreads) {
+		connectionExecutor = virtualThreads ? newVirtualThreadExecutor() : null;
 		try {
 			serverSocket = new ServerSocket(port);
-			System.out.println("Chat server started on port " + port);
+			System.out.println("Chat server started on port " + port
+					+ (connectionExecutor != null ? " (virtual threads)" : ""));
 			
 			while(true) {
 				Socket clientSocket = serverSocket.accept();				
 				ClientHandler handler = new ClientHandler(clientSocket, this);
-				Thread thread = new Thread(handler, "ClientHandler");
-				thread.start();
+				spawn(handler, "ClientHandler");
 			}
 			
 		} catch (IOException e) {
@@ -44,26 +73,168 @@ public class ChatServer {
 					serverSocket.close();
 				}
 			} catch(IOException ignored) {}
+			if(connectionExecutor != null) connectionExecutor.shutdown();
+		}
+	}
+	
+	// Per-connection threads (reader and writer) follow the configured thread mode.
+	void spawn(Runnable task, String name) {
+		ExecutorService executor = connectionExecutor;
+		if(executor != null) {
+			executor.execute(task);
+		} else {
+			Thread thread = new Thread(task, name);
+			thread.start();
+		}
+	}
+	
+	// Looked up reflectively so the server still builds and runs on JDKs without virtual threads.
+	private static ExecutorService newVirtualThreadExecutor() {
+		try {
+			Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) factory.invoke(null);
+		} catch (ReflectiveOperationException e) {
+			System.err.println("Virtual threads not available on this JDK, using platform threads.");
+			return null;
+		}
+	}
+	
+	public void startNio(int port, int reactorThreads, int workerThreads) {
+		NioServer nioServer = new NioServer(this, reactorThreads, workerThreads);
+		try {
+			nioServer.start(port);
+		} catch (IOException e) {
+			System.err.println("Server error: " + e.getMessage());
+			e.printStackTrace();
 		}
 	}
 	
+	void joinCluster(Cluster cluster) throws IOException {
+		this.cluster = cluster;
+		cluster.start();
+	}
+	
+	Cluster cluster() {
+		return cluster;
+	}
+	
 	public boolean registerOnline(String username, ClientHandler handler) {
+		Cluster c = cluster;
+		if(c != null && c.locate(username) != null) return false;
 		boolean okCondition = online.putIfAbsent(username, handler) == null;
 	    if (okCondition) {
 	    	statuses.putIfAbsent(username,  "online");
-	    	broadcastOnlineList();
-	    	statusesSnapshot();
+	    	presenceChanged(username, "+" + username + ":" + statuses.getOrDefault(username, "online"), true);
+	    	if(c != null) c.userOnline(username, statuses.getOrDefault(username, "online"));
 	    }
 	    return okCondition;
 	}
 	
 	public void unregisterOnline(String username) {
 		if(username != null) {
-			online.remove(username);
-			statuses.remove(username);
+			ClientHandler handler = online.remove(username);
+			Cluster c = cluster;
+			// Already logged in on another node: still online as far as everyone here is concerned.
+			boolean elsewhere = c != null && c.locate(username) != null;
+			if(!elsewhere) statuses.remove(username);
+			if(handler != null) {
+				if(handler.wantsPresenceDeltas()) deltaClients.decrementAndGet();
+				presence.forget(handler);
+				if(c != null) c.userOffline(username);
+			}
+			if(!elsewhere) presenceChanged(username, "-" + username, true);
+			FriendDAO.invalidateFriendCache(username);
+		}
+	}
+	
+	// Cluster: a user on another node came online or changed status (arrived is false for the latter).
+	void remoteUserOnline(String username, String status, boolean arrived) {
+		String previous = statuses.put(username, status);
+		if(arrived || !status.equals(previous)) presenceChanged(username, "+" + username + ":" + status, arrived);
+	}
+	
+	void remoteUserOffline(String username) {
+		if(online.containsKey(username)) return;
+		statuses.remove(username);
+		presenceChanged(username, "-" + username, true);
+	}
+	
+	// Cluster: the user logged in on a node that wins the tie, so this session ends.
+	void loggedInElsewhere(String username) {
+		ClientHandler handler = online.get(username);
+		if(handler != null) handler.disconnect("ERR Already logged in elsewhere.");
+	}
+	
+	List<String> localUsers() {
+		return new ArrayList<>(online.keySet());
+	}
+	
+	String statusOf(String username) {
+		return statuses.getOrDefault(username, "online");
+	}
+	
+	private boolean isOnline(String username) {
+		if(online.containsKey(username)) return true;
+		Cluster c = cluster;
+		return c != null && c.locate(username) != null;
+	}
+	
+	// Everyone online, on this node or (in a cluster) any other, sorted.
+	private List<String> onlineUsers() {
+		List<String> users = new ArrayList<>(online.keySet());
+		Cluster c = cluster;
+		if(c != null) users.addAll(c.remoteUsers());
+		Collections.sort(users);
+		return users;
+	}
+	
+	void connectionOpened() {
+		connections.incrementAndGet();
+	}
+	
+	void connectionClosed() {
+		connections.decrementAndGet();
+	}
+	
+	int connectionCount() {
+		return connections.get();
+	}
+	
+	int onlineCount() {
+		return online.size();
+	}
+	
+	// Rooms with at least one connected member.
+	int activeRoomCount() {
+		return rooms.size();
+	}
+	
+	long outboundQueued() {
+		long depth = 0;
+		for(ClientHandler clientHandler : online.values()) depth += clientHandler.outboundDepth();
+		return depth;
+	}
+	
+	long presenceChangeCount() {
+		return presenceChanges.sum();
+	}
+	
+	long presenceMessageCount() {
+		return presenceMessages.sum();
+	}
+	
+	public String outboundStats() {
+		long depth = 0;
+		int maxDepth = 0;
+		for(ClientHandler clientHandler : online.values()) {
+			int d = clientHandler.outboundDepth();
+			depth += d;
+			maxDepth = Math.max(maxDepth, d);
 		}
-		broadcastOnlineList();
-		statusesSnapshot();
+		return "queued=" + depth + " maxQueue=" + maxDepth
+				+ " dropped=" + OutboundQueue.totalDropped()
+				+ " coalesced=" + OutboundQueue.totalCoalesced()
+				+ " slowConsumerDisconnects=" + OutboundQueue.totalDisconnects();
 	}
 	
 	public ClientHandler getOnlineUser(String username) {
@@ -71,15 +242,152 @@ public class ChatServer {
 	}
 	
 	public void broadcastOnlineList() {
-		List<String> users = new ArrayList<>(online.keySet());
-		Collections.sort(users);
+		List<String> users = onlineUsers();
 		String list = String.join(",", users);
-		String msg = "ONLINE " + list;
+		EncodedMessage msg = EncodedMessage.of("ONLINE " + list);
 		for(ClientHandler clientHandler : online.values()) {
-			clientHandler.sendMessage(msg);
+			if(!clientHandler.wantsPresenceDeltas()) clientHandler.sendEncoded(msg);
+		}
+	}
+	
+	// Routes one presence change through the aggregator. Delta clients get "+user:status" / "-user"
+	// ops; older clients get ONLINE/STATUSES lists. With friend scope (the default) only the changer's
+	// online friends and the changer itself are told, each with lists limited to their own friends.
+	private void presenceChanged(String username, String op, boolean onlineListChanged) {
+		int deltas = deltaClients.get();
+		int legacy = Math.max(0, online.size() - deltas);
+		presenceChanges.increment();
+		presenceUnscopedMessages.add(deltas + (long) legacy * (onlineListChanged ? 2 : 1));
+
+		if(FRIEND_SCOPED) {
+			for(ClientHandler recipient : presenceRecipients(username)) {
+				presence.add(recipient, username, op, onlineListChanged);
+			}
+		} else {
+			presence.addToAll(username, op, onlineListChanged);
+		}
+		presence.changed();
+	}
+	
+	private final class PresenceDelivery implements PresenceAggregator.Delivery {
+		@Override
+		public void deliver(ClientHandler recipient, String ops, boolean onlineList, boolean statuses) {
+			if(recipient.wantsPresenceDeltas()) {
+				recipient.sendPresenceDelta(ops);
+				presenceMessages.increment();
+				return;
+			}
+			if(onlineList) {
+				sendScopedOnlineList(recipient);
+				presenceMessages.increment();
+			}
+			if(statuses) {
+				sendScopedStatuses(recipient);
+				presenceMessages.increment();
+			}
+		}
+
+		@Override
+		public void deliverToAll(String ops, boolean onlineList, boolean statuses) {
+			int legacy = 0;
+			for(ClientHandler clientHandler : online.values()) {
+				if(clientHandler.wantsPresenceDeltas()) {
+					clientHandler.sendPresenceDelta(ops);
+					presenceMessages.increment();
+				} else {
+					legacy++;
+				}
+			}
+			if(legacy > 0) {
+				if(onlineList) broadcastOnlineList();
+				if(statuses) statusesSnapshot();
+				presenceMessages.add((long) legacy * ((onlineList ? 1 : 0) + (statuses ? 1 : 0)));
+			}
+		}
+	}
+	
+	private List<ClientHandler> presenceRecipients(String username) {
+		List<String> friends = FriendDAO.getCachedFriends(username);
+		List<ClientHandler> recipients = new ArrayList<>(friends.size() + 1);
+		ClientHandler self = online.get(username);
+		if(self != null) recipients.add(self);
+		for(String friend : friends) {
+			ClientHandler handler = online.get(friend);
+			if(handler != null) recipients.add(handler);
+		}
+		return recipients;
+	}
+	
+	// The viewer plus their online friends, sorted.
+	private List<String> visibleUsers(ClientHandler viewer) {
+		List<String> users = new ArrayList<>();
+		String me = viewer.getUsername();
+		if(online.containsKey(me)) users.add(me);
+		for(String friend : FriendDAO.getCachedFriends(me)) {
+			if(isOnline(friend)) users.add(friend);
+		}
+		Collections.sort(users);
+		return users;
+	}
+	
+	private void sendScopedOnlineList(ClientHandler recipient) {
+		recipient.sendMessage("ONLINE " + String.join(",", visibleUsers(recipient)));
+	}
+	
+	private void sendScopedStatuses(ClientHandler recipient) {
+		List<String> parts = new ArrayList<>();
+		for(String u : visibleUsers(recipient)) {
+			parts.add(u + ":" + statuses.getOrDefault(u, "online"));
+		}
+		recipient.sendMessage("STATUSES " + String.join(",", parts));
+	}
+	
+	// ONLINE / STATUSES commands: a scoped reply to the requester, or the old broadcast with scope=all.
+	public void onlineListRequested(ClientHandler requester) {
+		if(FRIEND_SCOPED) {
+			sendScopedOnlineList(requester);
+		} else {
+			broadcastOnlineList();
 		}
 	}
 	
+	public void statusesRequested(ClientHandler requester) {
+		if(FRIEND_SCOPED) {
+			sendScopedStatuses(requester);
+		} else {
+			statusesSnapshot();
+		}
+	}
+	
+	public void sendPresenceSnapshot(ClientHandler handler) {
+		if(handler.sendPresenceSnapshot(() -> presenceEntries(handler))) deltaClients.incrementAndGet();
+	}
+	
+	// "user:status,..." as the handler may see it; built under the handler's presence lock.
+	private String presenceEntries(ClientHandler handler) {
+		List<String> users;
+		if(FRIEND_SCOPED) {
+			users = visibleUsers(handler);
+		} else {
+			users = onlineUsers();
+		}
+		List<String> parts = new ArrayList<>(users.size());
+		for(String u : users) {
+			parts.add(u + ":" + statuses.getOrDefault(u, "online"));
+		}
+		return String.join(",", parts);
+	}
+	
+	public String presenceStats() {
+		long changes = presenceChanges.sum();
+		long sent = presenceMessages.sum();
+		long unscoped = presenceUnscopedMessages.sum();
+		return String.format("scope=%s changes=%d sent=%d unscopedEquivalent=%d sentPerChange=%.2f unscopedPerChange=%.2f",
+				FRIEND_SCOPED ? "friends" : "all", changes, sent, unscoped,
+				changes == 0 ? 0.0 : (double) sent / changes, changes == 0 ? 0.0 : (double) unscoped / changes)
+				+ " " + presence.stats();
+	}
+	
 	private String normalizeStatus(String s) {
 	    if (s == null) {
 	        return "online";
@@ -100,22 +408,25 @@ public class ChatServer {
 		if(username == null) return;
 		if(!online.containsKey(username)) return;
 		String normalized = normalizeStatus(status);
-		statuses.put(username, normalized);
-		statusesSnapshot();
+		String previous = statuses.put(username, normalized);
+		if(!normalized.equals(previous)) {
+			presenceChanged(username, "+" + username + ":" + normalized, false);
+			Cluster c = cluster;
+			if(c != null) c.userOnline(username, normalized);
+		}
 	}
 	
 	public void statusesSnapshot() {
-        List<String> users = new ArrayList<>(online.keySet());
-        Collections.sort(users);
+        List<String> users = onlineUsers();
         List<String> parts = new ArrayList<>();
         
         for (String u : users) {
             parts.add(u + ":" + statuses.getOrDefault(u, "online"));
         }
-        String message = "STATUSES " + String.join(",", parts);
+        EncodedMessage message = EncodedMessage.of("STATUSES " + String.join(",", parts));
 
         for (ClientHandler ch : online.values()) {
-            ch.sendMessage(message);
+            if (!ch.wantsPresenceDeltas()) ch.sendEncoded(message);
         }
     }
 	
@@ -141,24 +452,60 @@ public class ChatServer {
 	}
 	
 	public void roomBroadcast(String room, String message, ClientHandler except) {
+		deliverRoom(room, message, except);
+		Cluster c = cluster;
+		if(c != null) c.roomBroadcast(room, message);
+	}
+	
+	// The room's members on this node.
+	void deliverRoom(String room, String message, ClientHandler except) {
 		Set<ClientHandler> set = rooms.get(room);
 		if(set == null) return;
 		
-		for(ClientHandler clientHandler : new ArrayList<>(set)) {
-			if(clientHandler != except) clientHandler.sendMessage(message);
+		BroadcastEvent event = new BroadcastEvent();
+		event.begin();
+		// Encoded once; the concurrent set is iterated in place instead of being copied.
+		EncodedMessage encoded = EncodedMessage.of(message);
+		int recipients = 0;
+		for(ClientHandler clientHandler : set) {
+			if(clientHandler != except) {
+				clientHandler.sendEncoded(encoded);
+				recipients++;
+			}
+		}
+		BROADCAST_RECIPIENTS.observe(recipients);
+		event.end();
+		if(event.shouldCommit()) {
+			event.room = room;
+			event.recipients = recipients;
+			event.commit();
 		}
 	}
 	
 	public void sendDM(String toUser, String message, ClientHandler from) {
-		ClientHandler target = online.get(toUser);
-		if(target == null) {
+		if(!sendToUser(toUser, "DMFROM " + from.getUsername() + " " + message)) {
 			from.sendMessage("ERR User not online: " + toUser);
 			return;
 		}
-		target.sendMessage("DMFROM " + from.getUsername() + " " + message);
 		from.sendMessage("SYS DM sent to " + toUser);
 	}
 	
+	// One line to a user wherever they are connected; false if they are not online.
+	public boolean sendToUser(String username, String line) {
+		ClientHandler target = online.get(username);
+		if(target != null) {
+			target.sendMessage(line);
+			return true;
+		}
+		Cluster c = cluster;
+		return c != null && c.sendToUser(username, line);
+	}
+	
+	void deliverToLocalUser(String username, String line) {
+		ClientHandler target = online.get(username);
+		if(target != null) target.sendMessage(line);
+	}
+	
 	public void joinRoomMemory(String room, ClientHandler handler) {
 	    roomSet(room).add(handler);
 	}
@@ -173,14 +520,53 @@ public class ChatServer {
 
 	
 	public static void main(String[] args) {
-
+		initDatabase();
+		ChatServer server = new ChatServer();
+		Cluster cluster = Cluster.fromProperties(server);
+		if(cluster != null) {
+			// The other nodes write the same database.
+			MessageDAO.shareDatabase(Cluster.MAX_NODES, cluster.node);
+			DatabaseManager.setChangeListener(cluster);
+			try {
+				server.joinCluster(cluster);
+			} catch (IOException e) {
+				System.err.println("Cluster error: " + e.getMessage());
+				return;
+			}
+		}
+		// One node archives and deletes old partitions for the whole cluster.
+		if(cluster == null || cluster.node == 0) MessagePartitions.startRetention();
+		ServerMetrics.register(server);
+		MetricsEndpoint.start();
+		// -Dchat.port moves the client port, e.g. for several nodes on one machine.
+		int port = Integer.getInteger("chat.port", 5000);
+		// -Dchat.transport=nio selects the selector-based transport; blocking stays the default.
+		String transport = System.getProperty("chat.transport", "blocking");
+		if(transport.equalsIgnoreCase("nio")) {
+			int cores = Runtime.getRuntime().availableProcessors();
+			int reactors = Integer.getInteger("chat.nio.reactors", Math.max(1, cores / 2));
+			int workers = Integer.getInteger("chat.nio.workers", cores * 2);
+			server.startNio(port, reactors, workers);
+		} else {
+			// -Dchat.threads=virtual runs each blocking ClientHandler on a virtual thread (JDK 21+).
+			server.start(port, System.getProperty("chat.threads", "platform").equalsIgnoreCase("virtual"));
+		}
+	}
+	
+	static void initDatabase() {
 		UserDAO.initDatabase();
 		FriendDAO.initFriendsTable();
 		RoomDAO.initRoomTable();
 		MessageDAO.initMessageTable();
 		ActivityLogDAO.initActivityLogTable();
-		ChatServer server = new ChatServer();
-		int port = 5000;
-		server.start(port);
+		SchemaMigrations.migrate();
+		QueryPlanCheck.run();
+		System.out.println("Database durability profile: " + DatabaseManager.durability());
+		DatabaseManager.startCheckpointing();
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			MessageDAO.shutdown();
+			ActivityLogDAO.shutdown();
+			DatabaseManager.shutdown();
+		}, "ShutdownHook"));
 	}
 }
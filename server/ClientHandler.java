@@ -2,31 +2,96 @@ package server;
 
 
 import database.RoomDAO;
+import database.SearchDAO;
 import database.MessageDAO;
 import database.ActivityLogDAO;
 import database.FriendDAO;
 import database.UserDAO;
-import java.io.BufferedReader;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.Socket;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+import protocol.FrameReader;
+import protocol.WireFormat;
 
 public class ClientHandler implements Runnable {
 	
+	private enum AuthStep { RETRY, DONE, REJECTED }
+	
+	// Logged-in commands. Register new ones here; handleCommand never changes.
+	private static final CommandRegistry COMMANDS = new CommandRegistry()
+			.register("JOIN", ClientHandler::cmdJoin)
+			.register("LEAVE", ClientHandler::cmdLeave)
+			.register("ROOMMSG", ClientHandler::cmdRoomMsg)
+			.register("DM", ClientHandler::cmdDm)
+			.register("FRIENDS", ClientHandler::cmdFriends)
+			.register("FRIEND_ADD", ClientHandler::cmdFriendAdd)
+			.register("FRIEND_REMOVE", ClientHandler::cmdFriendRemove)
+			.register("ONLINE", ClientHandler::cmdOnline)
+			.register("FRIEND_REQ", ClientHandler::cmdFriendReq)
+			.register("FRIEND_REQUEST", ClientHandler::cmdFriendRequest)
+			.register("FRIEND_ACCEPT", ClientHandler::cmdFriendAccept)
+			.register("FRIEND_DECLINE", ClientHandler::cmdFriendDecline)
+			.register("STATUS", ClientHandler::cmdStatus)
+			.register("STATUSES", ClientHandler::cmdStatuses)
+			.register("PRESENCE_SYNC", ClientHandler::cmdPresenceSync)
+			.register("ROOM_INVITE", ClientHandler::cmdRoomInvite)
+			.register("ROOM_INVITE_ACCEPT", ClientHandler::cmdRoomInviteAccept)
+			.register("ROOM_INVITE_DECLINE", ClientHandler::cmdRoomInviteDecline)
+			.register("DM_HISTORY", ClientHandler::cmdDmHistory)
+			.register("ROOM_HISTORY", ClientHandler::cmdRoomHistory)
+			.register("HISTORY", ClientHandler::cmdHistory)
+			.register("SEARCH", ClientHandler::cmdSearch);
+	
+	static final Metrics.Counter CONNECTION_ERRORS = Metrics.counter("chat_connection_errors_total",
+			"Connections that ended with an I/O error");
+	// Bytes reserved in fitsOutbound for everything on a message line except the body and the names.
+	static final int OUTBOUND_OVERHEAD = 64;
+	
 	private final Socket socket;
+	private final NioConnection connection;
 	private final ChatServer server;
-	private PrintWriter out;
-	private BufferedReader in;
+	private OutputStream out;
+	// Blocking mode only: lines queue here and a per-connection writer thread drains them, so a
+	// broadcast never waits on this client's socket.
+	private final OutboundQueue outbound = new OutboundQueue();
+	private final CountDownLatch writerDone = new CountDownLatch(1);
+	private InputStream in;
+	// Blocking mode only: true once the client negotiated binary frames (reader thread only).
+	private boolean binaryInput;
 	private String username; 
 	private final Set<String> joinedRooms = ConcurrentHashMap.newKeySet();
+	private final AtomicBoolean disconnected = new AtomicBoolean(false);
+	// Per-recipient presence sequence; a gap tells the client to send PRESENCE_SYNC again.
+	private volatile boolean presenceDeltas;
+	private long presenceSeq;
+	private final ReentrantLock presenceLock = new ReentrantLock();
+	// Reused for every command line; commands run one at a time per connection.
+	private final CommandLine commandLine = new CommandLine();
 
 	
 	public ClientHandler(Socket socket, ChatServer server) {
 		this.socket = socket;
+		this.connection = null;
+		this.server = server;
+	}
+	
+	ClientHandler(NioConnection connection, ChatServer server) {
+		this.socket = null;
+		this.connection = connection;
 		this.server = server;
 	}
 	
@@ -37,40 +102,70 @@ public class ClientHandler implements Runnable {
 	@Override
 	public void run() {
 		try {
-			out = new PrintWriter(socket.getOutputStream(), true);
-			in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+			out = new BufferedOutputStream(socket.getOutputStream());
+			in = new BufferedInputStream(socket.getInputStream());
+			FrameReader reader = new FrameReader(in);
+			server.spawn(this::writeLoop, "ClientWriter");
 			
-			if(!handleAuthentication()) {
-				return;
-			}
-			
-			joinRoomFlow("lobby");
-			server.broadcastOnlineList();
-			server.setStatus(username, "online");
-
+			onConnected();
 			String line;
-			while((line = in.readLine()) != null) {
-				if(line.equalsIgnoreCase("/quit")) {
+			while((line = binaryInput ? reader.readFrame() : reader.readLine()) != null) {
+				if(!onLine(line)) {
 					break;
 				}
-				handleCommand(line);
 			}
 			
 		} catch (IOException e) {
+			CONNECTION_ERRORS.inc();
 			System.err.println("Connection error with " + getUsername() + ": " + e.getMessage());
 		} finally{
-			for(String jR : new HashSet<>(joinedRooms))
-				server.leaveRoom(jR, this);
-			
-			if (username != null) {
-			    ActivityLogDAO.log(username, "LOGOUT", "Client disconnected or quit");
-			}
-			if(username != null) server.unregisterOnline(username);
-			joinedRooms.clear();
+			onDisconnected();
 			close();
 		}
 	}
 	
+	// Transport-independent entry points shared by the blocking and the NIO mode.
+	void onConnected() {
+		server.connectionOpened();
+		sendAuthPrompt();
+	}
+	
+	boolean onLine(String line) {
+		if(line.equals(WireFormat.NEGOTIATE)) {
+			switchToBinary();
+			return true;
+		}
+		if(username == null) {
+			AuthStep step = handleAuthentication(line);
+			if(step == AuthStep.REJECTED) return false;
+			if(step == AuthStep.RETRY) {
+				sendAuthPrompt();
+				return true;
+			}
+			// registerOnline already queued this user's presence, including its own ONLINE/STATUSES lists.
+			joinRoomFlow("lobby");
+			return true;
+		}
+		if(line.equalsIgnoreCase("/quit")) {
+			return false;
+		}
+		handleCommand(line);
+		return true;
+	}
+	
+	void onDisconnected() {
+		if(disconnected.getAndSet(true)) return;
+		server.connectionClosed();
+		for(String jR : new HashSet<>(joinedRooms))
+			server.leaveRoom(jR, this);
+		
+		if (username != null) {
+		    ActivityLogDAO.log(username, "LOGOUT", "Client disconnected or quit");
+		}
+		if(username != null) server.unregisterOnline(username);
+		joinedRooms.clear();
+	}
+	
 	private boolean joinRoomFlow(String room) {
 		if(username == null) return false;
 		room = room.trim();
@@ -122,19 +217,135 @@ public class ClientHandler implements Runnable {
 	}
 	
 	public void sendMessage(String message) {
-		if(out != null) {
-			out.println(message);
+		sendEncoded(EncodedMessage.of(message));
+	}
+	
+	// Broadcasts hand every recipient the same pre-encoded message.
+	void sendEncoded(EncodedMessage message) {
+		if(connection != null) {
+			connection.send(message);
+		} else if(!outbound.offer(message)) {
+			abort();
+		}
+	}
+	
+	// The acknowledgement is the last text line; everything queued after it is a binary frame.
+	private void switchToBinary() {
+		EncodedMessage ack = EncodedMessage.of(WireFormat.ACK);
+		if(connection != null) {
+			connection.switchToBinary(ack);
+			return;
+		}
+		binaryInput = true;
+		if(!outbound.offerThenSwitchToBinary(ack)) abort();
+	}
+	
+	boolean wantsPresenceDeltas() {
+		return presenceDeltas;
+	}
+	
+	// Returns true the first time, when this client switches from ONLINE/STATUSES lists to deltas.
+	// The entries are read under the same lock that orders deltas: a change made before they are
+	// read is in the snapshot, and its delta (already applied, harmless) can only follow it.
+	boolean sendPresenceSnapshot(Supplier<String> entries) {
+		presenceLock.lock();
+		try {
+			boolean switched = !presenceDeltas;
+			presenceDeltas = true;
+			presenceSeq++;
+			sendMessage("PRESENCESNAP " + presenceSeq + " " + entries.get());
+			return switched;
+		} finally {
+			presenceLock.unlock();
+		}
+	}
+	
+	void sendPresenceDelta(String ops) {
+		presenceLock.lock();
+		try {
+			if(!presenceDeltas) return;
+			presenceSeq++;
+			sendMessage("PRESENCE " + presenceSeq + " " + ops);
+		} finally {
+			presenceLock.unlock();
+		}
+	}
+	
+	public int outboundDepth() {
+		return connection != null ? connection.outboundDepth() : outbound.depth();
+	}
+	
+	public long outboundDropped() {
+		return connection != null ? connection.outboundDropped() : outbound.dropped();
+	}
+	
+	private void writeLoop() {
+		List<EncodedMessage> batch = new ArrayList<>();
+		try {
+			while(outbound.awaitAndDrain(batch, 64)) {
+				for(EncodedMessage message : batch) {
+					message.writeTo(out);
+				}
+				out.flush();
+				batch.clear();
+			}
+		} catch (IOException e) {
+			abort();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			writerDone.countDown();
+		}
+	}
+	
+	// Ends the session from another thread after a last line; the reader thread then cleans up.
+	void disconnect(String reason) {
+		sendMessage(reason);
+		if(connection != null) {
+			connection.closeAfterFlush();
+			return;
+		}
+		outbound.close();
+		try {
+			socket.shutdownInput();
+		} catch (IOException ignored) {
+			
+		}
+	}
+	
+	// Slow consumer (or dead socket): drop what is queued and close; the reader thread then cleans up.
+	private void abort() {
+		outbound.close();
+		outbound.clear();
+		try {
+			if(socket != null) socket.close();
+		} catch (IOException ignored) {
+			
 		}
 	}
 	
 	private void close() {
+		if(connection != null) {
+			connection.close();
+			return;
+		}
+		outbound.close();
+		try {
+			writerDone.await(1, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
 		try {
 			if(in != null) in.close();
 		} catch (IOException ignored) {
 			
 		}
 		
-		if(out != null) out.close();
+		try {
+			if(out != null) out.close();
+		} catch (IOException ignored) {
+			
+		}
 		
 		try {
 			if(socket != null && !socket.isClosed()) socket.close();
@@ -143,341 +354,449 @@ public class ClientHandler implements Runnable {
 		}
 	}
 	
-	private boolean handleAuthentication() throws IOException{
-		while(true) {
-			out.println("SYS Login/Register");
-            out.println("SYS REGISTER <username> <password>");
-            out.println("SYS LOGIN <username> <password>");
-			
-			String line = in.readLine();
-			if(line == null) {
-				return false;
-			}
-			
-			String[] splittedParts = line.trim().split("\\s+");
-			if(splittedParts.length != 3) {
-				out.println("ERR Invalid Format. Click REGISTER or LOGIN after filling out username and password.");
-				continue;
+	private void sendAuthPrompt() {
+		sendMessage("SYS Login/Register");
+		sendMessage("SYS REGISTER <username> <password>");
+		sendMessage("SYS LOGIN <username> <password>");
+	}
+	
+	private AuthStep handleAuthentication(String line) {
+		String[] splittedParts = line.trim().split("\\s+");
+		if(splittedParts.length != 3) {
+			sendMessage("ERR Invalid Format. Click REGISTER or LOGIN after filling out username and password.");
+			return AuthStep.RETRY;
+		}
+		
+		String command = splittedParts[0].toUpperCase();
+		String userName = splittedParts[1];
+		String password = splittedParts[2];
+		
+		if(command.equals("REGISTER")) {
+			UserDAO.RegisterResult result = UserDAO.registerUser(userName, password);
+			if(result == UserDAO.RegisterResult.OK) {
+				sendMessage("REGISTER SUCCESSFUL");
+				// Set first: registering publishes this client's own presence, scoped by its username.
+				this.username = userName;
+				if(!server.registerOnline(userName, this)) {
+					this.username = null;
+					sendMessage("ERR Already logged in elsewhere.");
+					return AuthStep.REJECTED;
+				} 
+				sendMessage("SYS Welcome " + userName);
+				ActivityLogDAO.log(userName, "REGISTER", "Account created");
+				ActivityLogDAO.log(userName, "LOGIN", "Registered and logged in");
+				return AuthStep.DONE;
+			} else if(result == UserDAO.RegisterResult.USERNAME_TAKEN) {
+				sendMessage("ERR REGISTER_USERNAME_TAKEN");
+			} else if(result == UserDAO.RegisterResult.INVALID_PASSWORD) {
+				sendMessage("ERR REGISTER_BAD_PASSWORD");
+			} else if(result == UserDAO.RegisterResult.INVALID_USERNAME) {
+				sendMessage("ERR REGISTER_BAD_USERNAME");
+			} else {
+				sendMessage("ERR REGISTER FAILED");
 			}
-			
-			String command = splittedParts[0].toUpperCase();
-			String userName = splittedParts[1];
-			String password = splittedParts[2];
-			
-			if(command.equals("REGISTER")) {
-				UserDAO.RegisterResult result = UserDAO.registerUser(userName, password);
-				if(result == UserDAO.RegisterResult.OK) {
-					out.println("REGISTER SUCCESSFUL");
-					if(!server.registerOnline(userName, this)) {
-						out.println("ERR Already logged in elsewhere.");
-						return false;
-					} 
-					this.username = userName;
-					out.println("SYS Welcome " + userName);
-					ActivityLogDAO.log(userName, "REGISTER", "Account created");
-					ActivityLogDAO.log(userName, "LOGIN", "Registered and logged in");
-					return true;
-				} else if(result == UserDAO.RegisterResult.USERNAME_TAKEN) {
-					out.println("ERR REGISTER_USERNAME_TAKEN");
-				} else if(result == UserDAO.RegisterResult.INVALID_PASSWORD) {
-					out.println("ERR REGISTER_BAD_PASSWORD");
-				} else if(result == UserDAO.RegisterResult.INVALID_USERNAME) {
-					out.println("ERR REGISTER_BAD_USERNAME");
-				} else {
-					out.println("ERR REGISTER FAILED");
-				}
-			} else if(command.equals("LOGIN")) {
-				UserDAO.LoginResult loginResult = UserDAO.validateLogin(userName, password);
-				if(loginResult == UserDAO.LoginResult.OK) {
-					out.println("LOGIN SUCCESSFUL");
-					if(!server.registerOnline(userName, this)) {
-						out.println("ERR Already logged in elsewhere.");
-                        return false;
-					}
-					this.username = userName;
-					out.println("SYS Welcome back " + userName);
-					ActivityLogDAO.log(userName, "LOGIN", "Login successful");
-					return true;
-				} else if(loginResult == UserDAO.LoginResult.NO_SUCH_USER) {
-					out.println("ERR LOGIN_NO_SUCH_USER");
-				} else if(loginResult == UserDAO.LoginResult.WRONG_PASSWORD) {
-					out.println("ERR LOGIN_WRONG_PASSWORD");
-				} else {
-					out.println("ERR LOGIN FAILED");
+		} else if(command.equals("LOGIN")) {
+			UserDAO.LoginResult loginResult = UserDAO.validateLogin(userName, password);
+			if(loginResult == UserDAO.LoginResult.OK) {
+				sendMessage("LOGIN SUCCESSFUL");
+				this.username = userName;
+				if(!server.registerOnline(userName, this)) {
+					this.username = null;
+					sendMessage("ERR Already logged in elsewhere.");
+                    return AuthStep.REJECTED;
 				}
+				sendMessage("SYS Welcome back " + userName);
+				ActivityLogDAO.log(userName, "LOGIN", "Login successful");
+				return AuthStep.DONE;
+			} else if(loginResult == UserDAO.LoginResult.NO_SUCH_USER) {
+				sendMessage("ERR LOGIN_NO_SUCH_USER");
+			} else if(loginResult == UserDAO.LoginResult.WRONG_PASSWORD) {
+				sendMessage("ERR LOGIN_WRONG_PASSWORD");
 			} else {
-				out.println("ERR UNKNOWN COMMAND");
+				sendMessage("ERR LOGIN FAILED");
 			}
+		} else {
+			sendMessage("ERR UNKNOWN COMMAND");
 		}
+		return AuthStep.RETRY;
+	}
+	
+	public static CommandRegistry commands() {
+		return COMMANDS;
 	}
 	
 	private void handleCommand(String raw) {
-		raw = raw.trim();
-		if(raw.isEmpty()) return;
-		String[] splittedParts = raw.split("\\s+", 3);
-		if(splittedParts.length == 0) return;
-		
-		String command = splittedParts[0].toUpperCase();
-		
-		if(command.equals("JOIN")) {
-			if(splittedParts.length < 2) {
-				sendMessage("ERR Joining room");
-				return;
-			}
-			joinRoomFlow(splittedParts[1]);
+		if(!commandLine.parse(raw)) return;
+		if(!COMMANDS.dispatch(this, commandLine)) {
+			server.roomBroadcast("lobby",  "ROOMFROM lobby " + username + " " + commandLine.raw(), null);
+		}
+	}
+	
+	private void cmdJoin(CommandLine cmd) {
+		if(cmd.count() < 2) {
+			sendMessage("ERR Joining room");
 			return;
-		} else if(command.equals("LEAVE")) {
-			if(splittedParts.length < 2) {
-				sendMessage("ERR Leaving room");
-				return;
-			}
-			leaveRoomFlow(splittedParts[1]);
+		}
+		joinRoomFlow(cmd.part(1));
+	}
+	
+	private void cmdLeave(CommandLine cmd) {
+		if(cmd.count() < 2) {
+			sendMessage("ERR Leaving room");
 			return;
-		} else if(command.equals("ROOMMSG")) {
-			if(splittedParts.length < 3) {
-				sendMessage("ERR Sending room msg");
-				return;
-			}
-			String room = splittedParts[1];
-		    String msg = splittedParts[2];
-			Integer myId = UserDAO.getUserId(username);
-		    Integer roomId = RoomDAO.getRoomId(room);
-		    if (roomId == null) { 
-		    	sendMessage("ERR Room does not exist: " + room); 
-		    	return; 
-		    }
-		    if (!RoomDAO.isMember(roomId, myId)) { 
-		    	sendMessage("ERR Not a member of room: " + room); 
-		    	return; 
-		    }
-		    MessageDAO.saveRoom(username,  room, msg);
-		    server.roomBroadcast(room, "ROOMFROM " + room + " " + username + " " + msg, this);
+		}
+		leaveRoomFlow(cmd.part(1));
+	}
+	
+	private void cmdRoomMsg(CommandLine cmd) {
+		if(cmd.count() < 3) {
+			sendMessage("ERR Sending room msg");
 			return;
-		} else if(command.equals("DM")) {
-			if(splittedParts.length < 3) {
-				sendMessage("ERR DMing");
-				return;
-			}
-			String to = splittedParts[1];
-		    String msg = splittedParts[2];
-		    MessageDAO.saveDM(username, to, msg);
-		    server.sendDM(to, msg, this);
-		    ActivityLogDAO.log(username, "DM_SENT", "to=" + to);
-		    return;
-		} else if(command.equals("FRIENDS")) {
-			sendMessage("FRIENDS " + String.join(",", FriendDAO.getFriends(username)));
-		    return;
-		} else if(command.equals("FRIEND_ADD")) {
-			if(splittedParts.length < 2) {
-				sendMessage("ERR ADDING FRIEND");
-				return;
-			}
-			boolean passed = FriendDAO.addFriend(username, splittedParts[1]);
-			sendMessage(passed ? "SYS Friend added: " + splittedParts[1] : "ERR Couldn't find friend.");
+		}
+		String room = cmd.part(1);
+	    String msg = cmd.part(2);
+	    if (!fitsOutbound(room, msg)) {
+	    	sendMessage("ERR Message too long");
+	    	return;
+	    }
+		Integer myId = UserDAO.getUserId(username);
+	    Integer roomId = RoomDAO.getRoomId(room);
+	    if (roomId == null) { 
+	    	sendMessage("ERR Room does not exist: " + room); 
+	    	return; 
+	    }
+	    if (!RoomDAO.isMember(roomId, myId)) { 
+	    	sendMessage("ERR Not a member of room: " + room); 
+	    	return; 
+	    }
+	    MessageDAO.saveRoom(username,  room, msg);
+	    server.roomBroadcast(room, "ROOMFROM " + room + " " + username + " " + msg, this);
+	}
+	
+	private void cmdDm(CommandLine cmd) {
+		if(cmd.count() < 3) {
+			sendMessage("ERR DMing");
 			return;
-		} else if(command.equals("FRIEND_REMOVE")) {
-			if(splittedParts.length < 2) {
-				sendMessage("ERR removing user");
-				return;
-			}
-			boolean passed = FriendDAO.removeFriend(username, splittedParts[1]);
-			sendMessage(passed ? "SYS Friend removed: " + splittedParts[1] : "ERR Couldn't remove friend");
+		}
+		String to = cmd.part(1);
+	    String msg = cmd.part(2);
+	    if (!fitsOutbound(to, msg)) {
+	    	sendMessage("ERR Message too long");
+	    	return;
+	    }
+	    MessageDAO.saveDM(username, to, msg);
+	    server.sendDM(to, msg, this);
+	    ActivityLogDAO.log(username, "DM_SENT", "to=" + to);
+	}
+	
+	// Every line that repeats a message (ROOMFROM, DMFROM, HISTORYLINE, SEARCHHIT...) must stay within
+	// WireFormat.MAX_FRAME, which clients built before MAX_SERVER_FRAME still enforce: the body plus
+	// both names plus the longest verb, kind, id and separators.
+	private boolean fitsOutbound(String target, String body) {
+		return WireFormat.utf8Length(body) + WireFormat.utf8Length(target) + WireFormat.utf8Length(username)
+				+ OUTBOUND_OVERHEAD <= WireFormat.MAX_FRAME;
+	}
+	
+	private void cmdFriends(CommandLine cmd) {
+		sendMessage("FRIENDS " + String.join(",", FriendDAO.getFriends(username)));
+	}
+	
+	private void cmdFriendAdd(CommandLine cmd) {
+		if(cmd.count() < 2) {
+			sendMessage("ERR ADDING FRIEND");
 			return;
-		} else if(command.equals("ONLINE")) {
-			server.broadcastOnlineList();
+		}
+		boolean passed = FriendDAO.addFriend(username, cmd.part(1));
+		sendMessage(passed ? "SYS Friend added: " + cmd.part(1) : "ERR Couldn't find friend.");
+	}
+	
+	private void cmdFriendRemove(CommandLine cmd) {
+		if(cmd.count() < 2) {
+			sendMessage("ERR removing user");
 			return;
-		} else if(command.equals("FRIEND_REQ")) {
-			if(splittedParts.length < 2) {
-				sendMessage("ERR friend request");
-				return;
-			}
-			String target = splittedParts[1];
-			boolean okCondition = FriendDAO.sendRequest(username, target);
-			if(!okCondition) {
-				sendMessage("ERR Couldn't send friend request");
-				return;
-			}
-			sendMessage("SYS Friend request sent to " + target);
-			ClientHandler otherUser = server.getOnlineUser(target);
-			if(otherUser != null)
-				otherUser.sendMessage("FRIENDREQFROM " + username);
-			ActivityLogDAO.log(username, "FRIEND_REQUEST_SENT", "to=" + target);
+		}
+		boolean passed = FriendDAO.removeFriend(username, cmd.part(1));
+		sendMessage(passed ? "SYS Friend removed: " + cmd.part(1) : "ERR Couldn't remove friend");
+	}
+	
+	private void cmdOnline(CommandLine cmd) {
+		server.onlineListRequested(this);
+	}
+	
+	private void cmdFriendReq(CommandLine cmd) {
+		if(cmd.count() < 2) {
+			sendMessage("ERR friend request");
 			return;
-		} else if(command.equals("FRIEND_REQUEST")) {
-			sendMessage("FRIENDREQS " + String.join(",", FriendDAO.getIncomingRequests(username)));
+		}
+		String target = cmd.part(1);
+		boolean okCondition = FriendDAO.sendRequest(username, target);
+		if(!okCondition) {
+			sendMessage("ERR Couldn't send friend request");
 			return;
-		} else if(command.equals("FRIEND_ACCEPT")) {
-			if(splittedParts.length < 2) {
-				sendMessage("ERR accept request");
-				return;
-			}
-			String fromUser = splittedParts[1];
-			boolean okCondition = FriendDAO.acceptRequest(username, fromUser);
-			if(!okCondition) {
-				sendMessage("ERR Couldn't accept request.");
-				return;
-			}
-			sendMessage("SYS Friend request accepted: " + fromUser);
-			ClientHandler otherUser = server.getOnlineUser(fromUser);
-			if(otherUser != null)
-				otherUser.sendMessage("SYS " + username + " accepted your friend request!");
-			sendMessage("FRIENDS " + String.join(",", FriendDAO.getFriends(username)));
-			if(otherUser != null)
-				otherUser.sendMessage("FRIENDS " + String.join(",", FriendDAO.getFriends(fromUser)));
-			ActivityLogDAO.log(username, "FRIEND_REQUEST_ACCEPTED", "from=" + fromUser);
+		}
+		sendMessage("SYS Friend request sent to " + target);
+		server.sendToUser(target, "FRIENDREQFROM " + username);
+		ActivityLogDAO.log(username, "FRIEND_REQUEST_SENT", "to=" + target);
+	}
+	
+	private void cmdFriendRequest(CommandLine cmd) {
+		sendMessage("FRIENDREQS " + String.join(",", FriendDAO.getIncomingRequests(username)));
+	}
+	
+	private void cmdFriendAccept(CommandLine cmd) {
+		if(cmd.count() < 2) {
+			sendMessage("ERR accept request");
 			return;
-		} else if(command.equals("FRIEND_DECLINE")){
-			if (splittedParts.length < 2) { 
-				sendMessage("ERR decline request"); 
-				return; 
-				}
-		    String fromUser = splittedParts[1];
-		    boolean okCondition = FriendDAO.declineRequest(username, fromUser);
-		    if(!okCondition) {
-		    	sendMessage("ERR Couldn't decline request.");
-		    	return;
-		    }
-		    sendMessage("SYS Friend request declined: " + fromUser);
-		    ClientHandler otherUser = server.getOnlineUser(fromUser);
-		    if(otherUser != null)
-		    	otherUser.sendMessage("SYS " + username + " rejected your friend request.");
-		    ActivityLogDAO.log(username, "FRIEND_REQUEST_DECLINED", "from=" + fromUser);
-		    return;
-		} else if(command.equals("STATUS")) {
-			if (splittedParts.length < 2) {
-		        sendMessage("ERR Usage: STATUS <online|away|busy>");
-		        return;
-		    }
-		    String newStatus = splittedParts[1];
-		    String normalized = "online";
-		    if (newStatus != null) {
-		        normalized = newStatus.trim().toLowerCase();
-		    }
-		    if (!normalized.equals("online") && !normalized.equals("away") && !normalized.equals("busy")) {
-		        normalized = "online";
-		    }
-		    server.setStatus(username, normalized);
-		    ActivityLogDAO.log(username, "STATUS", "Changed status to " + normalized);
-		    sendMessage("SYS Status set to " + normalized);
-		    return;
-		} else if(command.equals("STATUSES")) {
-			server.statusesSnapshot();
+		}
+		String fromUser = cmd.part(1);
+		boolean okCondition = FriendDAO.acceptRequest(username, fromUser);
+		if(!okCondition) {
+			sendMessage("ERR Couldn't accept request.");
 			return;
-		} else if(command.equals("ROOM_INVITE")) {
-			if(splittedParts.length < 3) {
-				sendMessage("ERR ROOM_INVITE"); 
-				return; 
-			}
-			String room = splittedParts[1];
-		    String targetUser = splittedParts[2];
-		    Integer roomId = RoomDAO.getRoomId(room);
-		    if (roomId == null) {
-		    	sendMessage("ERR Room does not exist: " + room); 
-		    	return; 
-		    }
-		    Integer fromId = UserDAO.getUserId(username);
-		    Integer toId = UserDAO.getUserId(targetUser);
-		    if (fromId == null || toId == null) { 
-		    	sendMessage("ERR User not found"); 
-		    	return; 
-		    }
-		    if (!RoomDAO.isMember(roomId, fromId)) { 
-		    	sendMessage("ERR You are not a member of room " + room); 
-		    	return; 
-		    }
-		    if (RoomDAO.isMember(roomId, toId)) { 
-		    	sendMessage("ERR User already in room"); 
-		    	return; 
-		    }
-		    boolean created = RoomDAO.createInvite(roomId, fromId, toId);
-		    if (!created) { 
-		    	sendMessage("ERR Invite already exists"); 
-		    	return; 
-		    }
-		    sendMessage("SYS Invited " + targetUser + " to room " + room);
-		    ClientHandler otherUser = server.getOnlineUser(targetUser);
-		    if (otherUser != null) 
-		    	otherUser.sendMessage("ROOMINVITE " + room + " " + username);
-		    ActivityLogDAO.log(username, "ROOM_INVITE_SENT", "room=" + room + ",to=" + targetUser);
-		    return;
-		} else if(command.equals("ROOM_INVITE_ACCEPT")) {
-			if (splittedParts.length < 2) { 
-				sendMessage("ERR ROOM_INVITE_ACCEPT"); 
-				return; 
-			}
-		    String room = splittedParts[1];
-		    Integer roomId = RoomDAO.getRoomId(room);
-		    Integer myId = UserDAO.getUserId(username);
-		    if (roomId == null || myId == null) { 
-		    	sendMessage("ERR Room/user invalid"); 
-		    	return; 
-		    }
-		    if (!RoomDAO.inviteExists(roomId, myId)) { 
-		    	sendMessage("ERR No pending invite for " + room); 
-		    	return; 
-		    }
-		    RoomDAO.deleteInvite(roomId, myId);
-		    RoomDAO.addMember(roomId, myId);
-		    joinRoomFlow(room);
-		    sendMessage("SYS Invivte accepted for room " + room);
-		    ActivityLogDAO.log(username, "ROOM_INVITE_ACCEPT", "room=" + room);
-		    return;
-		} else if(command.equals("ROOM_INVITE_DECLINE")) {
-			if (splittedParts.length < 2) { 
-				sendMessage("ERR ROOM_INVITE_DECLINE"); 
-				return; 
+		}
+		sendMessage("SYS Friend request accepted: " + fromUser);
+		boolean otherOnline = server.sendToUser(fromUser, "SYS " + username + " accepted your friend request!");
+		sendMessage("FRIENDS " + String.join(",", FriendDAO.getFriends(username)));
+		if(otherOnline)
+			server.sendToUser(fromUser, "FRIENDS " + String.join(",", FriendDAO.getFriends(fromUser)));
+		ActivityLogDAO.log(username, "FRIEND_REQUEST_ACCEPTED", "from=" + fromUser);
+	}
+	
+	private void cmdFriendDecline(CommandLine cmd) {
+		if (cmd.count() < 2) { 
+			sendMessage("ERR decline request"); 
+			return; 
 			}
-		    String room = splittedParts[1].trim();
-		    Integer roomId = RoomDAO.getRoomId(room);
-		    Integer myId = UserDAO.getUserId(username);
-		    if (roomId == null || myId == null) { 
-		    	sendMessage("ERR Room/user invalid"); 
-		    	return; 
-		    }
-		    RoomDAO.deleteInvite(roomId, myId);
-		    if (joinedRooms.contains(room)) {
-		        server.leaveRoomMemory(room, this);
-		        joinedRooms.remove(room);
-		    }
-		    if (RoomDAO.isMember(roomId, myId)) {
-		        RoomDAO.removeMember(roomId, myId);
-		    }
-		    sendMessage("SYS Invite declined for room " + room);
-		    ActivityLogDAO.log(username, "ROOM_INVITE_DECLINE", "room=" + room);
-		    return;
-		} else if(command.equals("DM_HISTORY")) {
-			if (splittedParts.length < 2) { 
-				sendMessage("ERR DM_HISTORY"); 
-				return; 
+	    String fromUser = cmd.part(1);
+	    boolean okCondition = FriendDAO.declineRequest(username, fromUser);
+	    if(!okCondition) {
+	    	sendMessage("ERR Couldn't decline request.");
+	    	return;
+	    }
+	    sendMessage("SYS Friend request declined: " + fromUser);
+	    server.sendToUser(fromUser, "SYS " + username + " rejected your friend request.");
+	    ActivityLogDAO.log(username, "FRIEND_REQUEST_DECLINED", "from=" + fromUser);
+	}
+	
+	private void cmdStatus(CommandLine cmd) {
+		if (cmd.count() < 2) {
+	        sendMessage("ERR Usage: STATUS <online|away|busy>");
+	        return;
+	    }
+	    String newStatus = cmd.part(1);
+	    String normalized = "online";
+	    if (newStatus != null) {
+	        normalized = newStatus.trim().toLowerCase();
+	    }
+	    if (!normalized.equals("online") && !normalized.equals("away") && !normalized.equals("busy")) {
+	        normalized = "online";
+	    }
+	    server.setStatus(username, normalized);
+	    ActivityLogDAO.log(username, "STATUS", "Changed status to " + normalized);
+	    sendMessage("SYS Status set to " + normalized);
+	}
+	
+	private void cmdStatuses(CommandLine cmd) {
+		server.statusesRequested(this);
+	}
+	
+	private void cmdPresenceSync(CommandLine cmd) {
+		server.sendPresenceSnapshot(this);
+	}
+	
+	private void cmdRoomInvite(CommandLine cmd) {
+		if(cmd.count() < 3) {
+			sendMessage("ERR ROOM_INVITE"); 
+			return; 
+		}
+		String room = cmd.part(1);
+	    String targetUser = cmd.part(2);
+	    Integer roomId = RoomDAO.getRoomId(room);
+	    if (roomId == null) {
+	    	sendMessage("ERR Room does not exist: " + room); 
+	    	return; 
+	    }
+	    Integer fromId = UserDAO.getUserId(username);
+	    Integer toId = UserDAO.getUserId(targetUser);
+	    if (fromId == null || toId == null) { 
+	    	sendMessage("ERR User not found"); 
+	    	return; 
+	    }
+	    if (!RoomDAO.isMember(roomId, fromId)) { 
+	    	sendMessage("ERR You are not a member of room " + room); 
+	    	return; 
+	    }
+	    if (RoomDAO.isMember(roomId, toId)) { 
+	    	sendMessage("ERR User already in room"); 
+	    	return; 
+	    }
+	    boolean created = RoomDAO.createInvite(roomId, fromId, toId);
+	    if (!created) { 
+	    	sendMessage("ERR Invite already exists"); 
+	    	return; 
+	    }
+	    sendMessage("SYS Invited " + targetUser + " to room " + room);
+	    server.sendToUser(targetUser, "ROOMINVITE " + room + " " + username);
+	    ActivityLogDAO.log(username, "ROOM_INVITE_SENT", "room=" + room + ",to=" + targetUser);
+	}
+	
+	private void cmdRoomInviteAccept(CommandLine cmd) {
+		if (cmd.count() < 2) { 
+			sendMessage("ERR ROOM_INVITE_ACCEPT"); 
+			return; 
+		}
+	    String room = cmd.part(1);
+	    Integer roomId = RoomDAO.getRoomId(room);
+	    Integer myId = UserDAO.getUserId(username);
+	    if (roomId == null || myId == null) { 
+	    	sendMessage("ERR Room/user invalid"); 
+	    	return; 
+	    }
+	    if (!RoomDAO.inviteExists(roomId, myId)) { 
+	    	sendMessage("ERR No pending invite for " + room); 
+	    	return; 
+	    }
+	    RoomDAO.deleteInvite(roomId, myId);
+	    RoomDAO.addMember(roomId, myId);
+	    joinRoomFlow(room);
+	    sendMessage("SYS Invivte accepted for room " + room);
+	    ActivityLogDAO.log(username, "ROOM_INVITE_ACCEPT", "room=" + room);
+	}
+	
+	private void cmdRoomInviteDecline(CommandLine cmd) {
+		if (cmd.count() < 2) { 
+			sendMessage("ERR ROOM_INVITE_DECLINE"); 
+			return; 
+		}
+	    String room = cmd.part(1).trim();
+	    Integer roomId = RoomDAO.getRoomId(room);
+	    Integer myId = UserDAO.getUserId(username);
+	    if (roomId == null || myId == null) { 
+	    	sendMessage("ERR Room/user invalid"); 
+	    	return; 
+	    }
+	    RoomDAO.deleteInvite(roomId, myId);
+	    if (joinedRooms.contains(room)) {
+	        server.leaveRoomMemory(room, this);
+	        joinedRooms.remove(room);
+	    }
+	    if (RoomDAO.isMember(roomId, myId)) {
+	        RoomDAO.removeMember(roomId, myId);
+	    }
+	    sendMessage("SYS Invite declined for room " + room);
+	    ActivityLogDAO.log(username, "ROOM_INVITE_DECLINE", "room=" + room);
+	}
+	
+	private void cmdDmHistory(CommandLine cmd) {
+		if (cmd.count() < 2) { 
+			sendMessage("ERR DM_HISTORY"); 
+			return; 
+		}
+	    String otherU = cmd.part(1);
+	    int limit = 50;
+	    for (MessageDAO.Message m : MessageDAO.getDMHistory(username, otherU, limit)) {
+	        sendMessage("DMHISTORYLINE " + otherU + " " + m.from + " " + m.bodyText);
+	    }
+	    sendMessage("DMHISTORYDONE " + otherU);
+	}
+	
+	private void cmdRoomHistory(CommandLine cmd) {
+		if (cmd.count() < 2) { 
+			sendMessage("ERR ROOM_HISTORY"); 
+			return;
+		}
+	    String room = cmd.part(1);
+	    int limit = 50;
+	    Integer roomId = RoomDAO.getRoomId(room);
+	    Integer myId = UserDAO.getUserId(username);
+	    if (roomId == null || myId == null || !RoomDAO.isMember(roomId, myId)) {
+	        sendMessage("ERR Not allowed to view history for " + room);
+	        return;
+	    }
+	    for (MessageDAO.Message m : MessageDAO.getRoomHistory(room, limit)) {
+	        sendMessage("ROOMHISTLINE " + room + " " + m.from + " " + m.bodyText);
+	    }
+	    sendMessage("ROOMHISTORYDONE " + room);
+	}
+	
+	// HISTORY ROOM <room> [beforeId] [pageSize] / HISTORY DM <user> [beforeId] [pageSize]
+	// Streams HISTORYLINE <kind> <target> <id> <from> <body> newest first, then
+	// HISTORYEND <kind> <target> <nextCursor>; pass the cursor as beforeId for the next older page
+	// (0 means the beginning was reached).
+	private void cmdHistory(CommandLine cmd) {
+		if(cmd.count() < 3) {
+			sendMessage("ERR Usage: HISTORY <ROOM|DM> <name> [beforeId] [pageSize]");
+			return;
+		}
+		String kind = cmd.part(1).toUpperCase();
+		String[] args = cmd.part(2).split("\\s+");
+		String target = args[0];
+		long beforeId;
+		int pageSize;
+		try {
+			beforeId = args.length > 1 ? Long.parseLong(args[1]) : 0;
+			pageSize = args.length > 2 ? Integer.parseInt(args[2]) : 50;
+		} catch (NumberFormatException e) {
+			sendMessage("ERR HISTORY cursor and page size must be numbers");
+			return;
+		}
+		Integer myId = UserDAO.getUserId(username);
+		if(myId == null) {
+			sendMessage("ERR User not found");
+			return;
+		}
+		String prefix = "HISTORYLINE " + kind + " " + target + " ";
+		MessageDAO.HistoryVisitor visitor = (id, from, body, createdAt) ->
+				sendMessage(prefix + id + " " + from + " " + body);
+		long next;
+		if(kind.equals("ROOM")) {
+			Integer roomId = RoomDAO.getRoomId(target);
+			if(roomId == null || !RoomDAO.isMember(roomId, myId)) {
+				sendMessage("ERR Not allowed to view history for " + target);
+				return;
 			}
-		    String otherU = splittedParts[1];
-		    int limit = 50;
-		    for (MessageDAO.Message m : MessageDAO.getDMHistory(username, otherU, limit)) {
-		        sendMessage("DMHISTORYLINE " + otherU + " " + m.from + " " + m.bodyText);
-		    }
-		    sendMessage("DMHISTORYDONE " + otherU);
-		    return;
-		} else if (command.equals("ROOM_HISTORY")) {
-			if (splittedParts.length < 2) { 
-				sendMessage("ERR ROOM_HISTORY"); 
+			next = MessageDAO.streamRoomHistory(roomId, beforeId, pageSize, visitor);
+		} else if(kind.equals("DM")) {
+			Integer otherId = UserDAO.getUserId(target);
+			if(otherId == null) {
+				sendMessage("ERR User not found");
 				return;
 			}
-		    String room = splittedParts[1];
-		    int limit = 50;
-		    Integer roomId = RoomDAO.getRoomId(room);
-		    Integer myId = UserDAO.getUserId(username);
-		    if (roomId == null || myId == null || !RoomDAO.isMember(roomId, myId)) {
-		        sendMessage("ERR Not allowed to view history for " + room);
-		        return;
-		    }
-		    for (MessageDAO.Message m : MessageDAO.getRoomHistory(room, limit)) {
-		        sendMessage("ROOMHISTLINE " + room + " " + m.from + " " + m.bodyText);
-		    }
-		    sendMessage("ROOMHISTORYDONE " + room);
-		    return;
+			next = MessageDAO.streamDMHistory(myId, otherId, beforeId, pageSize, visitor);
 		} else {
-			server.roomBroadcast("lobby",  "ROOMFROM lobby " + username + " " + raw, null);
+			sendMessage("ERR Usage: HISTORY <ROOM|DM> <name> [beforeId] [pageSize]");
+			return;
+		}
+		sendMessage("HISTORYEND " + kind + " " + target + " " + next);
+	}
+	
+	// SEARCH <offset> <terms...>: SEARCHHIT <id> <ROOM room|DM user> <from> <body> lines, best first,
+	// then SEARCHEND <nextOffset> (0 = no more). Only rooms the user is in and their own DMs are searched.
+	private void cmdSearch(CommandLine cmd) {
+		if(cmd.count() < 3) {
+			sendMessage("ERR Usage: SEARCH <offset> <terms...>");
+			return;
+		}
+		int offset;
+		try {
+			offset = Integer.parseInt(cmd.part(1));
+		} catch (NumberFormatException e) {
+			sendMessage("ERR SEARCH offset must be a number");
+			return;
+		}
+		Integer myId = UserDAO.getUserId(username);
+		if(myId == null) {
+			sendMessage("ERR User not found");
+			return;
 		}
+		String me = username;
+		int next = SearchDAO.search(myId, RoomDAO.listRoomIds(myId), cmd.part(2), offset, SearchDAO.MAX_PAGE_SIZE,
+				(id, kind, from, to, body, createdAt) -> {
+					// For a DM the target is the other participant, as in HISTORY.
+					String target = kind.equals("DM") && to.equals(me) ? from : to;
+					sendMessage("SEARCHHIT " + id + " " + kind + " " + target + " " + from + " " + body);
+				});
+		sendMessage("SEARCHEND " + next);
 	}
 	
 }
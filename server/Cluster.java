@@ -0,0 +1,215 @@
+package server;
+
+import database.DatabaseManager;
+import database.FriendDAO;
+import database.MessageDAO;
+import database.MessagePartitions;
+import database.RoomDAO;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Cluster mode: ChatServer nodes sharing one database and telling each other, over a ClusterBus,
+// what they need to serve users connected to another node. A frame is
+// "<highest message id issued> <type> <fields>", the id keeping message ids in time order:
+//   U user status     user is online (or changed status) on the sending node
+//   D user            user went offline on the sending node
+//   R room line       room broadcast, delivered to the room's members on this node
+//   T user line       one line for one user on this node (DMs, friend and invite notices)
+//   F user            the user's friendships changed
+//   M room user +|-   room membership changed
+//   P                 message partitions were archived or deleted
+// Room broadcasts go to every node. A single-node server has no Cluster.
+final class Cluster implements ClusterBus.Receiver, DatabaseManager.ChangeListener {
+
+	// Nodes are numbered 0 to MAX_NODES - 1; message ids are handed out modulo MAX_NODES.
+	static final int MAX_NODES = 16;
+
+	private static final Metrics.Counter FRAMES_SENT = Metrics.counter("chat_cluster_frames_sent_total",
+			"Frames this node sent to the cluster");
+	private static final Metrics.Counter FRAMES_RECEIVED = Metrics.counter("chat_cluster_frames_received_total",
+			"Frames this node received from the cluster");
+
+	final int node;
+	private final String nodeId;
+	private final ChatServer server;
+	private final ClusterBus bus;
+	private final UserDirectory directory = new UserDirectory();
+	// This node's presence frames and the snapshot a peer gets when it connects go out in one order.
+	private final ReentrantLock presenceLock = new ReentrantLock();
+
+	Cluster(ChatServer server, int node, ClusterBus bus) {
+		if(node < 0 || node >= MAX_NODES) throw new IllegalArgumentException("Node must be 0.." + (MAX_NODES - 1));
+		this.server = server;
+		this.node = node;
+		this.nodeId = Integer.toString(node);
+		this.bus = bus;
+	}
+
+	// -Dchat.cluster.node=<0-15> turns cluster mode on. Peers connect to -Dchat.cluster.host
+	// (default 127.0.0.1) port -Dchat.cluster.port (default 7000 + node); -Dchat.cluster.peers lists
+	// the other nodes' host:port. Null when not configured.
+	static Cluster fromProperties(ChatServer server) {
+		Integer node = Integer.getInteger("chat.cluster.node");
+		if(node == null) return null;
+		InetSocketAddress listen = new InetSocketAddress(System.getProperty("chat.cluster.host", "127.0.0.1"),
+				Integer.getInteger("chat.cluster.port", 7000 + node));
+		List<InetSocketAddress> peers = TcpBus.parseAddresses(System.getProperty("chat.cluster.peers"));
+		return new Cluster(server, node, new TcpBus(listen, peers));
+	}
+
+	void start() throws IOException {
+		bus.start(nodeId, this);
+	}
+
+	void stop() {
+		bus.stop();
+	}
+
+	// Null if the user is connected to this node or not online at all.
+	String locate(String username) {
+		return directory.locate(username);
+	}
+
+	List<String> remoteUsers() {
+		return directory.users();
+	}
+
+	int remoteUserCount() {
+		return directory.size();
+	}
+
+	void userOnline(String username, String status) {
+		presenceLock.lock();
+		try {
+			publish("U " + username + " " + status);
+		} finally {
+			presenceLock.unlock();
+		}
+	}
+
+	void userOffline(String username) {
+		presenceLock.lock();
+		try {
+			publish("D " + username);
+		} finally {
+			presenceLock.unlock();
+		}
+	}
+
+	void roomBroadcast(String room, String line) {
+		publish("R " + room + " " + line);
+	}
+
+	// False if the user is not online on another node.
+	boolean sendToUser(String username, String line) {
+		String at = directory.locate(username);
+		if(at == null) return false;
+		bus.send(at, frame("T " + username + " " + line));
+		FRAMES_SENT.inc();
+		return true;
+	}
+
+	@Override
+	public void friendsChanged(String username) {
+		publish("F " + username);
+	}
+
+	@Override
+	public void membershipChanged(int roomId, int userId, boolean member) {
+		publish("M " + roomId + " " + userId + (member ? " +" : " -"));
+	}
+
+	@Override
+	public void partitionsChanged() {
+		publish("P");
+	}
+
+	private void publish(String body) {
+		bus.publish(frame(body));
+		FRAMES_SENT.inc();
+	}
+
+	private static String frame(String body) {
+		return MessageDAO.lastIssuedId() + " " + body;
+	}
+
+	@Override
+	public void received(String from, String frame) {
+		FRAMES_RECEIVED.inc();
+		try {
+			int space = frame.indexOf(' ');
+			MessageDAO.observeId(Long.parseLong(frame.substring(0, space)));
+			char type = frame.charAt(space + 1);
+			String body = frame.length() > space + 3 ? frame.substring(space + 3) : "";
+			switch (type) {
+			case 'U': {
+				int split = body.indexOf(' ');
+				userArrived(from, body.substring(0, split), body.substring(split + 1));
+				break;
+			}
+			case 'D':
+				if(directory.remove(body, from)) server.remoteUserOffline(body);
+				break;
+			case 'R': {
+				int split = body.indexOf(' ');
+				server.deliverRoom(body.substring(0, split), body.substring(split + 1), null);
+				break;
+			}
+			case 'T': {
+				int split = body.indexOf(' ');
+				server.deliverToLocalUser(body.substring(0, split), body.substring(split + 1));
+				break;
+			}
+			case 'F':
+				FriendDAO.invalidateFriendCache(body);
+				break;
+			case 'M': {
+				String[] parts = body.split(" ");
+				RoomDAO.applyMembership(Integer.parseInt(parts[0]), Integer.parseInt(parts[1]), parts[2].equals("+"));
+				break;
+			}
+			case 'P':
+				MessagePartitions.refresh();
+				break;
+			default:
+				System.err.println("Cluster error: unknown frame from node " + from + ": " + frame);
+			}
+		} catch (RuntimeException e) {
+			System.err.println("Cluster error: bad frame from node " + from + ": " + frame);
+		}
+	}
+
+	private void userArrived(String from, String username, String status) {
+		if(server.getOnlineUser(username) != null) {
+			// Logged in here and on the other node at the same moment: the lower node number keeps the user.
+			if(node < Integer.parseInt(from)) return;
+			directory.put(username, from);
+			server.remoteUserOnline(username, status, true);
+			server.loggedInElsewhere(username);
+			return;
+		}
+		boolean arrived = directory.put(username, from);
+		server.remoteUserOnline(username, status, arrived);
+	}
+
+	@Override
+	public void peerUp(String peer) {
+		presenceLock.lock();
+		try {
+			for(String username : server.localUsers()) {
+				bus.send(peer, frame("U " + username + " " + server.statusOf(username)));
+				FRAMES_SENT.inc();
+			}
+		} finally {
+			presenceLock.unlock();
+		}
+	}
+
+	@Override
+	public void peerDown(String peer) {
+		for(String username : directory.removeNode(peer)) server.remoteUserOffline(username);
+	}
+}
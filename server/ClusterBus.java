@@ -0,0 +1,28 @@
+package server;
+
+import java.io.IOException;
+
+// Carries cluster frames between nodes. A frame is text and may contain newlines (a binary client's
+// message body); the bus delivers it whole. Frames from one node arrive at another in the order they
+// were sent; a frame sent while the link is down is lost, and the receiver hears peerDown/peerUp so
+// it can rebuild what it knows about that node.
+public interface ClusterBus {
+
+	interface Receiver {
+		void received(String fromNode, String frame);
+
+		// A link to the node is ready; anything the node needs to know about this one goes first.
+		void peerUp(String node);
+
+		// The node is gone (or restarted); drop whatever was learned from it.
+		void peerDown(String node);
+	}
+
+	void start(String node, Receiver receiver) throws IOException;
+
+	void publish(String frame);
+
+	void send(String node, String frame);
+
+	void stop();
+}
@@ -0,0 +1,117 @@
+package server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+// Cluster framing check: sends frames whose message bodies carry newlines, backslashes and text that
+// looks like further frames over a LoopbackBus pair and a TcpBus pair, and fails unless each arrives
+// as exactly one frame, unchanged. `gradle check` (and so `gradle build`) runs it.
+final class ClusterFrameCheck {
+
+	private static final long WAIT_MS = 5000;
+
+	private static final List<String> FRAMES = List.of(
+			"7 R lobby ROOMFROM lobby mallory hi\n0 M 1 2 +",
+			"7 T bob DMFROM mallory x\r\n0 T bob DMFROM admin reset your password\n0 D alice",
+			"7 R lobby ROOMFROM lobby alice C:\\temp\\new \\n is not a newline",
+			"7 T bob DMFROM alice ends with a newline\n",
+			"7 T bob DMFROM alice ends with a backslash\\",
+			"7 D alice");
+
+	private ClusterFrameCheck() {
+	}
+
+	// Collects frames from one peer; counts down once that peer is up.
+	private static final class Recorder implements ClusterBus.Receiver {
+		final BlockingQueue<String> frames = new LinkedBlockingQueue<>();
+		final CountDownLatch up = new CountDownLatch(1);
+
+		@Override
+		public void received(String fromNode, String frame) {
+			frames.add(frame);
+		}
+
+		@Override
+		public void peerUp(String node) {
+			up.countDown();
+		}
+
+		@Override
+		public void peerDown(String node) {
+		}
+	}
+
+	// Empty when every frame arrived whole on both buses.
+	static List<String> problems() throws IOException, InterruptedException {
+		List<String> problems = new ArrayList<>();
+		check("LoopbackBus", new LoopbackBus(), new LoopbackBus(), problems);
+		int portA = freePort();
+		int portB = freePort();
+		InetSocketAddress a = new InetSocketAddress("127.0.0.1", portA);
+		InetSocketAddress b = new InetSocketAddress("127.0.0.1", portB);
+		check("TcpBus", new TcpBus(a, Collections.singletonList(b)), new TcpBus(b, Collections.singletonList(a)), problems);
+		return problems;
+	}
+
+	private static void check(String name, ClusterBus sender, ClusterBus receiver, List<String> problems)
+			throws IOException, InterruptedException {
+		Recorder senderSide = new Recorder();
+		Recorder receiverSide = new Recorder();
+		sender.start("check-" + name + "-a", senderSide);
+		receiver.start("check-" + name + "-b", receiverSide);
+		try {
+			if(!senderSide.up.await(WAIT_MS, TimeUnit.MILLISECONDS)) {
+				problems.add(name + ": peer never came up");
+				return;
+			}
+			// publish and send must both keep the frame whole.
+			for(int i = 0; i < FRAMES.size(); i++) {
+				if(i % 2 == 0) sender.publish(FRAMES.get(i));
+				else sender.send("check-" + name + "-b", FRAMES.get(i));
+			}
+			for(String expected : FRAMES) {
+				String frame = receiverSide.frames.poll(WAIT_MS, TimeUnit.MILLISECONDS);
+				if(frame == null) {
+					problems.add(name + ": frame never arrived: " + printable(expected));
+					return;
+				}
+				if(!frame.equals(expected)) {
+					problems.add(name + ": sent " + printable(expected) + ", received " + printable(frame));
+				}
+			}
+			String extra = receiverSide.frames.poll(200, TimeUnit.MILLISECONDS);
+			if(extra != null) problems.add(name + ": unexpected extra frame " + printable(extra));
+		} finally {
+			sender.stop();
+			receiver.stop();
+		}
+	}
+
+	private static int freePort() throws IOException {
+		try (ServerSocket socket = new ServerSocket(0)) {
+			return socket.getLocalPort();
+		}
+	}
+
+	private static String printable(String frame) {
+		return "\"" + frame.replace("\\", "\\\\").replace("\n", "\\n").replace("\r", "\\r") + "\"";
+	}
+
+	public static void main(String[] args) throws Exception {
+		List<String> problems = problems();
+		if(problems.isEmpty()) {
+			System.out.println("Cluster frames OK (bodies with newlines arrive whole on LoopbackBus and TcpBus)");
+			System.exit(0);
+		}
+		for(String problem : problems) System.err.println("Cluster frame check: " + problem);
+		System.exit(1);
+	}
+}
@@ -0,0 +1,25 @@
+package server;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+// Flight Recorder event for a logged-in command that took longer than the threshold (20 ms unless
+// the recording's settings say otherwise). Emitted by CommandRegistry.dispatch.
+@Name("chat.Command")
+@Label("Chat Command")
+@Category("Chat")
+@Description("A command that ran longer than the threshold")
+@Threshold("20 ms")
+@StackTrace(false)
+final class CommandEvent extends jdk.jfr.Event {
+
+	@Label("Command")
+	String command;
+
+	@Label("User")
+	String user;
+}
@@ -0,0 +1,62 @@
+package server;
+
+// A command line split like line.trim().split("\\s+", 3) -- verb, first argument, rest -- but by
+// recording offsets, so only the parts a command actually reads become Strings. One instance per
+// connection is reused for every line.
+public final class CommandLine {
+
+	private static final int MAX_PARTS = 3;
+
+	private String text;
+	private final int[] starts = new int[MAX_PARTS];
+	private final int[] ends = new int[MAX_PARTS];
+	private int count;
+
+	// Returns false for a blank line.
+	boolean parse(String line) {
+		int end = line.length();
+		while(end > 0 && isSpace(line.charAt(end - 1))) end--;
+		int pos = 0;
+		while(pos < end && isSpace(line.charAt(pos))) pos++;
+		text = line;
+		count = 0;
+		while(pos < end && count < MAX_PARTS) {
+			starts[count] = pos;
+			if(count == MAX_PARTS - 1) {
+				pos = end;
+			} else {
+				while(pos < end && !isSpace(line.charAt(pos))) pos++;
+			}
+			ends[count++] = pos;
+			while(pos < end && isSpace(line.charAt(pos))) pos++;
+		}
+		return count > 0;
+	}
+
+	String text() {
+		return text;
+	}
+
+	int verbEnd() {
+		return ends[0];
+	}
+
+	// Number of parts including the verb, like the length of the split array.
+	public int count() {
+		return count;
+	}
+
+	public String part(int index) {
+		return text.substring(starts[index], ends[index]);
+	}
+
+	// The trimmed line, verb included.
+	public String raw() {
+		return text.substring(starts[0], ends[count - 1]);
+	}
+
+	// Same characters as the \s class in java.util.regex.
+	private static boolean isSpace(char c) {
+		return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+	}
+}
@@ -0,0 +1,143 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Verb -> handler table for logged-in commands. Lookup hashes the verb straight out of the line
+// (ASCII, case-insensitive), so dispatch costs one probe and no allocation. Every command keeps its
+// own latency histogram, exported as chat_command_duration_seconds{command="VERB"}.
+public final class CommandRegistry {
+
+	public interface Command {
+		void run(ClientHandler client, CommandLine line);
+	}
+
+	public static final class Entry {
+		public final String verb;
+		public final int opcode;
+		final Command command;
+		private final Metrics.Histogram latency;
+		private final LongAccumulator maxNanos = new LongAccumulator(Long::max, 0);
+
+		Entry(String verb, int opcode, Command command) {
+			this.verb = verb;
+			this.opcode = opcode;
+			this.command = command;
+			this.latency = Metrics.timer("chat_command_duration_seconds", "Time to run a logged-in command", "command", verb);
+		}
+
+		void record(long nanos) {
+			latency.observe(nanos);
+			maxNanos.accumulate(nanos);
+		}
+
+		public long count() {
+			return latency.count();
+		}
+
+		public double averageMicros() {
+			long n = latency.count();
+			return n == 0 ? 0.0 : latency.sum() / 1000.0 / n;
+		}
+
+		public double maxMicros() {
+			return maxNanos.get() / 1000.0;
+		}
+	}
+
+	private final List<Entry> entries = new CopyOnWriteArrayList<>();
+	// Replaced, never modified, once published, so dispatch reads it without locking.
+	private volatile Entry[] table = new Entry[64];
+	private final ReentrantLock registerLock = new ReentrantLock();
+	private final Metrics.Counter unknown = Metrics.counter("chat_unknown_commands_total",
+			"Lines that named no registered command (sent to the lobby instead)");
+
+	public CommandRegistry register(String verb, Command command) {
+		String upper = verb.toUpperCase();
+		registerLock.lock();
+		try {
+			if(find(upper, 0, upper.length()) != null) throw new IllegalArgumentException("Duplicate command " + verb);
+			Entry entry = new Entry(upper, entries.size(), command);
+			entries.add(entry);
+			int size = table.length;
+			while(entries.size() * 2 > size) size *= 2;
+			Entry[] copy = new Entry[size];
+			for(Entry e : entries) insert(copy, e);
+			table = copy;
+		} finally {
+			registerLock.unlock();
+		}
+		return this;
+	}
+
+	// Runs the command named by line[0, verbEnd); false if no such command is registered.
+	boolean dispatch(ClientHandler client, CommandLine line) {
+		Entry entry = find(line.text(), 0, line.verbEnd());
+		if(entry == null) {
+			unknown.inc();
+			return false;
+		}
+		CommandEvent event = new CommandEvent();
+		event.begin();
+		long start = System.nanoTime();
+		try {
+			entry.command.run(client, line);
+		} finally {
+			entry.record(System.nanoTime() - start);
+			event.end();
+			if(event.shouldCommit()) {
+				event.command = entry.verb;
+				event.user = client.getUsername();
+				event.commit();
+			}
+		}
+		return true;
+	}
+
+	public List<Entry> entries() {
+		return new ArrayList<>(entries);
+	}
+
+	public String stats() {
+		StringBuilder sb = new StringBuilder();
+		for(Entry e : entries) {
+			if(e.count() == 0) continue;
+			sb.append(String.format("%s count=%d avg=%.1fus max=%.1fus%n", e.verb, e.count(), e.averageMicros(), e.maxMicros()));
+		}
+		sb.append("unknown=").append(unknown.get());
+		return sb.toString();
+	}
+
+	private Entry find(String text, int start, int end) {
+		Entry[] t = table;
+		int mask = t.length - 1;
+		int slot = hash(text, start, end) & mask;
+		int length = end - start;
+		while(true) {
+			Entry e = t[slot];
+			if(e == null) return null;
+			if(e.verb.length() == length && e.verb.regionMatches(true, 0, text, start, length)) return e;
+			slot = (slot + 1) & mask;
+		}
+	}
+
+	private static void insert(Entry[] t, Entry entry) {
+		int mask = t.length - 1;
+		int slot = hash(entry.verb, 0, entry.verb.length()) & mask;
+		while(t[slot] != null) slot = (slot + 1) & mask;
+		t[slot] = entry;
+	}
+
+	private static int hash(String text, int start, int end) {
+		int h = 0;
+		for(int i = start; i < end; i++) {
+			char c = text.charAt(i);
+			if(c >= 'a' && c <= 'z') c -= 32;
+			h = 31 * h + c;
+		}
+		return h ^ (h >>> 16);
+	}
+}
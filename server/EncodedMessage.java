@@ -0,0 +1,62 @@
+package server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import protocol.WireFormat;
+
+// A protocol line encoded once (UTF-8 plus the trailing newline) and shared read-only by every
+// recipient, so a broadcast to N clients costs one encoding instead of N. The binary frame for
+// clients that negotiated it is built on first use and shared the same way.
+final class EncodedMessage {
+
+	final String text;
+	final String coalesceKey;
+	private final byte[] bytes;
+	private final ByteBuffer shared;
+	private final boolean binary;
+	private volatile EncodedMessage binaryForm;
+
+	private EncodedMessage(String text, byte[] bytes, boolean binary) {
+		this.text = text;
+		String key = OutboundQueue.coalesceKey(text);
+		// Separate keys so a frame never replaces a text line still queued ahead of the switch.
+		this.coalesceKey = key != null && binary ? "B:" + key : key;
+		this.bytes = bytes;
+		this.shared = ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+		this.binary = binary;
+	}
+
+	static EncodedMessage of(String text) {
+		// Bodies from binary clients may span lines; text clients must not see them as extra lines.
+		String line = text.indexOf('\n') >= 0 || text.indexOf('\r') >= 0
+				? text.replace("\r\n", " ").replace('\n', ' ').replace('\r', ' ') : text;
+		return new EncodedMessage(text, (line + "\n").getBytes(StandardCharsets.UTF_8), false);
+	}
+
+	// Same message as a binary frame; racing callers may each build one, which is harmless.
+	EncodedMessage binary() {
+		if(binary) return this;
+		EncodedMessage form = binaryForm;
+		if(form == null) {
+			form = new EncodedMessage(text, WireFormat.encode(text), true);
+			binaryForm = form;
+		}
+		return form;
+	}
+
+	// Independent position/limit over the same bytes; no payload copy.
+	ByteBuffer view() {
+		return shared.duplicate();
+	}
+
+	void writeTo(OutputStream out) throws IOException {
+		out.write(bytes, 0, bytes.length);
+	}
+
+	int length() {
+		return bytes.length;
+	}
+}
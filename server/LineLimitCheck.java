@@ -0,0 +1,176 @@
+package server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import protocol.FrameReader;
+import protocol.WireFormat;
+
+// Line limit check: starts a server on a fresh database and sends room messages and DMs exactly at
+// the server's input limit (WireFormat.MAX_FRAME), which must be refused with ERR, and the largest
+// bodies the server accepts, which must reach the other user, in text and binary mode and in
+// HISTORY, through a reader limited to MAX_FRAME like clients built before MAX_SERVER_FRAME.
+// `gradle check` (and so `gradle build`) runs it against -Dchat.db.path.
+final class LineLimitCheck {
+
+	private static final int TIMEOUT_MS = 5000;
+	private static final String PASSWORD = "Passw0rd!23";
+
+	private LineLimitCheck() {
+	}
+
+	// One logged-in test client.
+	private static final class Client implements AutoCloseable {
+		final Socket socket;
+		final OutputStream out;
+		final FrameReader reader;
+		final String username;
+		boolean binary;
+
+		Client(int port, String username) throws IOException {
+			this.username = username;
+			socket = new Socket("127.0.0.1", port);
+			socket.setSoTimeout(TIMEOUT_MS);
+			out = socket.getOutputStream();
+			reader = new FrameReader(socket.getInputStream());
+			send("REGISTER " + username + " " + PASSWORD);
+			if(await("SYS Welcome") == null) throw new IOException(username + " could not register");
+			if(await("JOINED lobby") == null) throw new IOException(username + " did not join the lobby");
+		}
+
+		void send(String line) throws IOException {
+			out.write(binary ? WireFormat.encode(line) : (line + "\n").getBytes(StandardCharsets.UTF_8));
+			out.flush();
+		}
+
+		void goBinary() throws IOException {
+			send(WireFormat.NEGOTIATE);
+			if(await(WireFormat.ACK) == null) throw new IOException(username + " could not switch to binary");
+			binary = true;
+		}
+
+		// First line starting with prefix, skipping the rest; null on timeout or a closed connection.
+		String await(String prefix) throws IOException {
+			try {
+				String line;
+				while((line = binary ? reader.readFrame() : reader.readLine()) != null) {
+					if(line.startsWith(prefix)) return line;
+				}
+				return null;
+			} catch (SocketTimeoutException e) {
+				return null;
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			socket.close();
+		}
+	}
+
+	// Empty when every limit held.
+	static List<String> problems(int port) throws IOException {
+		List<String> problems = new ArrayList<>();
+		try (Client alice = new Client(port, "alice"); Client bob = new Client(port, "bob")) {
+			String atLimit = "ROOMMSG lobby ";
+			atLimit += "x".repeat(WireFormat.MAX_FRAME - atLimit.length());
+			expectRefused(alice, atLimit, "room message at the input limit", problems);
+			String dmAtLimit = "DM bob ";
+			dmAtLimit += "y".repeat(WireFormat.MAX_FRAME - dmAtLimit.length());
+			expectRefused(alice, dmAtLimit, "DM at the input limit", problems);
+
+			String roomBody = largestBody("lobby", alice.username, 'r');
+			alice.send("ROOMMSG lobby " + roomBody);
+			expectLine(bob, "ROOMFROM lobby alice ", "ROOMFROM lobby alice " + roomBody, problems);
+
+			bob.goBinary();
+			String dmBody = largestBody(bob.username, alice.username, 'é');
+			alice.send("DM bob " + dmBody);
+			expectLine(bob, "DMFROM ", "DMFROM alice " + dmBody, problems);
+
+			bob.send("HISTORY ROOM lobby");
+			String history = bob.await("HISTORYLINE ROOM lobby ");
+			if(history == null || !history.endsWith(" alice " + roomBody)) {
+				problems.add("HISTORYLINE for the largest room message did not arrive whole");
+			}
+			if(WireFormat.utf8Length(history == null ? "" : history) > WireFormat.MAX_FRAME) {
+				problems.add("HISTORYLINE is longer than MAX_FRAME");
+			}
+		}
+		return problems;
+	}
+
+	// The longest body fitsOutbound lets through; its UTF-8 length is exact for the one- and two-byte
+	// characters used here.
+	private static String largestBody(String target, String from, char c) {
+		int bytes = WireFormat.MAX_FRAME - ClientHandler.OUTBOUND_OVERHEAD - target.length() - from.length();
+		int width = c < 0x80 ? 1 : 2;
+		return String.valueOf(c).repeat(bytes / width);
+	}
+
+	private static void expectRefused(Client sender, String line, String what, List<String> problems) throws IOException {
+		sender.send(line);
+		String reply = sender.await("ERR ");
+		if(reply == null) {
+			problems.add(what + ": no ERR, or the connection was closed");
+		} else if(!reply.equals("ERR Message too long")) {
+			problems.add(what + ": unexpected reply " + reply);
+		}
+	}
+
+	private static void expectLine(Client receiver, String prefix, String expected, List<String> problems) throws IOException {
+		String line;
+		try {
+			line = receiver.await(prefix);
+		} catch (IOException e) {
+			problems.add("reading " + prefix.trim() + " failed: " + e.getMessage());
+			return;
+		}
+		if(line == null) {
+			problems.add(prefix.trim() + " never arrived");
+		} else if(!line.equals(expected)) {
+			problems.add(prefix.trim() + " arrived changed (" + line.length() + " chars, expected " + expected.length() + ")");
+		}
+	}
+
+	private static int freePort() throws IOException {
+		try (ServerSocket socket = new ServerSocket(0)) {
+			return socket.getLocalPort();
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		ChatServer.initDatabase();
+		ChatServer server = new ChatServer();
+		int port = freePort();
+		Thread acceptor = new Thread(() -> server.start(port), "LineLimitCheckServer");
+		acceptor.setDaemon(true);
+		acceptor.start();
+		List<String> problems = new ArrayList<>();
+		for(int attempt = 0; ; attempt++) {
+			try {
+				problems = problems(port);
+				break;
+			} catch (ConnectException e) {
+				if(attempt == 50) {
+					problems.add("server did not start: " + e.getMessage());
+					break;
+				}
+				Thread.sleep(100);
+			}
+		}
+		if(problems.isEmpty()) {
+			System.out.println("Line limits OK (messages at MAX_FRAME refused, the largest accepted ones delivered)");
+			System.exit(0);
+		}
+		for(String problem : problems) System.err.println("Line limit check: " + problem);
+		System.exit(1);
+	}
+}
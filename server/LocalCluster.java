@@ -0,0 +1,28 @@
+package server;
+
+import database.MessagePartitions;
+
+import java.io.IOException;
+
+// Runs several cluster nodes in one JVM, joined by a LoopbackBus, to try cluster routing on one
+// machine: "java server.LocalCluster 3" serves nodes 0, 1 and 2 on client ports 5000, 5001 and 5002
+// (-Dchat.port moves the first). The nodes share this process's DAOs and caches, so only the
+// routing between them is exercised; separate processes use ChatServer with -Dchat.cluster.node.
+public final class LocalCluster {
+
+	private LocalCluster() {
+	}
+
+	public static void main(String[] args) throws IOException {
+		int nodes = args.length > 0 ? Integer.parseInt(args[0]) : 2;
+		int basePort = Integer.getInteger("chat.port", 5000);
+		ChatServer.initDatabase();
+		MessagePartitions.startRetention();
+		for(int node = 0; node < nodes; node++) {
+			ChatServer server = new ChatServer();
+			server.joinCluster(new Cluster(server, node, new LoopbackBus()));
+			int port = basePort + node;
+			new Thread(() -> server.start(port), "ChatServer-" + node).start();
+		}
+	}
+}
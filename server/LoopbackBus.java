@@ -0,0 +1,86 @@
+package server;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+
+// In-process bus for running several nodes in one JVM (LocalCluster). Each node has an inbox drained
+// by its own daemon thread, so frames are delivered asynchronously and in order, as over a socket.
+final class LoopbackBus implements ClusterBus {
+
+	private static final ConcurrentHashMap<String, LoopbackBus> NODES = new ConcurrentHashMap<>();
+
+	private static final class Delivery {
+		final String from;
+		final String frame;
+		// null frame: from came up (up) or went away (!up).
+		final boolean up;
+
+		Delivery(String from, String frame, boolean up) {
+			this.from = from;
+			this.frame = frame;
+			this.up = up;
+		}
+	}
+
+	private final BlockingQueue<Delivery> inbox = new LinkedBlockingQueue<>();
+	private volatile String node;
+	private volatile Receiver receiver;
+	private Thread thread;
+
+	@Override
+	public void start(String node, Receiver receiver) {
+		this.node = node;
+		this.receiver = receiver;
+		if(NODES.putIfAbsent(node, this) != null) throw new IllegalStateException("Node " + node + " already started");
+		thread = new Thread(this::deliverLoop, "LoopbackBus-" + node);
+		thread.setDaemon(true);
+		thread.start();
+		for(LoopbackBus other : NODES.values()) {
+			if(other == this) continue;
+			other.inbox.add(new Delivery(node, null, true));
+			inbox.add(new Delivery(other.node, null, true));
+		}
+	}
+
+	@Override
+	public void publish(String frame) {
+		for(LoopbackBus other : NODES.values()) {
+			if(other != this) other.inbox.add(new Delivery(node, frame, false));
+		}
+	}
+
+	@Override
+	public void send(String to, String frame) {
+		LoopbackBus other = NODES.get(to);
+		if(other != null) other.inbox.add(new Delivery(node, frame, false));
+	}
+
+	@Override
+	public void stop() {
+		if(!NODES.remove(node, this)) return;
+		for(LoopbackBus other : NODES.values()) other.inbox.add(new Delivery(node, null, false));
+		thread.interrupt();
+	}
+
+	private void deliverLoop() {
+		try {
+			while(true) {
+				Delivery delivery = inbox.take();
+				try {
+					if(delivery.frame != null) {
+						receiver.received(delivery.from, delivery.frame);
+					} else if(delivery.up) {
+						receiver.peerUp(delivery.from);
+					} else {
+						receiver.peerDown(delivery.from);
+					}
+				} catch (RuntimeException e) {
+					System.err.println("LoopbackBus error: " + e.getMessage());
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
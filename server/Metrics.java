@@ -0,0 +1,228 @@
+package server;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.DoubleSupplier;
+import java.util.function.Supplier;
+
+// Process-wide metrics, written out in the Prometheus text format by MetricsEndpoint. Counters and
+// histograms are LongAdder-backed and allocate nothing when recorded, so they go straight into hot
+// paths; create them once (usually as static finals) and keep the reference. Gauges, and counters
+// that mirror an existing statistic, are callbacks read only when scraped.
+public final class Metrics {
+
+	// Seconds; latency histograms record nanoseconds against these.
+	public static final double[] LATENCY_BUCKETS = {
+			0.0001, 0.00025, 0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10
+	};
+	public static final double[] SIZE_BUCKETS = { 0, 1, 2, 5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000 };
+
+	public static final class Counter {
+		private final LongAdder value = new LongAdder();
+
+		public void inc() {
+			value.increment();
+		}
+
+		public void add(long amount) {
+			value.add(amount);
+		}
+
+		public long get() {
+			return value.sum();
+		}
+	}
+
+	public static final class Histogram {
+		// Upper bounds in recorded units; the last bucket is +Inf.
+		private final long[] bounds;
+		private final String[] le;
+		private final double unit;
+		private final LongAdder[] buckets;
+		private final LongAdder sum = new LongAdder();
+
+		Histogram(double[] exportedBounds, double unit) {
+			this.unit = unit;
+			bounds = new long[exportedBounds.length];
+			le = new String[exportedBounds.length + 1];
+			for(int i = 0; i < exportedBounds.length; i++) {
+				bounds[i] = Math.round(exportedBounds[i] * unit);
+				le[i] = BigDecimal.valueOf(exportedBounds[i]).stripTrailingZeros().toPlainString();
+			}
+			le[exportedBounds.length] = "+Inf";
+			buckets = new LongAdder[exportedBounds.length + 1];
+			for(int i = 0; i < buckets.length; i++) buckets[i] = new LongAdder();
+		}
+
+		// A value in recorded units: nanoseconds for latency histograms, the plain value otherwise.
+		public void observe(long value) {
+			int i = 0;
+			while(i < bounds.length && value > bounds[i]) i++;
+			buckets[i].increment();
+			sum.add(value);
+		}
+
+		public long count() {
+			long count = 0;
+			for(LongAdder bucket : buckets) count += bucket.sum();
+			return count;
+		}
+
+		// Sum of the recorded values, in recorded units.
+		public long sum() {
+			return sum.sum();
+		}
+	}
+
+	private enum Type { COUNTER, GAUGE, HISTOGRAM }
+
+	private static final class Family {
+		final String name;
+		final String help;
+		final Type type;
+		// Label string (name="value",...) -> Counter, Histogram or DoubleSupplier.
+		final Map<String, Object> series = new LinkedHashMap<>();
+
+		Family(String name, String help, Type type) {
+			this.name = name;
+			this.help = help;
+			this.type = type;
+		}
+	}
+
+	private static final Map<String, Family> families = new LinkedHashMap<>();
+	private static final ReentrantLock lock = new ReentrantLock();
+
+	private Metrics() {
+	}
+
+	// labels are name/value pairs. Asking again for the same name and labels returns the same series.
+	public static Counter counter(String name, String help, String... labels) {
+		return (Counter) series(name, help, Type.COUNTER, labels, Counter::new, false);
+	}
+
+	public static Histogram timer(String name, String help, String... labels) {
+		return (Histogram) series(name, help, Type.HISTOGRAM, labels, () -> new Histogram(LATENCY_BUCKETS, 1e9), false);
+	}
+
+	public static Histogram histogram(String name, String help, double[] buckets, String... labels) {
+		return (Histogram) series(name, help, Type.HISTOGRAM, labels, () -> new Histogram(buckets, 1), false);
+	}
+
+	// A counter kept elsewhere (a DAO's LongAdder, say), read at scrape time. Registering again replaces it.
+	public static void counterFrom(String name, String help, DoubleSupplier value, String... labels) {
+		series(name, help, Type.COUNTER, labels, () -> value, true);
+	}
+
+	public static void gauge(String name, String help, DoubleSupplier value, String... labels) {
+		series(name, help, Type.GAUGE, labels, () -> value, true);
+	}
+
+	private static Object series(String name, String help, Type type, String[] labels,
+			Supplier<Object> create, boolean replace) {
+		String key = labelString(labels);
+		lock.lock();
+		try {
+			Family family = families.get(name);
+			if(family == null) {
+				family = new Family(name, help, type);
+				families.put(name, family);
+			} else if(family.type != type) {
+				throw new IllegalArgumentException("Metric " + name + " is already a " + family.type);
+			}
+			Object existing = family.series.get(key);
+			if(existing != null && !replace) return existing;
+			Object created = create.get();
+			family.series.put(key, created);
+			return created;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// Every metric in the Prometheus text exposition format (version 0.0.4).
+	public static String scrape() {
+		List<Family> snapshot;
+		List<List<Map.Entry<String, Object>>> seriesSnapshot = new ArrayList<>();
+		lock.lock();
+		try {
+			snapshot = new ArrayList<>(families.values());
+			for(Family family : snapshot) seriesSnapshot.add(new ArrayList<>(family.series.entrySet()));
+		} finally {
+			lock.unlock();
+		}
+		StringBuilder out = new StringBuilder(16 * 1024);
+		for(int f = 0; f < snapshot.size(); f++) {
+			Family family = snapshot.get(f);
+			out.append("# HELP ").append(family.name).append(' ').append(family.help.replace("\\", "\\\\").replace("\n", "\\n")).append('\n');
+			out.append("# TYPE ").append(family.name).append(' ').append(family.type.name().toLowerCase()).append('\n');
+			for(Map.Entry<String, Object> entry : seriesSnapshot.get(f)) {
+				String labels = entry.getKey();
+				Object value = entry.getValue();
+				if(value instanceof Histogram) {
+					writeHistogram(out, family.name, labels, (Histogram) value);
+				} else {
+					out.append(family.name);
+					if(!labels.isEmpty()) out.append('{').append(labels).append('}');
+					out.append(' ');
+					try {
+						if(value instanceof Counter) {
+							out.append(((Counter) value).get());
+						} else {
+							appendDouble(out, ((DoubleSupplier) value).getAsDouble());
+						}
+					} catch (RuntimeException e) {
+						out.append("NaN");
+						System.err.println("metrics error: " + family.name + ": " + e.getMessage());
+					}
+					out.append('\n');
+				}
+			}
+		}
+		return out.toString();
+	}
+
+	private static void writeHistogram(StringBuilder out, String name, String labels, Histogram histogram) {
+		String prefix = labels.isEmpty() ? "{" : "{" + labels + ",";
+		long cumulative = 0;
+		for(int i = 0; i < histogram.buckets.length; i++) {
+			cumulative += histogram.buckets[i].sum();
+			out.append(name).append("_bucket").append(prefix).append("le=\"").append(histogram.le[i]).append("\"} ")
+					.append(cumulative).append('\n');
+		}
+		String suffix = labels.isEmpty() ? "" : "{" + labels + "}";
+		out.append(name).append("_sum").append(suffix).append(' ');
+		appendDouble(out, histogram.sum() / histogram.unit);
+		out.append('\n');
+		out.append(name).append("_count").append(suffix).append(' ').append(cumulative).append('\n');
+	}
+
+	private static void appendDouble(StringBuilder out, double value) {
+		if(Double.isNaN(value)) {
+			out.append("NaN");
+		} else if(Double.isInfinite(value)) {
+			out.append(value > 0 ? "+Inf" : "-Inf");
+		} else if(value == Math.rint(value) && Math.abs(value) < 1e15) {
+			out.append((long) value);
+		} else {
+			out.append(value);
+		}
+	}
+
+	private static String labelString(String[] labels) {
+		if(labels.length % 2 != 0) throw new IllegalArgumentException("Labels must be name/value pairs");
+		StringBuilder sb = new StringBuilder();
+		for(int i = 0; i < labels.length; i += 2) {
+			if(i > 0) sb.append(',');
+			sb.append(labels[i]).append("=\"")
+					.append(labels[i + 1].replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n"))
+					.append('"');
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,76 @@
+package server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+// Serves Metrics.scrape() at /metrics on the JDK's built-in HttpServer, one daemon thread.
+// -Dchat.metrics.host (default 127.0.0.1, local only) and -Dchat.metrics.port (default 9400; 0
+// disables it) pick the address.
+public final class MetricsEndpoint {
+
+	private static final String HOST = System.getProperty("chat.metrics.host", "127.0.0.1");
+	private static final int PORT = Integer.getInteger("chat.metrics.port", 9400);
+	private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+	private static HttpServer server;
+	private static ExecutorService executor;
+
+	private MetricsEndpoint() {
+	}
+
+	public static void start() {
+		if(PORT <= 0 || server != null) return;
+		try {
+			server = HttpServer.create(new InetSocketAddress(HOST, PORT), 0);
+			executor = Executors.newSingleThreadExecutor(r -> {
+				Thread t = new Thread(r, "MetricsEndpoint");
+				t.setDaemon(true);
+				return t;
+			});
+			server.createContext("/metrics", MetricsEndpoint::handle);
+			server.setExecutor(executor);
+			server.start();
+			System.out.println("Metrics at http://" + HOST + ":" + PORT + "/metrics");
+		} catch (IOException e) {
+			System.err.println("metrics endpoint error: " + e.getMessage());
+			server = null;
+		}
+	}
+
+	public static void stop() {
+		if(server == null) return;
+		server.stop(0);
+		executor.shutdown();
+		server = null;
+	}
+
+	private static void handle(HttpExchange exchange) throws IOException {
+		try {
+			String method = exchange.getRequestMethod();
+			if(!method.equals("GET") && !method.equals("HEAD")) {
+				exchange.getResponseHeaders().set("Allow", "GET, HEAD");
+				exchange.sendResponseHeaders(405, -1);
+				return;
+			}
+			byte[] body = Metrics.scrape().getBytes(StandardCharsets.UTF_8);
+			exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+			if(method.equals("HEAD")) {
+				exchange.sendResponseHeaders(200, -1);
+				return;
+			}
+			exchange.sendResponseHeaders(200, body.length);
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(body);
+			}
+		} finally {
+			exchange.close();
+		}
+	}
+}
@@ -0,0 +1,289 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import protocol.WireFormat;
+
+// One client socket in NIO mode. Reads and writes happen on the owning reactor thread;
+// decoded lines are handed to the worker pool one at a time so commands stay in order.
+final class NioConnection {
+
+	private static final int MAX_LINE = 64 * 1024;
+
+	private final SocketChannel channel;
+	private final NioServer.Reactor reactor;
+	private final Executor workers;
+	private SelectionKey key;
+	private ClientHandler handler;
+
+	private final ByteBuffer readBuffer = ByteBuffer.allocate(4096);
+	private byte[] lineBuffer = new byte[256];
+	private int lineLength;
+	// Reactor-thread parse state; frames reuse lineBuffer for their bodies.
+	private boolean binaryInput;
+	private int frameLength = -1;
+	private int frameLengthBits;
+	private int frameLengthShift;
+
+	private final Queue<String> inbound = new ConcurrentLinkedQueue<>();
+	private final AtomicBoolean processing = new AtomicBoolean(false);
+	private final OutboundQueue outbound = new OutboundQueue();
+	// Views over shared encoded messages, written with one gathering write per readiness event.
+	private final ByteBuffer[] gather = new ByteBuffer[16];
+	private int gatherCount;
+	private final AtomicBoolean writeRequested = new AtomicBoolean(false);
+	private final AtomicBoolean closed = new AtomicBoolean(false);
+	private volatile boolean closing;
+	private boolean greeted;
+	private final AtomicBoolean disconnectFired = new AtomicBoolean(false);
+
+	NioConnection(SocketChannel channel, NioServer.Reactor reactor, Executor workers) {
+		this.channel = channel;
+		this.reactor = reactor;
+		this.workers = workers;
+	}
+
+	void attach(SelectionKey key, ClientHandler handler) {
+		this.key = key;
+		this.handler = handler;
+		scheduleProcessing();
+	}
+
+	// For log lines; the handler is attached right after registration.
+	String username() {
+		return handler == null ? "anonymous" : handler.getUsername();
+	}
+
+	void onReadable() {
+		try {
+			readBuffer.clear();
+			int n = channel.read(readBuffer);
+			if(n < 0) {
+				close();
+				return;
+			}
+			readBuffer.flip();
+			if(!binaryInput && !readLines()) return;
+			if(binaryInput && !readFrames()) return;
+			scheduleProcessing();
+		} catch (IOException e) {
+			ClientHandler.CONNECTION_ERRORS.inc();
+			System.err.println("Connection error with " + handler.getUsername() + ": " + e.getMessage());
+			close();
+		}
+	}
+
+	// Text mode. Stops early at "PROTO BINARY" so the rest of the buffer is parsed as frames.
+	private boolean readLines() {
+		while(readBuffer.hasRemaining()) {
+			byte b = readBuffer.get();
+			if(b == '\n') {
+				int len = lineLength;
+				if(len > 0 && lineBuffer[len - 1] == '\r') len--;
+				String line = new String(lineBuffer, 0, len, StandardCharsets.UTF_8);
+				inbound.add(line);
+				lineLength = 0;
+				if(line.equals(WireFormat.NEGOTIATE)) {
+					binaryInput = true;
+					return true;
+				}
+			} else {
+				if(lineLength == MAX_LINE) {
+					System.err.println("Line too long from " + handler.getUsername() + ", closing.");
+					close();
+					return false;
+				}
+				if(lineLength == lineBuffer.length) {
+					lineBuffer = Arrays.copyOf(lineBuffer, Math.min(MAX_LINE, lineBuffer.length * 2));
+				}
+				lineBuffer[lineLength++] = b;
+			}
+		}
+		return true;
+	}
+
+	// Binary mode: varint length, then the body, which may arrive over several reads.
+	private boolean readFrames() throws IOException {
+		while(readBuffer.hasRemaining()) {
+			if(frameLength < 0) {
+				byte b = readBuffer.get();
+				frameLengthBits |= (b & 0x7F) << frameLengthShift;
+				frameLengthShift += 7;
+				if((b & 0x80) != 0) {
+					if(frameLengthShift > 28) throw new IOException("Malformed frame length");
+					continue;
+				}
+				if(frameLengthBits < 1 || frameLengthBits > WireFormat.MAX_FRAME) {
+					throw new IOException("Bad frame length " + frameLengthBits);
+				}
+				frameLength = frameLengthBits;
+				frameLengthBits = 0;
+				frameLengthShift = 0;
+				lineLength = 0;
+				// Bodies land after HEADROOM bytes so the verb can be decoded in front of them.
+				int needed = WireFormat.HEADROOM + frameLength;
+				if(lineBuffer.length < needed) {
+					lineBuffer = Arrays.copyOf(lineBuffer, Math.max(needed, Math.min(WireFormat.HEADROOM + MAX_LINE, lineBuffer.length * 2)));
+				}
+			}
+			int chunk = Math.min(frameLength - lineLength, readBuffer.remaining());
+			readBuffer.get(lineBuffer, WireFormat.HEADROOM + lineLength, chunk);
+			lineLength += chunk;
+			if(lineLength == frameLength) {
+				inbound.add(WireFormat.decodeInPlace(lineBuffer, WireFormat.HEADROOM, frameLength));
+				frameLength = -1;
+				lineLength = 0;
+			}
+		}
+		return true;
+	}
+
+	void onWritable() {
+		try {
+			while(true) {
+				while(gatherCount < gather.length) {
+					EncodedMessage next = outbound.poll();
+					if(next == null) break;
+					gather[gatherCount++] = next.view();
+				}
+				if(gatherCount == 0) break;
+				channel.write(gather, 0, gatherCount);
+				int written = 0;
+				while(written < gatherCount && !gather[written].hasRemaining()) written++;
+				System.arraycopy(gather, written, gather, 0, gatherCount - written);
+				for(int i = gatherCount - written; i < gatherCount; i++) gather[i] = null;
+				gatherCount -= written;
+				if(gatherCount > 0) return;
+			}
+			if(closing) {
+				close();
+				return;
+			}
+			key.interestOps(SelectionKey.OP_READ);
+			writeRequested.set(false);
+			if((!outbound.isEmpty() || closing) && writeRequested.compareAndSet(false, true)) {
+				key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+			}
+		} catch (IOException e) {
+			System.err.println("Write error to " + handler.getUsername() + ": " + e.getMessage());
+			close();
+		} catch (CancelledKeyException e) {
+			// close() on another thread cancelled the key while this write was running.
+			close();
+		}
+	}
+
+	void send(String message) {
+		send(EncodedMessage.of(message));
+	}
+
+	void send(EncodedMessage message) {
+		if(closed.get()) return;
+		if(!outbound.offer(message)) {
+			System.err.println("Slow consumer " + handler.getUsername() + ", disconnecting.");
+			close();
+			return;
+		}
+		if(writeRequested.compareAndSet(false, true)) {
+			reactor.execute(this::watchWritable);
+		}
+	}
+
+	// Called by the handler after reading "PROTO BINARY"; the reader already switched itself.
+	void switchToBinary(EncodedMessage ack) {
+		if(closed.get()) return;
+		if(!outbound.offerThenSwitchToBinary(ack)) {
+			close();
+			return;
+		}
+		if(writeRequested.compareAndSet(false, true)) {
+			reactor.execute(this::watchWritable);
+		}
+	}
+
+	// Lets already queued replies (e.g. an ERR before a rejected login) reach the client first.
+	void closeAfterFlush() {
+		closing = true;
+		if(writeRequested.compareAndSet(false, true)) {
+			reactor.execute(this::watchWritable);
+		}
+	}
+
+	// Reactor thread only. The key can be cancelled by close() on any thread between the check and the
+	// call, so a cancelled key just means the connection is already closing.
+	private void watchWritable() {
+		try {
+			if(key.isValid()) key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+		} catch (CancelledKeyException e) {
+			close();
+		}
+	}
+
+	void close() {
+		if(closed.getAndSet(true)) return;
+		if(key != null) key.cancel();
+		try {
+			channel.close();
+		} catch (IOException ignored) {
+
+		}
+		outbound.close();
+		outbound.clear();
+		scheduleProcessing();
+	}
+
+	int outboundDepth() {
+		return outbound.depth();
+	}
+
+	long outboundDropped() {
+		return outbound.dropped();
+	}
+
+	private void scheduleProcessing() {
+		if(handler != null && processing.compareAndSet(false, true)) {
+			workers.execute(this::processInbound);
+		}
+	}
+
+	private void processInbound() {
+		try {
+			if(!greeted) {
+				greeted = true;
+				if(!closed.get()) handler.onConnected();
+			}
+			String line;
+			while((line = inbound.poll()) != null) {
+				if(closed.get() || closing) {
+					inbound.clear();
+					break;
+				}
+				if(!handler.onLine(line)) {
+					inbound.clear();
+					closeAfterFlush();
+					break;
+				}
+			}
+			if(closed.get() && disconnectFired.compareAndSet(false, true)) {
+				handler.onDisconnected();
+			}
+		} catch (RuntimeException e) {
+			System.err.println("Command error from " + handler.getUsername() + ": " + e.getMessage());
+		} finally {
+			processing.set(false);
+		}
+		if(!inbound.isEmpty() || (closed.get() && !disconnectFired.get())) {
+			scheduleProcessing();
+		}
+	}
+}
@@ -0,0 +1,162 @@
+package server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Non-blocking transport: one acceptor, a small pool of selector (reactor) threads doing the
+// socket I/O, and a worker pool running the command logic so JDBC calls never block a selector.
+public class NioServer {
+
+	private final ChatServer server;
+	private final Reactor[] reactors;
+	private final ExecutorService workers;
+	private ServerSocketChannel serverChannel;
+
+	public NioServer(ChatServer server, int reactorThreads, int workerThreads) {
+		this.server = server;
+		this.reactors = new Reactor[Math.max(1, reactorThreads)];
+		AtomicInteger workerCount = new AtomicInteger();
+		this.workers = Executors.newFixedThreadPool(Math.max(1, workerThreads), r -> {
+			Thread t = new Thread(r, "NioWorker-" + workerCount.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	public void start(int port) throws IOException {
+		for(int i = 0; i < reactors.length; i++) {
+			reactors[i] = new Reactor(i);
+			reactors[i].start();
+		}
+
+		serverChannel = ServerSocketChannel.open();
+		serverChannel.bind(new InetSocketAddress(port));
+		System.out.println("Chat server (nio, " + reactors.length + " reactors) started on port " + port);
+
+		int next = 0;
+		try {
+			while(true) {
+				SocketChannel channel = serverChannel.accept();
+				Reactor reactor = reactors[next];
+				next = (next + 1) % reactors.length;
+				reactor.register(channel);
+			}
+		} finally {
+			stop();
+		}
+	}
+
+	public void stop() {
+		try {
+			if(serverChannel != null && serverChannel.isOpen()) serverChannel.close();
+		} catch (IOException ignored) {
+
+		}
+		for(Reactor reactor : reactors) {
+			if(reactor != null) reactor.shutdown();
+		}
+		workers.shutdown();
+	}
+
+	final class Reactor extends Thread {
+		private final Selector selector;
+		private final Queue<Runnable> pending = new ConcurrentLinkedQueue<>();
+		private volatile boolean running = true;
+
+		Reactor(int index) throws IOException {
+			super("NioReactor-" + index);
+			setDaemon(true);
+			this.selector = Selector.open();
+		}
+
+		void register(SocketChannel channel) {
+			execute(() -> {
+				try {
+					channel.configureBlocking(false);
+					channel.socket().setTcpNoDelay(true);
+					NioConnection connection = new NioConnection(channel, this, workers);
+					SelectionKey key = channel.register(selector, SelectionKey.OP_READ, connection);
+					connection.attach(key, new ClientHandler(connection, server));
+				} catch (IOException e) {
+					System.err.println("NIO register error: " + e.getMessage());
+					try {
+						channel.close();
+					} catch (IOException ignored) {
+
+					}
+				}
+			});
+		}
+
+		// Runs a task on the reactor thread; selection keys are only ever touched from there.
+		void execute(Runnable task) {
+			pending.add(task);
+			selector.wakeup();
+		}
+
+		void shutdown() {
+			running = false;
+			selector.wakeup();
+		}
+
+		@Override
+		public void run() {
+			while(running) {
+				try {
+					selector.select();
+					Runnable task;
+					while((task = pending.poll()) != null) {
+						try {
+							task.run();
+						} catch (RuntimeException e) {
+							// One connection's task must not take down the others on this reactor.
+							System.err.println("Reactor task error: " + e);
+						}
+					}
+
+					Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+					while(it.hasNext()) {
+						SelectionKey key = it.next();
+						it.remove();
+						NioConnection connection = (NioConnection) key.attachment();
+						try {
+							if(!key.isValid()) {
+								connection.close();
+								continue;
+							}
+							if(key.isReadable()) connection.onReadable();
+							if(key.isValid() && key.isWritable()) connection.onWritable();
+						} catch (CancelledKeyException e) {
+							// Closed from another thread (slow consumer, disconnect) while being served.
+							connection.close();
+						} catch (RuntimeException e) {
+							System.err.println("Reactor error on " + connection.username() + ": " + e);
+							connection.close();
+						}
+					}
+				} catch (IOException e) {
+					System.err.println("Reactor error: " + e.getMessage());
+				}
+			}
+			for(SelectionKey key : selector.keys()) {
+				((NioConnection) key.attachment()).close();
+			}
+			try {
+				selector.close();
+			} catch (IOException ignored) {
+
+			}
+		}
+	}
+}
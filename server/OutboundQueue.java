@@ -0,0 +1,223 @@
+package server;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Bounded queue of lines waiting to be written to one client. Senders never block on the socket;
+// when a client falls behind, the slow-consumer policy decides what gives.
+final class OutboundQueue {
+
+	enum SlowConsumerPolicy {
+		// Drop the oldest queued line to make room.
+		DROP_OLDEST,
+		// Replace a still-queued presence snapshot with the newer one; drop the oldest line if still full.
+		COALESCE,
+		// Give up on the client.
+		DISCONNECT
+	}
+
+	static final int DEFAULT_CAPACITY = Integer.getInteger("chat.outbound.capacity", 1024);
+	static final SlowConsumerPolicy DEFAULT_POLICY = SlowConsumerPolicy.valueOf(
+			System.getProperty("chat.outbound.policy", "COALESCE").trim().toUpperCase());
+
+	private static final LongAdder totalDropped = new LongAdder();
+	private static final LongAdder totalCoalesced = new LongAdder();
+	private static final LongAdder totalDisconnects = new LongAdder();
+
+	private final int capacity;
+	private final SlowConsumerPolicy policy;
+	private final ArrayDeque<EncodedMessage> slots = new ArrayDeque<>();
+	// Newest snapshot per coalesce key while an older one is still queued; it takes the older one's place.
+	private final Map<String, EncodedMessage> latestByKey = new HashMap<>();
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notEmpty = lock.newCondition();
+	private boolean closed;
+	// Set once the client negotiated binary framing; later offers are queued as frames.
+	private boolean binary;
+	private int maxDepth;
+	private long dropped;
+	private long coalesced;
+
+	OutboundQueue() {
+		this(DEFAULT_CAPACITY, DEFAULT_POLICY);
+	}
+
+	OutboundQueue(int capacity, SlowConsumerPolicy policy) {
+		this.capacity = Math.max(1, capacity);
+		this.policy = policy;
+	}
+
+	// Returns false when the client should be disconnected (or the queue is already closed).
+	boolean offer(EncodedMessage message) {
+		lock.lock();
+		try {
+			if(closed) return false;
+			if(binary) message = message.binary();
+			// Keyed after conversion: a frame ("B:" key) never takes the place of a text line still
+			// queued ahead of the switch, such as the one before PROTO BINARY OK.
+			String key = policy == SlowConsumerPolicy.COALESCE ? message.coalesceKey : null;
+			if(key != null && latestByKey.containsKey(key)) {
+				latestByKey.put(key, message);
+				coalesced++;
+				totalCoalesced.increment();
+				return true;
+			}
+			if(slots.size() >= capacity) {
+				if(policy == SlowConsumerPolicy.DISCONNECT) {
+					totalDisconnects.increment();
+					return false;
+				}
+				EncodedMessage oldest = slots.pollFirst();
+				if(oldest.coalesceKey != null) latestByKey.remove(oldest.coalesceKey);
+				dropped++;
+				totalDropped.increment();
+			}
+			slots.addLast(message);
+			if(key != null) latestByKey.put(key, message);
+			if(slots.size() > maxDepth) maxDepth = slots.size();
+			if(slots.size() == 1) notEmpty.signal();
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// Queues the (text) acknowledgement and switches framing in one step, so no other sender can
+	// slip a text line in after it.
+	boolean offerThenSwitchToBinary(EncodedMessage ack) {
+		lock.lock();
+		try {
+			if(!offer(ack)) return false;
+			binary = true;
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	EncodedMessage poll() {
+		lock.lock();
+		try {
+			return take();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// Blocks until at least one line is queued, then moves up to max lines into out.
+	// Returns false once the queue is closed and empty.
+	boolean awaitAndDrain(List<EncodedMessage> out, int max) throws InterruptedException {
+		lock.lock();
+		try {
+			while(slots.isEmpty()) {
+				if(closed) return false;
+				notEmpty.await(1, TimeUnit.SECONDS);
+			}
+			while(out.size() < max && !slots.isEmpty()) {
+				out.add(take());
+			}
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	void close() {
+		lock.lock();
+		try {
+			closed = true;
+			notEmpty.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	void clear() {
+		lock.lock();
+		try {
+			slots.clear();
+			latestByKey.clear();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	boolean isEmpty() {
+		lock.lock();
+		try {
+			return slots.isEmpty();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	int depth() {
+		lock.lock();
+		try {
+			return slots.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	int maxDepth() {
+		lock.lock();
+		try {
+			return maxDepth;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	long dropped() {
+		lock.lock();
+		try {
+			return dropped;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	long coalesced() {
+		lock.lock();
+		try {
+			return coalesced;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	static long totalDropped() {
+		return totalDropped.sum();
+	}
+
+	static long totalCoalesced() {
+		return totalCoalesced.sum();
+	}
+
+	static long totalDisconnects() {
+		return totalDisconnects.sum();
+	}
+
+	private EncodedMessage take() {
+		EncodedMessage message = slots.pollFirst();
+		if(message != null && message.coalesceKey != null) {
+			EncodedMessage latest = latestByKey.remove(message.coalesceKey);
+			if(latest != null) return latest;
+		}
+		return message;
+	}
+
+	// Full-state lines where only the newest one matters.
+	static String coalesceKey(String message) {
+		if(message.startsWith("ONLINE ")) return "ONLINE";
+		if(message.startsWith("STATUSES ")) return "STATUSES";
+		return null;
+	}
+}
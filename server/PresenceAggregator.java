@@ -0,0 +1,190 @@
+package server;
+
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Collects presence changes for a short window and hands each recipient one update per window,
+// so N logins in a burst cost about one message per recipient instead of N. The window restarts
+// on every change (debounce) but a batch is never held longer than maxDelayMillis.
+final class PresenceAggregator {
+
+	interface Delivery {
+		// ops is the space-separated delta ("+u:status -v ..."); the flags say which legacy lists are stale.
+		void deliver(ClientHandler recipient, String ops, boolean onlineList, boolean statuses);
+
+		// Same, for changes that go to every online user.
+		void deliverToAll(String ops, boolean onlineList, boolean statuses);
+	}
+
+	static final long DEFAULT_WINDOW_MS = Long.getLong("chat.presence.windowMs", 100);
+	static final long DEFAULT_MAX_DELAY_MS = Long.getLong("chat.presence.maxDelayMs", 500);
+
+	private static final class Pending {
+		// Latest op per user; a later "+u" or "-u" replaces an earlier one.
+		final Map<String, String> ops = new LinkedHashMap<>();
+		boolean onlineList;
+		boolean statuses;
+
+		void add(String user, String op, boolean onlineListChanged) {
+			ops.put(user, op);
+			onlineList |= onlineListChanged;
+			statuses = true;
+		}
+
+		String joinedOps() {
+			return String.join(" ", ops.values());
+		}
+	}
+
+	private final Delivery delivery;
+	private final long windowMillis;
+	private final long maxDelayMillis;
+	private final ScheduledExecutorService timer;
+	private final ReentrantLock lock = new ReentrantLock();
+
+	private Map<ClientHandler, Pending> perRecipient = new IdentityHashMap<>();
+	private Pending everyone;
+	private boolean scheduled;
+	private long firstChangeAt;
+	private long lastChangeAt;
+
+	private final LongAdder changes = new LongAdder();
+	private final LongAdder coalesced = new LongAdder();
+	private final LongAdder flushes = new LongAdder();
+	private final LongAdder deliveries = new LongAdder();
+
+	PresenceAggregator(Delivery delivery) {
+		this(delivery, DEFAULT_WINDOW_MS, DEFAULT_MAX_DELAY_MS);
+	}
+
+	PresenceAggregator(Delivery delivery, long windowMillis, long maxDelayMillis) {
+		this.delivery = delivery;
+		this.windowMillis = Math.max(0, windowMillis);
+		this.maxDelayMillis = Math.max(this.windowMillis, maxDelayMillis);
+		this.timer = this.windowMillis == 0 ? null : Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "PresenceAggregator");
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	void add(ClientHandler recipient, String user, String op, boolean onlineListChanged) {
+		if(timer == null) {
+			deliveries.increment();
+			delivery.deliver(recipient, op, onlineListChanged, true);
+			return;
+		}
+		lock.lock();
+		try {
+			Pending pending = perRecipient.get(recipient);
+			if(pending == null) {
+				pending = new Pending();
+				perRecipient.put(recipient, pending);
+			} else {
+				coalesced.increment();
+			}
+			pending.add(user, op, onlineListChanged);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	void addToAll(String user, String op, boolean onlineListChanged) {
+		if(timer == null) {
+			deliveries.increment();
+			delivery.deliverToAll(op, onlineListChanged, true);
+			return;
+		}
+		lock.lock();
+		try {
+			if(everyone == null) {
+				everyone = new Pending();
+			} else {
+				coalesced.increment();
+			}
+			everyone.add(user, op, onlineListChanged);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// Marks the end of one change (after its recipients were added) and arms the flush timer.
+	void changed() {
+		changes.increment();
+		if(timer == null) return;
+		lock.lock();
+		try {
+			long now = System.nanoTime();
+			lastChangeAt = now;
+			if(!scheduled) {
+				scheduled = true;
+				firstChangeAt = now;
+				timer.schedule(this::onTimer, windowMillis, TimeUnit.MILLISECONDS);
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// Drops anything still queued for a client that went away.
+	void forget(ClientHandler recipient) {
+		lock.lock();
+		try {
+			perRecipient.remove(recipient);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void onTimer() {
+		Map<ClientHandler, Pending> batch;
+		Pending all;
+		lock.lock();
+		try {
+			long now = System.nanoTime();
+			long quietFor = TimeUnit.NANOSECONDS.toMillis(now - lastChangeAt);
+			long heldFor = TimeUnit.NANOSECONDS.toMillis(now - firstChangeAt);
+			if(quietFor < windowMillis && heldFor < maxDelayMillis) {
+				long wait = Math.min(windowMillis - quietFor, maxDelayMillis - heldFor);
+				timer.schedule(this::onTimer, Math.max(1, wait), TimeUnit.MILLISECONDS);
+				return;
+			}
+			batch = perRecipient;
+			all = everyone;
+			perRecipient = new IdentityHashMap<>();
+			everyone = null;
+			scheduled = false;
+		} finally {
+			lock.unlock();
+		}
+		flush(batch, all);
+	}
+
+	private void flush(Map<ClientHandler, Pending> batch, Pending all) {
+		flushes.increment();
+		try {
+			if(all != null) {
+				deliveries.increment();
+				delivery.deliverToAll(all.joinedOps(), all.onlineList, all.statuses);
+			}
+			for(Map.Entry<ClientHandler, Pending> entry : batch.entrySet()) {
+				Pending pending = entry.getValue();
+				deliveries.increment();
+				delivery.deliver(entry.getKey(), pending.joinedOps(), pending.onlineList, pending.statuses);
+			}
+		} catch (RuntimeException e) {
+			System.err.println("Presence flush failed: " + e.getMessage());
+		}
+	}
+
+	String stats() {
+		return "window=" + windowMillis + "ms maxDelay=" + maxDelayMillis + "ms changes=" + changes.sum()
+				+ " coalesced=" + coalesced.sum() + " flushes=" + flushes.sum() + " deliveries=" + deliveries.sum();
+	}
+}
@@ -0,0 +1,177 @@
+package server;
+
+import database.ActivityLogDAO;
+import database.ConnectionPool;
+import database.DatabaseManager;
+import database.IdCache;
+import database.MembershipIndex;
+import database.MessageDAO;
+import database.MessagePartitions;
+import database.RecentMessageCache;
+import database.RoomDAO;
+import database.SearchDAO;
+import database.UserDAO;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.Locale;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// Registers the server's gauges and the callbacks that export the statistics the DAOs, the pool and
+// the outbound queues already keep. Recording stays where it was; this only reads. The pool's
+// statement listener adds a latency histogram per statement kind (op and table).
+final class ServerMetrics {
+
+	// Stats objects are built at most once a second, so one scrape runs each stats() (some query) once.
+	private static final long SNAPSHOT_NANOS = 1_000_000_000L;
+
+	private static final Pattern OP = Pattern.compile("^\\s*(\\w+)");
+	private static final Pattern TABLE = Pattern.compile("\\b(?:FROM|INTO|UPDATE)\\s+[\"`]?(\\w+)", Pattern.CASE_INSENSITIVE);
+	private static final Pattern PARTITION = Pattern.compile("messages_\\d{6}");
+
+	private ServerMetrics() {
+	}
+
+	static void register(ChatServer server) {
+		registerServer(server);
+		registerDatabase();
+		registerJvm();
+	}
+
+	private static void registerServer(ChatServer server) {
+		Metrics.gauge("chat_connections", "Open client connections", server::connectionCount);
+		Metrics.gauge("chat_online_users", "Logged-in users", server::onlineCount);
+		Metrics.gauge("chat_active_rooms", "Rooms with at least one online member", server::activeRoomCount);
+		Metrics.gauge("chat_outbound_queued", "Lines waiting in outbound queues", server::outboundQueued);
+		Metrics.counterFrom("chat_outbound_dropped_total", "Outbound lines dropped by full queues", OutboundQueue::totalDropped);
+		Metrics.counterFrom("chat_outbound_coalesced_total", "Outbound presence lines replaced by a newer one", OutboundQueue::totalCoalesced);
+		Metrics.counterFrom("chat_slow_consumer_disconnects_total", "Clients disconnected for not reading", OutboundQueue::totalDisconnects);
+		Metrics.counterFrom("chat_presence_changes_total", "Online/offline transitions", server::presenceChangeCount);
+		Metrics.counterFrom("chat_presence_messages_total", "Presence lines sent to watchers", server::presenceMessageCount);
+		Cluster cluster = server.cluster();
+		if(cluster != null) Metrics.gauge("chat_cluster_remote_users", "Users online on other cluster nodes", cluster::remoteUserCount);
+	}
+
+	private static void registerDatabase() {
+		DatabaseManager.setStatementListener(new ConnectionPool.StatementListener() {
+			@Override
+			public Object prepared(String sql) {
+				return statementTimer(sql);
+			}
+
+			@Override
+			public void executed(Object tag, long nanos) {
+				((Metrics.Histogram) tag).observe(nanos);
+			}
+		});
+
+		Supplier<ConnectionPool.Stats> pool = snapshot(DatabaseManager::poolStats);
+		Metrics.gauge("chat_db_pool_active", "Pooled connections on loan", () -> pool.get().active);
+		Metrics.gauge("chat_db_pool_idle", "Pooled connections waiting to be borrowed", () -> pool.get().idle);
+		Metrics.gauge("chat_db_pool_max", "Pool size limit", () -> pool.get().maxSize);
+		Metrics.counterFrom("chat_db_pool_borrows_total", "Connections borrowed", () -> pool.get().borrows);
+		Metrics.counterFrom("chat_db_pool_wait_seconds_total", "Time spent waiting for a connection", () -> pool.get().totalWaitNanos / 1e9);
+		Metrics.counterFrom("chat_db_pool_timeouts_total", "Borrows that gave up waiting", () -> pool.get().timeouts);
+		Metrics.counterFrom("chat_db_statement_cache_hits_total", "Prepared statements reused", () -> pool.get().statementHits);
+		Metrics.counterFrom("chat_db_statement_cache_misses_total", "Prepared statements compiled", () -> pool.get().statementMisses);
+
+		idCache("users", snapshot(UserDAO::idCacheStats));
+		idCache("rooms", snapshot(RoomDAO::idCacheStats));
+
+		Supplier<MembershipIndex.Stats> membership = snapshot(RoomDAO::membershipStats);
+		Metrics.gauge("chat_membership_rooms", "Rooms in the membership index", () -> membership.get().rooms);
+		Metrics.gauge("chat_membership_entries", "Memberships in the membership index", () -> membership.get().memberships);
+		Metrics.gauge("chat_membership_bytes", "Estimated membership index footprint", () -> membership.get().footprintBytes);
+
+		Metrics.gauge("chat_message_pending_writes", "Messages accepted but not yet written", MessageDAO::pendingWrites);
+		Supplier<RecentMessageCache.Stats> recent = snapshot(MessageDAO::recentCacheStats);
+		Metrics.gauge("chat_recent_cache_conversations", "Conversations held in the recent message cache", () -> recent.get().conversations);
+		Metrics.gauge("chat_recent_cache_messages", "Messages held in the recent message cache", () -> recent.get().messages);
+		Metrics.gauge("chat_recent_cache_bytes", "Estimated recent message cache footprint", () -> recent.get().bytes);
+		Metrics.counterFrom("chat_recent_cache_hits_total", "History requests served from the cache", () -> recent.get().hits);
+		Metrics.counterFrom("chat_recent_cache_misses_total", "History requests that went to the database", () -> recent.get().misses);
+		Metrics.counterFrom("chat_recent_cache_evictions_total", "Conversations evicted from the cache", () -> recent.get().evictions);
+
+		Supplier<DatabaseManager.CheckpointStats> checkpoint = snapshot(DatabaseManager::checkpointStats);
+		Metrics.counterFrom("chat_db_checkpoints_total", "WAL checkpoints run", () -> checkpoint.get().checkpoints);
+		Metrics.counterFrom("chat_db_checkpoints_busy_total", "WAL checkpoints that could not finish", () -> checkpoint.get().busy);
+		Metrics.counterFrom("chat_db_checkpoint_frames_total", "WAL frames copied back to the database", () -> checkpoint.get().framesCheckpointed);
+		Metrics.gauge("chat_db_wal_frames", "WAL frames at the last checkpoint", () -> checkpoint.get().lastWalFrames);
+
+		Supplier<ActivityLogDAO.Stats> activity = snapshot(ActivityLogDAO::stats);
+		Metrics.counterFrom("chat_activity_enqueued_total", "Activity log entries accepted", () -> activity.get().enqueued);
+		Metrics.counterFrom("chat_activity_written_total", "Activity log entries written", () -> activity.get().written);
+		Metrics.counterFrom("chat_activity_dropped_total", "Activity log entries dropped by a full queue", () -> activity.get().dropped);
+		Metrics.counterFrom("chat_activity_failed_total", "Activity log entries lost to write errors", () -> activity.get().failed);
+		Metrics.gauge("chat_activity_queued", "Activity log entries waiting to be written", () -> activity.get().queued);
+
+		Supplier<MessagePartitions.Stats> partitions = snapshot(MessagePartitions::stats);
+		Metrics.gauge("chat_message_partitions", "Message partitions in the live database", () -> partitions.get().hotPartitions);
+		Metrics.gauge("chat_message_partition_rows", "Messages in the live database", () -> partitions.get().hotRows);
+		Metrics.gauge("chat_archived_partitions", "Message partitions moved to archives", () -> partitions.get().archivedPartitions);
+		Metrics.gauge("chat_archived_rows", "Messages in archives", () -> partitions.get().archivedRows);
+		Metrics.gauge("chat_archive_bytes", "Size of the archive files", () -> partitions.get().archiveBytes);
+
+		Supplier<SearchDAO.Stats> search = snapshot(SearchDAO::stats);
+		Metrics.counterFrom("chat_search_indexed_total", "Messages added to the search index", () -> search.get().indexed);
+		Metrics.counterFrom("chat_searches_total", "SEARCH queries run", () -> search.get().searches);
+		Metrics.counterFrom("chat_search_seconds_total", "Time spent running SEARCH queries", () -> search.get().totalNanos / 1e9);
+	}
+
+	private static void idCache(String cache, Supplier<IdCache.Stats> stats) {
+		Metrics.counterFrom("chat_id_cache_hits_total", "Name to id lookups served from the cache", () -> stats.get().hits, "cache", cache);
+		Metrics.counterFrom("chat_id_cache_misses_total", "Name to id lookups that went to the database", () -> stats.get().misses, "cache", cache);
+		Metrics.counterFrom("chat_id_cache_evictions_total", "Names evicted from the cache", () -> stats.get().evictions, "cache", cache);
+		Metrics.gauge("chat_id_cache_size", "Names held in the cache", () -> stats.get().size, "cache", cache);
+	}
+
+	private static void registerJvm() {
+		MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+		Metrics.gauge("jvm_heap_used_bytes", "Heap in use", () -> memory.getHeapMemoryUsage().getUsed());
+		Metrics.gauge("jvm_heap_max_bytes", "Heap limit", () -> memory.getHeapMemoryUsage().getMax());
+		Metrics.gauge("jvm_threads_live", "Live threads", () -> ManagementFactory.getThreadMXBean().getThreadCount());
+		for(GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			Metrics.counterFrom("jvm_gc_collections_total", "Garbage collections", gc::getCollectionCount, "gc", gc.getName());
+			Metrics.counterFrom("jvm_gc_seconds_total", "Time spent in garbage collection", () -> gc.getCollectionTime() / 1000.0, "gc", gc.getName());
+		}
+	}
+
+	// One histogram per statement kind: "SELECT messages", "INSERT users", and so on. Monthly
+	// partitions share the messages series so the label set stays bounded.
+	static Metrics.Histogram statementTimer(String sql) {
+		Matcher op = OP.matcher(sql);
+		String kind = op.find() ? op.group(1).toLowerCase(Locale.ROOT) : "other";
+		Matcher table = TABLE.matcher(sql);
+		String name = table.find() ? PARTITION.matcher(table.group(1).toLowerCase(Locale.ROOT)).replaceAll("messages") : "other";
+		return Metrics.timer("chat_db_statement_duration_seconds", "Time to execute a database statement", "op", kind, "table", name);
+	}
+
+	private static <T> Supplier<T> snapshot(Supplier<T> stats) {
+		return new Supplier<T>() {
+			// Not a monitor: stats.get() can wait for a pooled connection, and a virtual thread
+			// blocked inside synchronized would pin its carrier.
+			private final ReentrantLock lock = new ReentrantLock();
+			private T value;
+			private long takenAt;
+
+			@Override
+			public T get() {
+				lock.lock();
+				try {
+					long now = System.nanoTime();
+					if(value == null || now - takenAt > SNAPSHOT_NANOS) {
+						value = stats.get();
+						takenAt = now;
+					}
+					return value;
+				} finally {
+					lock.unlock();
+				}
+			}
+		};
+	}
+}
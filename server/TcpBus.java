@@ -0,0 +1,279 @@
+package server;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+// Full mesh over TCP, one line per frame. Each node dials every address in its peer list and only
+// writes on that connection; what it receives comes in on the connections the peers dialed. Both
+// ends name themselves first ("NODE <id>"). Frames to a peer wait in a bounded queue (a full queue
+// drops) drained by one thread per peer, which sends a heartbeat when idle and redials after a
+// failure. A reader that hears nothing for three heartbeats treats the peer as gone. Frames can carry
+// message bodies from binary clients, which may contain newlines, so each frame goes out on one line
+// with backslash, CR and LF written as \\, \r and \n, and is unescaped on arrival.
+final class TcpBus implements ClusterBus {
+
+	private static final String HELLO = "NODE ";
+	private static final long HEARTBEAT_MS = 1000;
+	private static final long RECONNECT_MS = 1000;
+	private static final int CONNECT_TIMEOUT_MS = 2000;
+	private static final int BATCH = 256;
+	// -Dchat.cluster.queueCapacity bounds the frames waiting for each peer.
+	private static final int QUEUE_CAPACITY = Integer.getInteger("chat.cluster.queueCapacity", 10_000);
+	private static final Metrics.Counter DROPPED = Metrics.counter("chat_cluster_frames_dropped_total",
+			"Cluster frames dropped because a peer was down or its queue was full");
+
+	private final InetSocketAddress listen;
+	private final List<InetSocketAddress> peers;
+	// Dialed links that completed the handshake, by peer node id.
+	private final ConcurrentHashMap<String, Link> links = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<String, Socket> inbound = new ConcurrentHashMap<>();
+	private final List<Link> dialers = new ArrayList<>();
+	private volatile boolean running;
+	private String node;
+	private Receiver receiver;
+	private ServerSocket serverSocket;
+
+	TcpBus(InetSocketAddress listen, List<InetSocketAddress> peers) {
+		this.listen = listen;
+		this.peers = peers;
+	}
+
+	// "host:port,host:port"
+	static List<InetSocketAddress> parseAddresses(String spec) {
+		List<InetSocketAddress> addresses = new ArrayList<>();
+		if(spec == null) return addresses;
+		for(String part : spec.split(",")) {
+			part = part.trim();
+			if(part.isEmpty()) continue;
+			int colon = part.lastIndexOf(':');
+			if(colon <= 0) throw new IllegalArgumentException("Expected host:port, got " + part);
+			addresses.add(new InetSocketAddress(part.substring(0, colon), Integer.parseInt(part.substring(colon + 1))));
+		}
+		return addresses;
+	}
+
+	@Override
+	public void start(String node, Receiver receiver) throws IOException {
+		this.node = node;
+		this.receiver = receiver;
+		serverSocket = new ServerSocket();
+		serverSocket.setReuseAddress(true);
+		serverSocket.bind(listen);
+		running = true;
+		System.out.println("Cluster node " + node + " listening on " + listen + ", peers " + peers);
+		daemon(this::acceptLoop, "ClusterAccept");
+		for(InetSocketAddress peer : peers) {
+			Link link = new Link(peer);
+			dialers.add(link);
+			daemon(link, "ClusterLink-" + peer.getPort());
+		}
+	}
+
+	@Override
+	public void publish(String frame) {
+		for(Link link : links.values()) link.offer(frame);
+	}
+
+	@Override
+	public void send(String to, String frame) {
+		Link link = links.get(to);
+		if(link != null) {
+			link.offer(frame);
+		} else {
+			DROPPED.inc();
+		}
+	}
+
+	@Override
+	public void stop() {
+		running = false;
+		closeQuietly(serverSocket);
+		for(Link link : dialers) closeQuietly(link.socket);
+		for(Socket socket : inbound.values()) closeQuietly(socket);
+	}
+
+	private void acceptLoop() {
+		while(running) {
+			try {
+				Socket socket = serverSocket.accept();
+				daemon(() -> readLoop(socket), "ClusterReader");
+			} catch (IOException e) {
+				if(running) System.err.println("Cluster accept error: " + e.getMessage());
+			}
+		}
+	}
+
+	private void readLoop(Socket socket) {
+		String peer = null;
+		try {
+			socket.setTcpNoDelay(true);
+			socket.setSoTimeout((int) (3 * HEARTBEAT_MS));
+			BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+			Writer out = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+			String hello = in.readLine();
+			if(hello == null || !hello.startsWith(HELLO)) return;
+			out.write(HELLO + node + "\n");
+			out.flush();
+			peer = hello.substring(HELLO.length());
+			Socket previous = inbound.put(peer, socket);
+			if(previous != null) {
+				// The peer restarted or redialed: forget what the old connection said before the new one speaks.
+				closeQuietly(previous);
+				receiver.peerDown(peer);
+			}
+			String frame;
+			while((frame = in.readLine()) != null) {
+				if(!frame.isEmpty()) receiver.received(peer, unescape(frame));
+			}
+		} catch (IOException e) {
+			if(running && peer != null) System.err.println("Cluster link from node " + peer + " lost: " + e.getMessage());
+		} catch (RuntimeException e) {
+			System.err.println("Cluster error: " + e.getMessage());
+		} finally {
+			closeQuietly(socket);
+			if(peer != null && inbound.remove(peer, socket)) receiver.peerDown(peer);
+		}
+	}
+
+	// One dialed connection: handshake, then this node's frames for that peer.
+	private final class Link implements Runnable {
+		final InetSocketAddress address;
+		final BlockingQueue<String> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+		volatile Socket socket;
+
+		Link(InetSocketAddress address) {
+			this.address = address;
+		}
+
+		void offer(String frame) {
+			if(!queue.offer(escape(frame))) DROPPED.inc();
+		}
+
+		@Override
+		public void run() {
+			boolean reported = false;
+			List<String> batch = new ArrayList<>(BATCH);
+			while(running) {
+				String peer = null;
+				try (Socket s = new Socket()) {
+					socket = s;
+					s.connect(address, CONNECT_TIMEOUT_MS);
+					s.setTcpNoDelay(true);
+					s.setSoTimeout(CONNECT_TIMEOUT_MS);
+					BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+					Writer out = new BufferedWriter(new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8));
+					out.write(HELLO + node + "\n");
+					out.flush();
+					String reply = in.readLine();
+					if(reply == null || !reply.startsWith(HELLO)) throw new IOException("no handshake from " + address);
+					peer = reply.substring(HELLO.length());
+					if(peer.equals(node)) {
+						System.err.println("Cluster peer " + address + " is this node; not dialing it.");
+						return;
+					}
+					// Whatever queued while disconnected is superseded by the state peerUp sends.
+					queue.clear();
+					links.put(peer, this);
+					System.out.println("Cluster link to node " + peer + " up");
+					reported = false;
+					receiver.peerUp(peer);
+					while(running) {
+						String frame = queue.poll(HEARTBEAT_MS, TimeUnit.MILLISECONDS);
+						if(frame == null) {
+							out.write('\n');
+						} else {
+							out.write(frame);
+							out.write('\n');
+							queue.drainTo(batch, BATCH);
+							for(String next : batch) {
+								out.write(next);
+								out.write('\n');
+							}
+							batch.clear();
+						}
+						out.flush();
+					}
+				} catch (IOException e) {
+					if(!reported && running) {
+						System.err.println("Cluster link to " + (peer != null ? "node " + peer : address) + " down: " + e.getMessage());
+						reported = true;
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				} finally {
+					if(peer != null) links.remove(peer, this);
+				}
+				try {
+					Thread.sleep(RECONNECT_MS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+		}
+	}
+
+	// One line per frame, whatever the frame contains.
+	static String escape(String frame) {
+		if(frame.indexOf('\\') < 0 && frame.indexOf('\n') < 0 && frame.indexOf('\r') < 0) return frame;
+		StringBuilder sb = new StringBuilder(frame.length() + 16);
+		for(int i = 0; i < frame.length(); i++) {
+			char c = frame.charAt(i);
+			if(c == '\\') {
+				sb.append("\\\\");
+			} else if(c == '\n') {
+				sb.append("\\n");
+			} else if(c == '\r') {
+				sb.append("\\r");
+			} else {
+				sb.append(c);
+			}
+		}
+		return sb.toString();
+	}
+
+	static String unescape(String line) {
+		if(line.indexOf('\\') < 0) return line;
+		StringBuilder sb = new StringBuilder(line.length());
+		for(int i = 0; i < line.length(); i++) {
+			char c = line.charAt(i);
+			if(c != '\\' || i + 1 == line.length()) {
+				sb.append(c);
+				continue;
+			}
+			char next = line.charAt(++i);
+			sb.append(next == 'n' ? '\n' : next == 'r' ? '\r' : next);
+		}
+		return sb.toString();
+	}
+
+	private static void daemon(Runnable task, String name) {
+		Thread thread = new Thread(task, name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private static void closeQuietly(Closeable closeable) {
+		try {
+			if(closeable != null) closeable.close();
+		} catch (IOException ignored) {
+
+		}
+	}
+}
@@ -0,0 +1,44 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Which node each remote user is connected to. Every node keeps a full copy, built from the online
+// and offline frames the other nodes publish; users connected to this node are never in it.
+final class UserDirectory {
+
+	private final ConcurrentHashMap<String, String> nodeByUser = new ConcurrentHashMap<>();
+
+	// The user's node, or null if the user is not online anywhere else.
+	String locate(String username) {
+		return nodeByUser.get(username);
+	}
+
+	// True if the user was not known to be online on any other node.
+	boolean put(String username, String node) {
+		return nodeByUser.put(username, node) == null;
+	}
+
+	// Only if the user is still on that node: an offline frame can arrive after the user moved.
+	boolean remove(String username, String node) {
+		return nodeByUser.remove(username, node);
+	}
+
+	List<String> removeNode(String node) {
+		List<String> removed = new ArrayList<>();
+		for(Map.Entry<String, String> entry : nodeByUser.entrySet()) {
+			if(entry.getValue().equals(node) && nodeByUser.remove(entry.getKey(), node)) removed.add(entry.getKey());
+		}
+		return removed;
+	}
+
+	List<String> users() {
+		return new ArrayList<>(nodeByUser.keySet());
+	}
+
+	int size() {
+		return nodeByUser.size();
+	}
+}